@@ -0,0 +1,61 @@
+package com.netheos;
+
+import java.util.*;
+
+import org.bson.Document;
+
+import com.netheos.db.DatabaseAccessor;
+
+/**
+ * Generates FAQ looking like real ones (sizes of question, answer and tags), for benchmarks. Always the same ones for a given seed, so that results can be compared between runs.
+ */
+public class FAQGenerator {
+	private static final String[] WORDS = {"how", "do", "I", "join", "the", "team", "send", "my", "CV", "e-mail", "phone", "contact", "page", "account",
+		"password", "reset", "it", "is", "true", "that", "billing", "invoice", "refund", "delivery", "order", "ideas", "can", "you", "where", "when",
+		"signature", "document", "identity", "certificate", "electronic", "verify", "upload", "download", "customer", "support", "with", "a", "of"};
+	private static final String[] TAGS = {"contact", "meta", "important", "billing", "account", "security", "signature", "identity", "support"};
+
+	private final Random random;
+
+	public FAQGenerator(long seed) {
+		this.random = new Random(seed);
+	}
+
+	/** A question of 5 to 15 words, a 1 to 5 sentences answer, and 1 to 3 tags */
+	public Document nextFAQ() {
+		Document res = new Document();
+		res.put(DatabaseAccessor.FAQ_FIELD_QUESTION, nextSentence(5 + random.nextInt(10)) + " ?");
+		StringBuilder answer = new StringBuilder();
+		for (int i = random.nextInt(5) ; i >= 0 ; i--) {
+			answer.append(nextSentence(6 + random.nextInt(15))).append(". ");
+		}
+		res.put(DatabaseAccessor.FAQ_FIELD_ANSWER, answer.toString().trim());
+		res.put(DatabaseAccessor.FAQ_FIELD_TAGS, new ArrayList<>(nextTags()));
+		return res;
+	}
+
+	public List<Document> nextFAQs(int count) {
+		List<Document> res = new ArrayList<>(count);
+		for (int i = 0 ; i < count ; i++) {
+			res.add(nextFAQ());
+		}
+		return res;
+	}
+
+	public String nextSentence(int wordCount) {
+		StringBuilder res = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for (int i = 1 ; i < wordCount ; i++) {
+			res.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		res.setCharAt(0, Character.toUpperCase(res.charAt(0)));
+		return res.toString();
+	}
+
+	public Set<String> nextTags() {
+		Set<String> res = new LinkedHashSet<>();
+		for (int i = random.nextInt(3) ; i >= 0 ; i--) {
+			res.add(TAGS[random.nextInt(TAGS.length)]);
+		}
+		return res;
+	}
+}
@@ -0,0 +1,71 @@
+package com.netheos.db;
+
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import com.mongodb.MongoClient;
+import com.netheos.FAQGenerator;
+import com.netheos.servlets.FAQServlet;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+
+/**
+ * Database calls of {@link DatabaseAccessor}, against an in-memory server speaking the mongo protocol instead of a real mongod. <BR>
+ * Absolute numbers are not those of production, but they include the driver, the network stack and the serialization, and are good enough to compare two versions of the code. <BR>
+ * The response cache is disabled, otherwise only the first call would reach the database.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1) // Each fork has its own DatabaseAccessor singleton, so each collection size gets a fresh one
+public class DatabaseAccessorBenchmark {
+	@Param({"1000", "10000"})
+	public int faqCount;
+
+	private MongoServer server;
+
+	@Setup
+	public void setUp() {
+		server = new MongoServer(new MemoryBackend());
+		InetSocketAddress address = server.bind();
+
+		try (MongoClient client = new MongoClient(address.getHostString(), address.getPort())) {
+			client.getDatabase(DatabaseAccessor.DATABASE_NAME).getCollection(DatabaseAccessor.FAQ_COLLECTION_NAME)
+				.insertMany(new FAQGenerator(42).nextFAQs(faqCount));
+		}
+
+		System.setProperty(DatabaseAccessor.MONGO_URI_SETTING, "mongodb://" + address.getHostString() + ":" + address.getPort());
+		System.setProperty(DatabaseAccessor.CACHE_MAX_ENTRIES_SETTING, "0");
+		DatabaseAccessor.getInstance();
+	}
+
+	@TearDown
+	public void tearDown() {
+		DatabaseAccessor.getInstance().close();
+		server.shutdownNow();
+	}
+
+	/** Patterns sent to get_match, in their own state so that only getFAQMatches is run once per pattern */
+	@State(Scope.Benchmark)
+	public static class MatchPattern {
+		/** A common word, a rare one, one that matches nothing, and a regex */
+		@Param({"it", "certificate", "nothing like this", "upload.*identity"})
+		public String pattern;
+	}
+
+	@Benchmark
+	public List<String> getFAQMatches(MatchPattern matchPattern) {
+		return DatabaseAccessor.getInstance().getFAQMatches(matchPattern.pattern, FAQServlet.JSON_FORMAT);
+	}
+
+	@Benchmark
+	public List<String> getWholeCollection() {
+		return DatabaseAccessor.getInstance().getWholeCollection(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME);
+	}
+}
@@ -0,0 +1,59 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import com.netheos.FAQGenerator;
+
+/**
+ * Searches of the in-memory index, without any database : the regex match of get_match, the ranked search of search and the type-ahead of suggest. <BR>
+ * The generated FAQ use few different words, so every word of a query is found in a large part of them : a worst case for the ranked search, whose cost depends on how common the words are.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FAQIndexBenchmark {
+	@Param({"10000", "100000"})
+	public int faqCount;
+
+	/** A single common word, two words, and three words one of which is a stop-word */
+	@Param({"certificate", "upload identity", "how reset password"})
+	public String query;
+
+	private FAQIndex index;
+	private Pattern pattern;
+	/** What a user has typed so far of the query, for suggest */
+	private String prefix;
+
+	@Setup
+	public void setUp() {
+		index = new FAQIndex();
+		for (Document document : new FAQGenerator(42).nextFAQs(faqCount)) {
+			index.add(document);
+		}
+		pattern = Pattern.compile("^.*" + query + ".*$");
+		prefix = query.substring(0, 4);
+	}
+
+	@Benchmark
+	public List<String> search() {
+		return index.search(query, 10);
+	}
+
+	@Benchmark
+	public List<String> findMatches() {
+		return index.findMatches(pattern);
+	}
+
+	@Benchmark
+	public List<String> suggest() {
+		return index.suggest(prefix, 5);
+	}
+}
@@ -0,0 +1,57 @@
+package com.netheos.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+import org.openjdk.jmh.annotations.*;
+
+import com.netheos.FAQGenerator;
+
+/**
+ * Cost of a snapshot of the index, see {@link IndexSnapshot}. <BR>
+ * Inserts into the index wait for {@link #serialize} only, the copy in memory. {@link #write} is the whole snapshot, file and fsync included : how long they used to wait when the file was written under the lock.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class IndexSnapshotBenchmark {
+	@Param({"10000", "100000"})
+	public int faqCount;
+
+	private FAQIndex index;
+	private CollectionVersion version;
+	private Path path;
+
+	@Setup
+	public void setUp() throws IOException {
+		index = new FAQIndex();
+		for (Document document : new FAQGenerator(42).nextFAQs(faqCount)) {
+			index.add(document);
+		}
+		version = new CollectionVersion(new ObjectId().toHexString(), faqCount, 0);
+		path = File.createTempFile("faq", ".snapshot").toPath();
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		Files.deleteIfExists(path);
+	}
+
+	@Benchmark
+	public IndexSnapshot.Contents serialize() throws IOException {
+		return IndexSnapshot.serialize(index, version);
+	}
+
+	@Benchmark
+	public void write() throws IOException {
+		IndexSnapshot.write(index, version, path);
+	}
+}
@@ -0,0 +1,50 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.netheos.FAQGenerator;
+
+/**
+ * Conversion of FAQ documents to the json sent to users, done for every document returned.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+	@Param({"1", "1000"})
+	public int faqCount;
+
+	private List<Document> documents;
+	private List<String> jsons;
+
+	@Setup
+	public void setUp() {
+		documents = new FAQGenerator(42).nextFAQs(faqCount);
+		jsons = new ArrayList<>();
+		for (Document document : documents) {
+			jsons.add(document.toJson());
+		}
+	}
+
+	@Benchmark
+	public void toJson(Blackhole blackhole) {
+		for (Document document : documents) {
+			blackhole.consume(document.toJson());
+		}
+	}
+
+	@Benchmark
+	public void parse(Blackhole blackhole) {
+		for (String json : jsons) {
+			blackhole.consume(Document.parse(json));
+		}
+	}
+}
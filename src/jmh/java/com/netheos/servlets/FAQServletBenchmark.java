@@ -0,0 +1,85 @@
+package com.netheos.servlets;
+
+import java.lang.reflect.Proxy;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+
+import org.bson.Document;
+import org.openjdk.jmh.annotations.*;
+
+import com.netheos.FAQGenerator;
+
+/**
+ * Pure Java work done by {@link FAQServlet} on every request, around the database calls.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FAQServletBenchmark {
+	/** Number of FAQ returned by a request */
+	@Param({"10", "1000", "10000"})
+	public int faqCount;
+
+	private HttpServletRequest addNewRequest;
+	private String[] tags;
+	private List<String> jsonFAQs;
+
+	@Setup
+	public void setUp() {
+		FAQGenerator generator = new FAQGenerator(42);
+
+		Map<String, String> parameters = new LinkedHashMap<>();
+		parameters.put(FAQServlet.PARAMETER_STRING_REQUEST_TYPE, FAQServlet.REQUEST_TYPE_ADD_NEW_FAQ);
+		parameters.put(FAQServlet.PARAMETER_STRING_USERNAME, "admin");
+		parameters.put(FAQServlet.PARAMETER_STRING_PASSWORD, "jGrC4Kp3Nr30");
+		parameters.put(FAQServlet.PARAMETER_STRING_QUESTION, generator.nextSentence(12) + " {$where: \"sleep(1000)\"} ?");
+		parameters.put(FAQServlet.PARAMETER_STRING_ANSWER, generator.nextSentence(60) + ".");
+		parameters.put(FAQServlet.PARAMETER_STRING_TAGS, "contact;Meta;bad tag;;important");
+		addNewRequest = fakeRequest(parameters);
+		tags = parameters.get(FAQServlet.PARAMETER_STRING_TAGS).toLowerCase().split(FAQServlet.TAG_SEPARATOR);
+
+		jsonFAQs = new ArrayList<>();
+		for (Document document : generator.nextFAQs(faqCount)) {
+			jsonFAQs.add(document.toJson());
+		}
+	}
+
+	@Benchmark
+	public Map<String, String> sanitizeParameters() {
+		return FAQServlet.sanitizeParameters(addNewRequest);
+	}
+
+	@Benchmark
+	public String sanitizeInput() {
+		return FAQServlet.sanitizeInput(addNewRequest.getParameter(FAQServlet.PARAMETER_STRING_ANSWER));
+	}
+
+	@Benchmark
+	public List<String> filterBadTags() {
+		return FAQServlet.filterBadTags(tags);
+	}
+
+	@Benchmark
+	public String transformListInString() {
+		return FAQServlet.transformListInString(jsonFAQs, "All documents");
+	}
+
+	/** Request only able to give its parameters, which is all sanitizeParameters needs. Avoids depending on a mock library */
+	private static HttpServletRequest fakeRequest(Map<String, String> parameters) {
+		return (HttpServletRequest) Proxy.newProxyInstance(FAQServletBenchmark.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getParameterNames":
+					return Collections.enumeration(parameters.keySet());
+				case "getParameter":
+					return parameters.get(args[0]);
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+}
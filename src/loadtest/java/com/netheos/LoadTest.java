@@ -0,0 +1,396 @@
+package com.netheos;
+
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.startup.Tomcat;
+import org.bson.Document;
+
+import com.mongodb.MongoClient;
+import com.mongodb.client.MongoCollection;
+import com.netheos.db.DatabaseAccessor;
+import com.netheos.servlets.FAQServlet;
+
+import de.bwaldvogel.mongo.MongoServer;
+import de.bwaldvogel.mongo.backend.QueryResult;
+import de.bwaldvogel.mongo.backend.memory.MemoryBackend;
+import de.bwaldvogel.mongo.wire.message.MongoGetMore;
+import de.bwaldvogel.mongo.wire.message.MongoMessage;
+import de.bwaldvogel.mongo.wire.message.MongoQuery;
+import io.netty.channel.Channel;
+
+/**
+ * Runs the whole application (embedded Tomcat, JSP included) against an in-memory server speaking the mongo protocol, seeded with generated FAQ, and sends it a mix of requests to measure its throughput, latencies and allocations. Nothing to install, and no real database is touched. <BR>
+ * Requests are sent at a fixed rate (open loop), whatever the time the previous ones take, as real users would : a server falling behind shows as growing latencies rather than as fewer requests sent. With a rate of 0, each client sends its next request as soon as it got the previous response (closed loop), to find the maximum throughput. <BR>
+ * The container is given few threads on purpose, so that the difference between requests processed by the container threads ({@link FAQServlet#ASYNC_ENABLED_SETTING async.enabled}=false) and by the servlet's own threads shows. <BR>
+ * Each run measures one configuration, since settings are read once at startup : <BR>
+ * mvn -Ploadtest test-compile exec:exec -Dloadtest.args="-Dasync.enabled=false -Dloadtest.rate=2000" <BR>
+ * Other settings : -Dloadtest.rate (requests per second, 100, 0 for as many as possible), -Dloadtest.mix (request types and their weights, "get_match:70,get_by_tags:20,get_all:5,add_new:5"), -Dloadtest.clients (concurrent users, 64), -Dloadtest.seconds (duration, 20), -Dloadtest.warmupSeconds (5), -Dloadtest.faqCount (FAQ in the collection, 10000), -Dloadtest.containerThreads (8), -Dloadtest.databaseLatencyMillis (added to every database call once seeded, as a database over the network would take, 0). <BR>
+ * Results are compared to the baseline file -Dloadtest.baseline (src/loadtest/baseline.properties) if it exists, the run failing if any metric is worse by more than -Dloadtest.tolerancePercent (10). -Dloadtest.saveBaseline=true replaces the baseline with the results, see {@link LoadTestResults}.
+ */
+public class LoadTest {
+	private static final String[] WORDS = {"how", "do", "I", "join", "the", "team", "send", "CV", "e-mail", "phone", "contact", "page", "account",
+		"password", "reset", "it", "is", "true", "developper", "billing", "invoice", "refund", "delivery", "order", "ideas", "Yes", "recruitement"};
+	private static final String[] TAGS = {"contact", "billing", "account", "team", "delivery"};
+	/** Admin credentials, needed by add_new and get_all, see {@link SecurityManager} */
+	private static final String ADMIN_USERNAME = "admin";
+	private static final String ADMIN_PASSWORD = "jGrC4Kp3Nr30";
+	/** FAQ inserted at once while seeding the collection, so that a million of them never are all in memory */
+	private static final int SEED_BATCH_SIZE = 10_000;
+
+	public static void main(String[] args) throws Exception {
+		int rate = Integer.getInteger("loadtest.rate", 100);
+		String mix = System.getProperty("loadtest.mix", "get_match:70,get_by_tags:20,get_all:5,add_new:5");
+		int clients = Integer.getInteger("loadtest.clients", 64);
+		int seconds = Integer.getInteger("loadtest.seconds", 20);
+		int warmupSeconds = Integer.getInteger("loadtest.warmupSeconds", 5);
+		int faqCount = Integer.getInteger("loadtest.faqCount", 10_000);
+		int containerThreads = Integer.getInteger("loadtest.containerThreads", 8);
+		int databaseLatencyMillis = Integer.getInteger("loadtest.databaseLatencyMillis", 0);
+		File baseline = new File(System.getProperty("loadtest.baseline", "src/loadtest/baseline.properties"));
+		double tolerancePercent = Double.parseDouble(System.getProperty("loadtest.tolerancePercent", "10"));
+
+		SlowBackend backend = new SlowBackend();
+		MongoServer mongoServer = new MongoServer(backend);
+		InetSocketAddress mongoAddress = mongoServer.bind();
+		long seedStart = System.nanoTime();
+		seed(mongoAddress, faqCount);
+		System.out.println(faqCount + " FAQ generated in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - seedStart) + " ms");
+		backend.latencyMillis = databaseLatencyMillis;
+		System.setProperty(DatabaseAccessor.MONGO_URI_SETTING, "mongodb://" + mongoAddress.getHostString() + ":" + mongoAddress.getPort());
+		System.setProperty(DatabaseAccessor.CACHE_MAX_ENTRIES_SETTING, "0"); // Otherwise every request would be served by the cache
+
+		Tomcat tomcat = new Tomcat();
+		int regressions = 0;
+		try {
+			long startupStart = System.nanoTime();
+			int port = startTomcat(tomcat, containerThreads);
+			send(new Request(FAQServlet.REQUEST_TYPE_GET_TAG_COUNTS, new URL(baseUrl(port) + FAQServlet.REQUEST_TYPE_GET_TAG_COUNTS), null)); // The application starts with the first request
+			System.out.println("Application started in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startupStart) + " ms");
+
+			Workload workload = new Workload(port, mix);
+			run(workload, rate, clients, warmupSeconds);
+			Map<String, String> settings = new LinkedHashMap<>();
+			settings.put("rate", String.valueOf(rate));
+			settings.put("mix", mix);
+			settings.put("clients", String.valueOf(clients));
+			settings.put("faqCount", String.valueOf(faqCount));
+			settings.put("containerThreads", String.valueOf(containerThreads));
+			settings.put("databaseLatencyMillis", String.valueOf(databaseLatencyMillis));
+			settings.put(FAQServlet.ASYNC_ENABLED_SETTING, String.valueOf(Configuration.getBoolean(FAQServlet.ASYNC_ENABLED_SETTING, true)));
+			System.out.println(settings + ", " + seconds + " seconds");
+
+			LoadTestResults results = run(workload, rate, clients, seconds);
+			results.print();
+			if (Boolean.getBoolean("loadtest.saveBaseline")) {
+				results.saveBaseline(baseline, settings);
+			} else if (baseline.isFile()) {
+				regressions = results.compareToBaseline(baseline, settings, tolerancePercent);
+			} else {
+				System.out.println("No baseline in " + baseline + " to compare to, save one with -Dloadtest.saveBaseline=true");
+			}
+		} finally {
+			tomcat.stop();
+			tomcat.destroy();
+			mongoServer.shutdownNow();
+			backend.delays.shutdownNow();
+		}
+		if (regressions > 0) {
+			System.out.println(regressions + " regression(s)");
+			System.exit(1);
+		}
+	}
+
+	private static void seed(InetSocketAddress address, int faqCount) {
+		Random random = new Random(42);
+		try (MongoClient client = new MongoClient(address.getHostString(), address.getPort())) {
+			MongoCollection<Document> collection = client.getDatabase(DatabaseAccessor.DATABASE_NAME).getCollection(DatabaseAccessor.FAQ_COLLECTION_NAME);
+			for (int inserted = 0 ; inserted < faqCount ; inserted += SEED_BATCH_SIZE) {
+				List<Document> documents = new ArrayList<>(SEED_BATCH_SIZE);
+				for (int i = inserted ; i < Math.min(faqCount, inserted + SEED_BATCH_SIZE) ; i++) {
+					documents.add(generateFAQ(random));
+				}
+				collection.insertMany(documents);
+			}
+		}
+	}
+
+	private static Document generateFAQ(Random random) {
+		return new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, sentence(random, 4 + random.nextInt(8)) + " ?")
+			.append(DatabaseAccessor.FAQ_FIELD_ANSWER, sentence(random, 5 + random.nextInt(20)) + ".")
+			.append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList(TAGS[random.nextInt(TAGS.length)]));
+	}
+
+	private static String sentence(Random random, int wordCount) {
+		StringBuilder res = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for (int i = 1 ; i < wordCount ; i++) {
+			res.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Deploys src/main/webapp, with the compiled classes coming from the classpath.
+	 * @return the port Tomcat listens to
+	 */
+	private static int startTomcat(Tomcat tomcat, int containerThreads) throws Exception {
+		tomcat.setBaseDir(new File("target/loadtest-tomcat").getAbsolutePath());
+		Connector connector = new Connector();
+		connector.setPort(0); // Any free port
+		connector.setProperty("maxThreads", String.valueOf(containerThreads));
+		connector.setProperty("acceptCount", "1000");
+		tomcat.setConnector(connector);
+		Context context = tomcat.addWebapp("", new File("src/main/webapp").getAbsolutePath());
+		context.setParentClassLoader(LoadTest.class.getClassLoader());
+		tomcat.start();
+		return connector.getLocalPort();
+	}
+
+	private static String baseUrl(int port) {
+		return "http://localhost:" + port + "/faq?" + FAQServlet.PARAMETER_STRING_FORMAT + "=" + FAQServlet.JSON_FORMAT + "&" + FAQServlet.PARAMETER_STRING_REQUEST_TYPE + "=";
+	}
+
+	/**
+	 * Sends the requests of the workload for the given time, from the given number of client threads.
+	 * @param rate requests per second, each one being sent when it should whether the previous ones were answered or not. 0 for a closed loop
+	 */
+	private static LoadTestResults run(Workload workload, int rate, int clients, int seconds) throws InterruptedException {
+		LoadTestResults results = new LoadTestResults();
+		AtomicInteger threadCount = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(clients, runnable -> new Thread(runnable, LoadTestResults.CLIENT_THREAD_PREFIX + "client-" + threadCount.incrementAndGet()));
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(seconds);
+		results.start();
+		if (rate > 0) {
+			// The requests of late clients wait in the queue of the executor : their latency counts from when they should have been sent
+			long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+			Thread pacer = new Thread(() -> {
+				for (long index = 0, scheduled = start ; scheduled < end ; index++, scheduled = start + index * intervalNanos) {
+					long delay = scheduled - System.nanoTime();
+					if (delay > 0) {
+						LockSupport.parkNanos(delay);
+					}
+					executor.execute(new ScheduledSend(workload.get(index), scheduled, results));
+				}
+			}, LoadTestResults.CLIENT_THREAD_PREFIX + "pacer"); // Building the requests allocates too : not counted as the server's
+			pacer.start();
+			pacer.join();
+		} else {
+			for (int i = 0 ; i < clients ; i++) {
+				int client = i;
+				executor.execute(() -> {
+					for (long index = client ; System.nanoTime() < end ; index += clients) {
+						Request request = workload.get(index);
+						results.record(request.type, send(request, System.nanoTime()));
+					}
+				});
+			}
+		}
+		executor.shutdown();
+		if (!executor.awaitTermination(seconds + 60, TimeUnit.SECONDS)) {
+			for (Runnable dropped : executor.shutdownNow()) { // Requests still queued are not sent : failed, or a saturated server would look faster
+				ScheduledSend send = (ScheduledSend) dropped;
+				results.record(send.request.type, -1);
+			}
+		}
+		results.stop();
+		return results;
+	}
+
+	private static long send(Request request) {
+		return send(request, System.nanoTime());
+	}
+
+	/**
+	 * @param intendedNanos when the request should have been sent
+	 * @return the latency of the request in nanoseconds, from when it should have been sent until its whole response was read, or -1 if it failed
+	 */
+	private static long send(Request request, long intendedNanos) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) request.url.openConnection();
+			if (request.body != null) {
+				connection.setRequestMethod("POST");
+				connection.setDoOutput(true);
+				connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+				try (OutputStream output = connection.getOutputStream()) {
+					output.write(request.body);
+				}
+			}
+			if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+				return -1;
+			}
+			try (InputStream input = connection.getInputStream()) {
+				byte[] buffer = new byte[8192];
+				while (input.read(buffer) >= 0) {
+					// Reads the whole response, as a user would
+				}
+			}
+			return System.nanoTime() - intendedNanos;
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/** A request of the open loop, waiting for a client thread to send it */
+	private static class ScheduledSend implements Runnable {
+		private final Request request;
+		/** When it should have been sent */
+		private final long intendedNanos;
+		private final LoadTestResults results;
+
+		private ScheduledSend(Request request, long intendedNanos, LoadTestResults results) {
+			this.request = request;
+			this.intendedNanos = intendedNanos;
+			this.results = results;
+		}
+
+		@Override
+		public void run() {
+			results.record(request.type, send(request, intendedNanos));
+		}
+	}
+
+	/**
+	 * In-memory database answering every query, command and cursor read {@link #latencyMillis} late, as if it was across a network. <BR>
+	 * The answers are delayed without blocking the server's I/O threads, so that calls made at the same time wait together, as they would for a real database.
+	 */
+	private static class SlowBackend extends MemoryBackend {
+		private final ScheduledExecutorService delays = Executors.newScheduledThreadPool(4, runnable -> {
+			Thread thread = new Thread(runnable, "database-latency");
+			thread.setDaemon(true);
+			return thread;
+		});
+		/** Delay added to every call, 0 while seeding */
+		private volatile int latencyMillis;
+
+		@Override
+		public CompletionStage<de.bwaldvogel.mongo.bson.Document> handleCommandAsync(Channel channel, String databaseName, String command, de.bwaldvogel.mongo.bson.Document query) {
+			return delayed(() -> handleCommand(channel, databaseName, command, query));
+		}
+
+		@Override
+		public CompletionStage<QueryResult> handleQueryAsync(MongoQuery query) {
+			return delayed(() -> handleQuery(query));
+		}
+
+		@Override
+		public CompletionStage<QueryResult> handleGetMoreAsync(MongoGetMore getMore) {
+			return delayed(() -> handleGetMore(getMore));
+		}
+
+		@Override
+		public CompletionStage<de.bwaldvogel.mongo.bson.Document> handleMessageAsync(MongoMessage message) {
+			return delayed(() -> handleMessage(message));
+		}
+
+		private <T> CompletionStage<T> delayed(Callable<T> call) {
+			CompletableFuture<T> result = new CompletableFuture<>();
+			if (latencyMillis == 0) {
+				complete(result, call);
+			} else {
+				delays.schedule(() -> complete(result, call), latencyMillis, TimeUnit.MILLISECONDS);
+			}
+			return result;
+		}
+
+		private static <T> void complete(CompletableFuture<T> result, Callable<T> call) {
+			try {
+				result.complete(call.call());
+			} catch (Exception e) {
+				result.completeExceptionally(e);
+			}
+		}
+	}
+
+	/** A request to send : its type, URL, and body for a POST (null for a GET) */
+	private static class Request {
+		private final String type;
+		private final URL url;
+		private final byte[] body;
+
+		private Request(String type, URL url, byte[] body) {
+			this.type = type;
+			this.url = url;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * The requests sent, in the proportions of the mix. The same index always gives the same type of request, so that runs send the same sequence. <BR>
+	 * GET requests are built once. Each add_new sends a new generated FAQ, so the collection grows during the run, as it would in production.
+	 */
+	private static class Workload {
+		/** Type of each request, repeated : each type appears as often as its weight */
+		private final String[] sequence;
+		/** URLs of each GET request type, taken in turn */
+		private final Map<String, List<URL>> urls = new HashMap<>();
+		private final URL postUrl;
+		private final AtomicInteger generated = new AtomicInteger();
+
+		private Workload(int port, String mix) throws MalformedURLException, UnsupportedEncodingException {
+			String base = baseUrl(port);
+			String admin = "&" + FAQServlet.PARAMETER_STRING_USERNAME + "=" + ADMIN_USERNAME + "&" + FAQServlet.PARAMETER_STRING_PASSWORD + "=" + ADMIN_PASSWORD;
+			List<URL> matchUrls = new ArrayList<>();
+			for (String word : WORDS) {
+				matchUrls.add(new URL(base + FAQServlet.REQUEST_TYPE_GET_CORRESPONDING_FAQ + "&" + FAQServlet.PARAMETER_STRING_MATCH + "=" + URLEncoder.encode(word + " ", "UTF-8")));
+			}
+			urls.put(FAQServlet.REQUEST_TYPE_GET_CORRESPONDING_FAQ, matchUrls);
+			List<URL> tagUrls = new ArrayList<>();
+			for (String tag : TAGS) {
+				tagUrls.add(new URL(base + FAQServlet.REQUEST_TYPE_GET_BY_TAGS + "&" + FAQServlet.PARAMETER_STRING_TAGS + "=" + tag));
+			}
+			urls.put(FAQServlet.REQUEST_TYPE_GET_BY_TAGS, tagUrls);
+			urls.put(FAQServlet.REQUEST_TYPE_GET_ALL_FAQ, Collections.singletonList(new URL(base + FAQServlet.REQUEST_TYPE_GET_ALL_FAQ + admin)));
+			List<URL> searchUrls = new ArrayList<>();
+			for (String word : WORDS) {
+				searchUrls.add(new URL(base + FAQServlet.REQUEST_TYPE_SEARCH + "&" + FAQServlet.PARAMETER_STRING_QUERY + "=" + URLEncoder.encode(word + " team", "UTF-8")));
+			}
+			urls.put(FAQServlet.REQUEST_TYPE_SEARCH, searchUrls);
+			urls.put(FAQServlet.REQUEST_TYPE_GET_TAG_COUNTS, Collections.singletonList(new URL(base + FAQServlet.REQUEST_TYPE_GET_TAG_COUNTS)));
+			postUrl = new URL("http://localhost:" + port + "/faq?" + FAQServlet.PARAMETER_STRING_REQUEST_TYPE + "=" + FAQServlet.REQUEST_TYPE_ADD_NEW_FAQ + admin);
+
+			List<String> types = new ArrayList<>();
+			for (String part : mix.split(",")) {
+				String[] typeAndWeight = part.trim().split(":");
+				String type = typeAndWeight[0].trim();
+				if (!type.equals(FAQServlet.REQUEST_TYPE_ADD_NEW_FAQ) && !urls.containsKey(type)) {
+					throw new IllegalArgumentException("Unknown request type " + type + " in loadtest.mix, known ones : " + FAQServlet.REQUEST_TYPE_ADD_NEW_FAQ + ", " + urls.keySet());
+				}
+				int weight = typeAndWeight.length > 1 ? Integer.parseInt(typeAndWeight[1].trim()) : 1;
+				for (int i = 0 ; i < weight ; i++) {
+					types.add(type);
+				}
+			}
+			if (types.isEmpty()) {
+				throw new IllegalArgumentException("loadtest.mix has no request type");
+			}
+			Collections.shuffle(types, new Random(42)); // Types spread over the sequence rather than in bursts
+			sequence = types.toArray(new String[0]);
+		}
+
+		private Request get(long index) {
+			String type = sequence[(int) (index % sequence.length)];
+			if (type.equals(FAQServlet.REQUEST_TYPE_ADD_NEW_FAQ)) {
+				Document faq = generateFAQ(new Random(generated.incrementAndGet()));
+				String body;
+				try {
+					body = FAQServlet.PARAMETER_STRING_QUESTION + "=" + URLEncoder.encode(faq.getString(DatabaseAccessor.FAQ_FIELD_QUESTION), "UTF-8")
+						+ "&" + FAQServlet.PARAMETER_STRING_ANSWER + "=" + URLEncoder.encode(faq.getString(DatabaseAccessor.FAQ_FIELD_ANSWER), "UTF-8")
+						+ "&" + FAQServlet.PARAMETER_STRING_TAGS + "=" + faq.get(DatabaseAccessor.FAQ_FIELD_TAGS, List.class).get(0); // A single tag
+				} catch (UnsupportedEncodingException e) {
+					throw new IllegalStateException(e);
+				}
+				return new Request(type, postUrl, body.getBytes(StandardCharsets.UTF_8));
+			}
+			List<URL> typeUrls = urls.get(type);
+			return new Request(type, typeUrls.get((int) (index / sequence.length % typeUrls.size())), null);
+		}
+	}
+}
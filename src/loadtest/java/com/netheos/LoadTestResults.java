@@ -0,0 +1,241 @@
+package com.netheos;
+
+import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.netheos.monitoring.LatencyHistogram;
+
+/**
+ * What a {@link LoadTest} run measured : throughput, latency percentiles and errors of each request type, memory allocated by the application and garbage collections. <BR>
+ * Results can be saved as a baseline (a properties file), and later runs compared to it : a metric worse than the baseline by more than the tolerance is a regression. <BR>
+ * Latencies are measured from when each request should have been sent, not from when it was : a server falling behind makes the requests queued after it slower too, as it would for real users.
+ */
+public class LoadTestResults {
+	/** Latency differences below this are noise whatever the percentage, and never regressions */
+	private static final double MIN_LATENCY_DELTA_MILLIS = 1;
+	/** Percentiles reported for each request type */
+	private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+	/** Threads of the load generator itself, whose allocations are not the application's */
+	static final String CLIENT_THREAD_PREFIX = "loadtest-";
+
+	private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+	private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+	private final LatencyHistogram allLatencies = new LatencyHistogram();
+	private final AtomicLong allErrors = new AtomicLong();
+
+	/** Allocated bytes of each thread, and GC counters, when the measure started */
+	private Map<Long, Long> allocatedAtStart;
+	private long gcCountAtStart;
+	private long gcMillisAtStart;
+	private long startNanos;
+	/** Filled by {@link #stop} */
+	private long allocatedBytes = -1;
+	private long gcCount;
+	private long gcMillis;
+	private double seconds;
+
+	/** Starts measuring allocations and time. Requests are recorded whenever they end */
+	void start() {
+		allocatedAtStart = allocatedBytesByThread();
+		gcCountAtStart = gcCount();
+		gcMillisAtStart = gcMillis();
+		startNanos = System.nanoTime();
+	}
+
+	void stop() {
+		seconds = (System.nanoTime() - startNanos) / 1e9;
+		Map<Long, Long> allocatedAtEnd = allocatedBytesByThread();
+		if (allocatedAtStart != null && allocatedAtEnd != null) {
+			allocatedBytes = 0;
+			for (Map.Entry<Long, Long> entry : allocatedAtEnd.entrySet()) {
+				allocatedBytes += entry.getValue() - allocatedAtStart.getOrDefault(entry.getKey(), 0L); // Threads started meanwhile count from 0
+			}
+		}
+		gcCount = gcCount() - gcCountAtStart;
+		gcMillis = gcMillis() - gcMillisAtStart;
+	}
+
+	/**
+	 * @param latencyNanos from when the request should have been sent until its response was read, -1 if it failed
+	 */
+	void record(String type, long latencyNanos) {
+		if (latencyNanos < 0) {
+			errors.computeIfAbsent(type, key -> new AtomicLong()).incrementAndGet();
+			allErrors.incrementAndGet();
+		} else {
+			latencies.computeIfAbsent(type, key -> new LatencyHistogram()).record(latencyNanos / 1000);
+			allLatencies.record(latencyNanos / 1000);
+		}
+	}
+
+	/**
+	 * Metrics by name, as saved in a baseline : "throughput" (successful requests per second), "&lt;type&gt;.p99" (milliseconds)..., "allocation.mbPerSecond", "allocation.kbPerRequest"
+	 */
+	Map<String, Double> toMetrics() {
+		Map<String, Double> res = new TreeMap<>();
+		res.put("throughput", allLatencies.getCount() / seconds);
+		res.put("errors", (double) allErrors.get());
+		addPercentiles(res, "all", allLatencies);
+		for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+			addPercentiles(res, entry.getKey(), entry.getValue());
+		}
+		if (allocatedBytes >= 0) {
+			res.put("allocation.mbPerSecond", allocatedBytes / seconds / (1 << 20));
+			res.put("allocation.kbPerRequest", allLatencies.getCount() == 0 ? 0 : (double) allocatedBytes / allLatencies.getCount() / 1024);
+		}
+		return res;
+	}
+
+	void print() {
+		System.out.println(String.format(Locale.ROOT, "Throughput : %.0f requests/s, errors : %d", allLatencies.getCount() / seconds, allErrors.get()));
+		System.out.println("Latency (ms) :");
+		printLatencies("all", allLatencies);
+		for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+			printLatencies(entry.getKey(), entry.getValue());
+		}
+		if (allocatedBytes >= 0) {
+			Map<String, Double> metrics = toMetrics();
+			System.out.println(String.format(Locale.ROOT, "Allocated by the server side (application, container and in-process database) : %.1f MB/s, %.1f KB per request",
+				metrics.get("allocation.mbPerSecond"), metrics.get("allocation.kbPerRequest")));
+		} else {
+			System.out.println("Allocations can't be measured on this JVM");
+		}
+		System.out.println("Garbage collections : " + gcCount + ", " + gcMillis + " ms in total");
+	}
+
+	/**
+	 * Saves the metrics, with the settings of the run, so that later runs can be compared to them.
+	 */
+	void saveBaseline(File file, Map<String, String> settings) throws IOException {
+		Properties properties = new Properties();
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			properties.setProperty("setting." + setting.getKey(), setting.getValue());
+		}
+		for (Map.Entry<String, Double> metric : toMetrics().entrySet()) {
+			properties.setProperty(metric.getKey(), String.format(Locale.ROOT, "%.3f", metric.getValue()));
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if (parent != null) {
+			parent.mkdirs();
+		}
+		try (OutputStream output = new FileOutputStream(file)) {
+			properties.store(output, "LoadTest baseline, replaced with -Dloadtest.saveBaseline=true");
+		}
+		System.out.println("Baseline saved to " + file);
+	}
+
+	/**
+	 * Prints each metric next to its value in the baseline.
+	 * @param tolerancePercent how much worse than the baseline a metric may be
+	 * @return the number of regressions : lower throughput, higher latency or allocation, more errors
+	 */
+	int compareToBaseline(File file, Map<String, String> settings, double tolerancePercent) throws IOException {
+		Properties baseline = new Properties();
+		try (InputStream input = new FileInputStream(file)) {
+			baseline.load(input);
+		}
+		for (Map.Entry<String, String> setting : settings.entrySet()) {
+			String expected = baseline.getProperty("setting." + setting.getKey());
+			if (expected != null && !expected.equals(setting.getValue())) {
+				System.out.println("Warning : the baseline was measured with " + setting.getKey() + "=" + expected + ", not " + setting.getValue());
+			}
+		}
+
+		System.out.println("Compared to " + file + " (tolerance " + tolerancePercent + "%) :");
+		int regressions = 0;
+		for (Map.Entry<String, Double> metric : toMetrics().entrySet()) {
+			String expected = baseline.getProperty(metric.getKey());
+			if (expected == null) {
+				continue;
+			}
+			double before = Double.parseDouble(expected);
+			double now = metric.getValue();
+			double change = before == 0 ? 0 : (now - before) / before * 100;
+			boolean regression = isRegression(metric.getKey(), before, now, tolerancePercent);
+			if (regression) {
+				regressions++;
+			}
+			System.out.println(String.format(Locale.ROOT, "  %-28s %12.3f -> %12.3f  %+7.1f%%%s", metric.getKey(), before, now, change, regression ? "  REGRESSION" : ""));
+		}
+		return regressions;
+	}
+
+	private static boolean isRegression(String name, double before, double now, double tolerancePercent) {
+		double allowed = Math.abs(before) * tolerancePercent / 100;
+		if (name.equals("throughput")) {
+			return now < before - allowed;
+		} else if (name.equals("errors")) {
+			return now > before;
+		} else if (name.startsWith("allocation.")) {
+			return now > before + allowed;
+		}
+		return now > before + Math.max(allowed, MIN_LATENCY_DELTA_MILLIS); // Latency
+	}
+
+	private static void addPercentiles(Map<String, Double> metrics, String type, LatencyHistogram histogram) {
+		for (double percentile : PERCENTILES) {
+			metrics.put(type + ".p" + formatPercentile(percentile), histogram.getPercentile(percentile) / 1000.0);
+		}
+	}
+
+	private void printLatencies(String type, LatencyHistogram histogram) {
+		StringBuilder line = new StringBuilder(String.format(Locale.ROOT, "  %-12s %8d requests", type, histogram.getCount()));
+		for (double percentile : PERCENTILES) {
+			line.append(String.format(Locale.ROOT, ", p%s %.2f", formatPercentile(percentile), histogram.getPercentile(percentile) / 1000.0));
+		}
+		line.append(String.format(Locale.ROOT, ", max %.2f", histogram.getMax() / 1000.0));
+		AtomicLong typeErrors = errors.get(type);
+		if (typeErrors != null) {
+			line.append(", errors ").append(typeErrors.get());
+		}
+		System.out.println(line);
+	}
+
+	/** 50 gives "50", 99.9 gives "999" */
+	private static String formatPercentile(double percentile) {
+		return percentile == Math.rint(percentile) ? String.valueOf((int) percentile) : String.valueOf(percentile).replace(".", "");
+	}
+
+	/**
+	 * @return the bytes allocated so far by each thread of the application (the load generator excluded), or null if the JVM can't tell
+	 */
+	private static Map<Long, Long> allocatedBytesByThread() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			return null;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+		threads.setThreadAllocatedMemoryEnabled(true);
+		Map<Long, Long> res = new HashMap<>();
+		for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+			if (info != null && !info.getThreadName().startsWith(CLIENT_THREAD_PREFIX)) {
+				long allocated = threads.getThreadAllocatedBytes(info.getThreadId());
+				if (allocated >= 0) {
+					res.put(info.getThreadId(), allocated);
+				}
+			}
+		}
+		return res;
+	}
+
+	private static long gcCount() {
+		long res = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			res += Math.max(0, bean.getCollectionCount());
+		}
+		return res;
+	}
+
+	private static long gcMillis() {
+		long res = 0;
+		for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+			res += Math.max(0, bean.getCollectionTime());
+		}
+		return res;
+	}
+}
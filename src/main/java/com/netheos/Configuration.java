@@ -0,0 +1,74 @@
+package com.netheos;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+
+/**
+ * Settings of the application that may change from one deployment to another, so that they can be tuned without recompiling. <BR>
+ * Values are read from {@link #PROPERTIES_FILE} at the root of the classpath (WEB-INF/classes once deployed). Any of them can be overridden with a JVM system property of the same name (ex : -Dcache.maxEntries=5000), which is handy for tests and for quick changes on a single server. <BR>
+ * Every getter takes a default value, used when the setting is absent, so that the file only needs to contain what differs from the defaults.
+ */
+public class Configuration {
+	/** Name of the file containing the settings, at the root of the classpath */
+	public static final String PROPERTIES_FILE = "/netheos.properties";
+
+	/** Settings from the file, loaded once when the class is first used */
+	private static final Properties PROPERTIES = load();
+
+	/** No instance needed, everything is static */
+	private Configuration() {
+	}
+
+	/** Returns the setting with given name, or the default value if it is not set anywhere */
+	public static String getString(String name, String defaultValue) {
+		String value = System.getProperty(name);
+		if (value == null) {
+			value = PROPERTIES.getProperty(name);
+		}
+		return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the setting is not a number, as it is better to fail at startup than to silently use another value
+	 */
+	public static int getInt(String name, int defaultValue) {
+		String value = getString(name, null);
+		try {
+			return value == null ? defaultValue : Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " should be an integer, found " + value, e);
+		}
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the setting is not a number
+	 */
+	public static long getLong(String name, long defaultValue) {
+		String value = getString(name, null);
+		try {
+			return value == null ? defaultValue : Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Setting " + name + " should be an integer, found " + value, e);
+		}
+	}
+
+	/** "true" (whatever the case) is true, anything else is false */
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getString(name, null);
+		return value == null ? defaultValue : Boolean.parseBoolean(value);
+	}
+
+	private static Properties load() {
+		Properties res = new Properties();
+		try (InputStream input = Configuration.class.getResourceAsStream(PROPERTIES_FILE)) {
+			if (input != null) { // No file is fine, defaults will be used
+				res.load(input);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not read " + PROPERTIES_FILE, e);
+		}
+		return res;
+	}
+}
@@ -0,0 +1,205 @@
+package com.netheos.db;
+
+import java.util.*;
+
+import org.bson.Document;
+
+import com.netheos.Configuration;
+import com.netheos.servlets.FAQServlet;
+
+/**
+ * What every {@link FAQStore} does the same way : "get_match" queries and ranked searches are answered by the in-memory {@link FAQIndex}, and responses are kept in a {@link ResponseCache}. <BR>
+ * Subclasses fill the index with every stored FAQ, and keep it and the cache up to date on every write.
+ */
+public abstract class AbstractFAQStore implements FAQStore {
+	/** Setting for the maximum number of responses kept in cache, 0 to disable the cache */
+	public static final String CACHE_MAX_ENTRIES_SETTING = "cache.maxEntries";
+	/** Setting for how long (milliseconds) a cached response stays valid, even if nothing was written. 0 means until the next write */
+	public static final String CACHE_TTL_SETTING = "cache.ttlMillis";
+	/** Setting for the maximum number of documents of a response to still be cached : a broad "get_match" or a huge "get_all" (which would defeat the purpose of streaming it) would take too much memory */
+	public static final String CACHE_MAX_DOCUMENTS_SETTING = "cache.maxDocumentsPerEntry";
+
+	/** Setting for how long (milliseconds) a "get_match" or tag query may run, in memory or in the database, before being stopped as too expensive. 0 for no limit */
+	public static final String QUERY_MAX_TIME_SETTING = "query.maxTimeMillis";
+	/** Setting for the number of FAQ a "get_match" or tag query may return, beyond which it is refused as too expensive. 0 for no limit */
+	public static final String QUERY_MAX_RESULTS_SETTING = "query.maxResults";
+	/** Setting for the maximum length of a "get_match" pattern, see {@link MatchQuery}. 0 for no limit */
+	public static final String MATCH_MAX_LENGTH_SETTING = "match.maxLength";
+	/** Setting for the maximum number of unbounded repetitions ("*", "+") in a "get_match" pattern, see {@link MatchQuery}. 0 for no limit */
+	public static final String MATCH_MAX_REPETITIONS_SETTING = "match.maxRepetitions";
+
+	/** Setting for keeping the json of the FAQ outside the heap, already encoded, so that "get_match" and "get_all" json responses are copied from there rather than built from Strings. See {@link PayloadStore} */
+	public static final String PAYLOADS_OFF_HEAP_SETTING = "payloads.offHeap";
+
+	/** Answer to any request for a format other than {@link FAQServlet#JSON_FORMAT} */
+	protected static final String ONLY_JSON_MESSAGE = "Only json is accepted as a format for now";
+
+	/** In-memory index of the FAQ, used to answer "get_match" queries without scanning them all. Filled by the subclass, and kept up to date on every insertion */
+	protected final FAQIndex faqIndex = new FAQIndex(Configuration.getBoolean(PAYLOADS_OFF_HEAP_SETTING, false));
+
+	/** Responses already computed, dropped on every write. See {@link #CACHE_MAX_ENTRIES_SETTING}, {@link #CACHE_TTL_SETTING} and {@link #CACHE_MAX_DOCUMENTS_SETTING} */
+	protected final ResponseCache responseCache = new ResponseCache(
+		Configuration.getInt(CACHE_MAX_ENTRIES_SETTING, 1000),
+		Configuration.getLong(CACHE_TTL_SETTING, 60_000),
+		Configuration.getInt(CACHE_MAX_DOCUMENTS_SETTING, 10_000));
+
+	@Override
+	public ResponseCacheMBean getCacheStatistics() {
+		return responseCache;
+	}
+
+	@Override
+	public FAQIndexMBean getIndexStatistics() {
+		return faqIndex;
+	}
+
+	/**
+	 * Returns a list of FAQ when either the question or answer contains the given String. <BR>
+	 * Served from the in-memory {@link FAQIndex} rather than by a regex query on the database, as an unanchored regex can't use any mongo index and would scan the whole collection every time.
+	 * @param format the string "json". Only one accepted for now, but could accept "xml", "human_readable" or more later. How the format is specified could be different (instead of a hardcoded String) depending on what's more convenient, readable and less error-prone. Ex : Integer constants, Strings in a file (xml ? json ? cvs ?), booleans if only 2 formats, enums, different methods for each format... or something else.
+	 *
+	 * FIXME possible flaws found, to discuss with client :
+	 * - What if patternString is 2 (or more) words ? Shouldn't we check if those 2 words appear separately, possibly in another order (word2 stuff word1) ? 
+	 * - What if only one of them appears ? Does that count as a match ?
+	 * - Should there be a list of stop-words like in SEO, to avoid words that are too common and meaningless to the search (in, the, at, be, it, etc) ?
+	 * - What about when the pattern is inside a word ? Should that still count as a match ?
+	 * {@link #search} answers the first three with a ranked search on words, this method keeps the original substring semantic.
+	 */
+	@Override
+	public List<String> getFAQMatches(String patternString, String format) { 
+		return getFAQMatches(patternString, format, null, true);
+	}
+
+	/**
+	 * Same as {@link #getFAQMatches(String, String)}, but only among the FAQ having the given tags. The candidates are narrowed by tag before any text is matched. <BR>
+	 * The pattern is {@link MatchQuery#plan planned} first : literals are found without any regex, patterns which could run for too long are refused. The query is then stopped if it exceeds {@link #QUERY_MAX_TIME_SETTING} or {@link #QUERY_MAX_RESULTS_SETTING}.
+	 * @param tags tags the FAQ must have, or null for all FAQ
+	 * @param allTags true if FAQ must have all the tags, false if any of them is enough
+	 * @throws QueryTooExpensiveException if the pattern is refused, or the query stopped
+	 * @throws java.util.regex.PatternSyntaxException if the pattern is not a valid regex
+	 */
+	@Override
+	public List<String> getFAQMatches(String patternString, String format, List<String> tags, boolean allTags) {
+		List<String> res = new LinkedList<>();
+
+		if (patternString == null || patternString.equals("")) {
+			res.add("\"" + FAQServlet.PARAMETER_STRING_MATCH + "\" parameter must be set.");
+		} else {
+			if (isJsonFormat(format)) {
+				MatchQuery query = MatchQuery.plan(patternString, Configuration.getInt(MATCH_MAX_LENGTH_SETTING, 200), Configuration.getInt(MATCH_MAX_REPETITIONS_SETTING, 3));
+				// The pattern is used as is in the key : it is a case-sensitive regex, "trimming" or lowering it would change its meaning
+				String cacheKey = "match:" + FAQServlet.JSON_FORMAT + ":" + getTagsCacheKey(tags, allTags) + ":" + query.getPatternString();
+				res.addAll(responseCache.get(cacheKey, () -> faqIndex.findMatches(query, tags, allTags, getQueryMaxTimeMillis(), getQueryMaxResults())));
+			} else {
+				res.add(ONLY_JSON_MESSAGE);
+			}
+		}
+		return res;
+	}
+
+	/**
+	 * Same as {@link #getFAQMatches(String, String, List, boolean)} in json, read from the off-heap payloads of the index. <BR>
+	 * Not cached : the response cache would keep on the heap the Strings the payloads avoid, and the bytes are already there to be copied.
+	 * @return null if the payloads aren't kept, see {@link #PAYLOADS_OFF_HEAP_SETTING}
+	 * @throws QueryTooExpensiveException if the pattern is refused, or the query stopped
+	 * @throws java.util.regex.PatternSyntaxException if the pattern is not a valid regex
+	 */
+	@Override
+	public JsonPayloads getFAQMatchPayloads(String patternString, List<String> tags, boolean allTags) {
+		if (!faqIndex.hasPayloads()) {
+			return null;
+		}
+		MatchQuery query = MatchQuery.plan(patternString, Configuration.getInt(MATCH_MAX_LENGTH_SETTING, 200), Configuration.getInt(MATCH_MAX_REPETITIONS_SETTING, 3));
+		return faqIndex.findMatchPayloads(query, tags, allTags, getQueryMaxTimeMillis(), getQueryMaxResults());
+	}
+
+	/**
+	 * Returns the FAQ best matching the words of the query, best first : every word counts, rare words more than common ones, words of the question more than words of the answer, and stop-words ("the", "how"...) not at all. See {@link FAQIndex#search}. <BR>
+	 * Served from memory, and as fast whatever the size of the FAQ, since only the best FAQ are kept.
+	 * @param limit maximum number of FAQ returned
+	 * @return the FAQ, none if the query only contains stop-words
+	 */
+	@Override
+	public List<String> search(String query, int limit, String format) {
+		List<String> res = new LinkedList<>();
+		if (query == null || query.trim().isEmpty()) {
+			res.add("\"" + FAQServlet.PARAMETER_STRING_QUERY + "\" parameter must be set.");
+		} else if (isJsonFormat(format)) {
+			// Key on the words rather than the query, so that "Join the team ?" and "join team" share their entry
+			res.addAll(responseCache.get("search:" + FAQServlet.JSON_FORMAT + ":" + limit + ":" + TextAnalyzer.tokenize(query), () -> faqIndex.search(query, limit)));
+		} else {
+			res.add(ONLY_JSON_MESSAGE);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the questions and tags completing what the user typed so far, most popular first. <BR>
+	 * Not cached : answered from memory in a few microseconds, less than it would take to build a cache key.
+	 * @param limit maximum number of suggestions returned
+	 */
+	@Override
+	public List<String> suggest(String prefix, int limit, String format) {
+		List<String> res = new LinkedList<>();
+		if (prefix == null || prefix.trim().isEmpty()) {
+			res.add("\"" + FAQServlet.PARAMETER_STRING_PREFIX + "\" parameter must be set.");
+		} else if (isJsonFormat(format)) {
+			res.addAll(faqIndex.suggest(prefix, limit));
+		} else {
+			res.add(ONLY_JSON_MESSAGE);
+		}
+		return res;
+	}
+
+	/**
+	 * Number of FAQ having each tag, for tag clouds and facets. Served from memory.
+	 */
+	@Override
+	public Map<String, Integer> getTagCounts() {
+		return faqIndex.getTagCounts();
+	}
+
+	/** @return how long a query may run, see {@link #QUERY_MAX_TIME_SETTING} */
+	protected static long getQueryMaxTimeMillis() {
+		return Configuration.getLong(QUERY_MAX_TIME_SETTING, 2000);
+	}
+
+	/** @return how many FAQ a query may return, see {@link #QUERY_MAX_RESULTS_SETTING} */
+	protected static int getQueryMaxResults() {
+		return Configuration.getInt(QUERY_MAX_RESULTS_SETTING, 10_000);
+	}
+
+	/**
+	 * @return the FAQ found, if there aren't more than {@link #QUERY_MAX_RESULTS_SETTING}
+	 * @throws QueryTooExpensiveException otherwise
+	 */
+	protected static List<String> checkResultCount(List<String> found) {
+		int maxResults = getQueryMaxResults();
+		if (maxResults > 0 && found.size() > maxResults) {
+			throw new QueryTooExpensiveException("more than " + maxResults + " FAQ match");
+		}
+		return found;
+	}
+
+	/** @return true if the format is {@link FAQServlet#JSON_FORMAT}, whatever the case and surrounding spaces */
+	protected static boolean isJsonFormat(String format) {
+		return format != null && format.trim().toLowerCase().equals(FAQServlet.JSON_FORMAT);
+	}
+
+	/** Part of a cache key describing a tag filter, the same whatever the order of the tags */
+	protected static String getTagsCacheKey(List<String> tags, boolean allTags) {
+		if (tags == null) {
+			return "";
+		}
+		return (allTags ? "all" : "any") + new TreeSet<>(tags);
+	}
+
+	/** The document stored for a FAQ, without identifier */
+	protected static Document toDocument(String question, String answer, List<String> tags) {
+		Document document = new Document();
+		document.put(DatabaseAccessor.FAQ_FIELD_QUESTION, question);
+		document.put(DatabaseAccessor.FAQ_FIELD_ANSWER, answer);
+		document.put(DatabaseAccessor.FAQ_FIELD_TAGS, tags);
+		return document;
+	}
+}
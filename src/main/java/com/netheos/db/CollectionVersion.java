@@ -0,0 +1,48 @@
+package com.netheos.db;
+
+/**
+ * Version of the FAQ collection : a number increased by every write, so that clients can be told their copy of a response is still valid (see {@link com.netheos.servlets.FAQServlet}, ETag header). <BR>
+ * The epoch identifies the counter itself : if it is ever created again (database emptied, new file...), its numbers start over but the versions can't be mistaken for the previous ones. Immutable.
+ */
+public final class CollectionVersion {
+	private final String epoch;
+	private final long number;
+	private final long lastModifiedMillis;
+
+	public CollectionVersion(String epoch, long number, long lastModifiedMillis) {
+		this.epoch = epoch;
+		this.number = number;
+		this.lastModifiedMillis = lastModifiedMillis;
+	}
+
+	public String getEpoch() {
+		return epoch;
+	}
+
+	public long getNumber() {
+		return number;
+	}
+
+	/** @return when the collection was last written, in milliseconds since the epoch */
+	public long getLastModifiedMillis() {
+		return lastModifiedMillis;
+	}
+
+	/** @return true if the other version comes from the same counter, and is older than this one */
+	boolean isNewerThan(CollectionVersion other) {
+		return other == null || !epoch.equals(other.epoch) || number > other.number;
+	}
+
+	/**
+	 * @param variant what, besides the URL, the response depends on (json or HTML...)
+	 * @return a weak ETag for a response computed from this version : responses compressed or not are equivalent
+	 */
+	public String toETag(String variant) {
+		return "W/\"" + epoch + "-" + number + "-" + variant + "\"";
+	}
+
+	@Override
+	public String toString() {
+		return epoch + "-" + number;
+	}
+}
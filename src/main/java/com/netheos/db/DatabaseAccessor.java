@@ -4,116 +4,669 @@ package com.netheos.db;
 // I usually avoid using *, and just let the IDE import all that is needed, one by one, but I didn't use and set up a real, complete, fully functionnal IDE for such a small project 
 import com.mongodb.*;
 import java.util.*;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import com.mongodb.client.*;
 
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.InsertManyOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.Indexes;
 import org.bson.conversions.Bson;
-import java.util.regex.Pattern;
+import org.bson.types.ObjectId;
 
+import com.netheos.Configuration;
+import com.netheos.monitoring.Metrics;
 import com.netheos.servlets.FAQServlet;
 
 /**
  * Singleton class allowing access to the database through various methods.
- * Intended to avoid database code in the controller, therefore good only for a single kind of database (here mongoDB) ; a new class will be needed if a new database is used (ex: mysql)
+ * Intended to avoid database code in the controller, therefore good only for a single kind of database (here mongoDB) ; a new {@link FAQStore} will be needed if a new database is used (ex: mysql), as {@link EmbeddedFAQStore} was for running without any database
  */
-public class DatabaseAccessor {
-	/** The only instance of the class allowed to exist, as per the singleton design pattern */
-	private static DatabaseAccessor instance;
+public class DatabaseAccessor extends AbstractFAQStore {
+	/** Client to the database server. It holds a connection pool and monitoring threads, so there must be only one, closed with {@link #close()} */
+	private final MongoClient mongoClient;
 
-	/** The database containing the various collections. The whole class could be handled differently if there were more than one database */
-	private MongoDatabase database;
+	/** The database containing the various collections, for writes. The whole class could be handled differently if there were more than one database */
+	private final MongoDatabase database;
 
-	/* The following constants could be fetched from config files, depending on the project context. Ideally in a dedicated class */
+	/** Same database, using the configured {@link #MONGO_READ_PREFERENCE_SETTING read preference}, for reads (they may then be served by secondaries, slightly behind the primary) */
+	private final MongoDatabase readDatabase;
+
+	/** Keeps {@link #faqIndex} up to date with the FAQ inserted by other nodes, null unless {@link #REPLICATION_ENABLED_SETTING replication} is enabled */
+	private final FAQReplica replica;
+
+	/** Inserts the FAQ added one by one in batches, from a thread of its own. Null unless {@link #WRITE_BEHIND_ENABLED_SETTING write-behind} is enabled */
+	private final WriteBehindQueue writeBehindQueue;
+
+	/** Version of the FAQ collection shared by every node, increased after each write, for conditional requests */
+	private final VersionTracker versionTracker;
+
+	/** File where the index is saved, to be loaded at the next startup instead of reading the whole collection. Null unless {@link #SNAPSHOT_PATH_SETTING snapshots} are enabled */
+	private final Path snapshotPath;
+	/** Version of the collection of the last snapshot written or loaded, so that an unchanged index isn't written again */
+	private volatile CollectionVersion snapshotVersion;
+	/** Held while a snapshot is written, so that the last regular one and the one written when the application stops don't share the temporary file */
+	private final Object snapshotLock = new Object();
+	/** Writes the snapshot regularly, null unless snapshots are enabled with an interval */
+	private final ScheduledExecutorService snapshotScheduler;
+	/** Whether {@link #start} succeeded : the index is loaded, and the version followed */
+	private volatile boolean started = false;
+
+	/* The following constants are the defaults of the settings below, used if nothing is configured (see com.netheos.Configuration) */
 	public static final String MONGO_URL = "mongodb://localhost";
 	public static final String MONGO_PORT = "27017";
 	public static final String DATABASE_NAME = "netheos";
 	public static final String FAQ_COLLECTION_NAME = "faq";
+	/** Collection holding the version of the FAQ collection, see {@link MongoVersionCounter} */
+	public static final String VERSION_COLLECTION_NAME = "faq_versions";
 	public static final String FAQ_FIELD_QUESTION = "question";
 	public static final String FAQ_FIELD_ANSWER = "answer";
 	public static final String FAQ_FIELD_TAGS = "tags";
 
-	/** Private constructor and no public constructor, as per the singleton design pattern */
+	/** Setting for the connection string (ex : mongodb://host1:27017,host2:27017/?replicaSet=rs0). Options it contains take precedence over the settings below */
+	public static final String MONGO_URI_SETTING = "mongo.uri";
+	/** Setting for the name of the database */
+	public static final String MONGO_DATABASE_SETTING = "mongo.database";
+	/** Setting for the maximum number of connections per server. Should be about the number of servlet container threads */
+	public static final String MONGO_MAX_POOL_SIZE_SETTING = "mongo.maxPoolSize";
+	/** Setting for the number of connections per server kept open even when idle */
+	public static final String MONGO_MIN_POOL_SIZE_SETTING = "mongo.minPoolSize";
+	/** Setting for how many threads may wait for a connection, as a multiple of the maximum pool size. Threads beyond that get an error straight away */
+	public static final String MONGO_WAIT_QUEUE_MULTIPLE_SETTING = "mongo.waitQueueMultiple";
+	/** Setting for how long (milliseconds) a thread may wait for a connection of the pool */
+	public static final String MONGO_MAX_WAIT_TIME_SETTING = "mongo.maxWaitTimeMillis";
+	/** Setting for how long (milliseconds) to wait when opening a connection */
+	public static final String MONGO_CONNECT_TIMEOUT_SETTING = "mongo.connectTimeoutMillis";
+	/** Setting for how long (milliseconds) to wait for an answer on an open connection, 0 meaning forever */
+	public static final String MONGO_SOCKET_TIMEOUT_SETTING = "mongo.socketTimeoutMillis";
+	/** Setting for how long (milliseconds) to wait for a suitable server to be available */
+	public static final String MONGO_SERVER_SELECTION_TIMEOUT_SETTING = "mongo.serverSelectionTimeoutMillis";
+	/** Setting for how long (milliseconds) an unused connection stays in the pool, 0 meaning forever */
+	public static final String MONGO_MAX_IDLE_TIME_SETTING = "mongo.maxConnectionIdleTimeMillis";
+	/** Setting for where reads go (primary, primaryPreferred, secondary, secondaryPreferred, nearest). Writes always go to the primary */
+	public static final String MONGO_READ_PREFERENCE_SETTING = "mongo.readPreference";
+
+	/** Setting for how many documents the database sends at once while reading a collection. Bigger batches mean fewer round trips, but more memory held by the cursor */
+	public static final String MONGO_CURSOR_BATCH_SIZE_SETTING = "mongo.cursorBatchSize";
+
+	/** Setting to serve every read of the FAQ collection from memory, following the insertions made by other nodes. Needs a replica set */
+	public static final String REPLICATION_ENABLED_SETTING = "replication.enabled";
+	/** Setting for the staleness (milliseconds) beyond which the whole collection is read again, in case the changes stopped arriving */
+	public static final String REPLICATION_MAX_STALENESS_SETTING = "replication.maxStalenessMillis";
+	/** Setting for how long (milliseconds) the database waits for a change before answering there is none. The staleness stays around that value */
+	public static final String REPLICATION_AWAIT_SETTING = "replication.awaitMillis";
+
+	/** Setting for how often (milliseconds) each node reads the version of the FAQ collection, to follow the writes of the other nodes. Conditional requests may be answered "Not Modified" for that long after another node wrote */
+	public static final String VERSION_REFRESH_SETTING = "version.refreshMillis";
+
+	/** Setting for the file where the index is saved (see {@link IndexSnapshot}) to restart faster. None by default : the index is built from the whole collection at every startup */
+	public static final String SNAPSHOT_PATH_SETTING = "snapshot.path";
+	/** Setting for how often (milliseconds) the index is saved if FAQ were written since the last time, 0 meaning only when the application stops. Saving more often means less to read from the database after a crash */
+	public static final String SNAPSHOT_INTERVAL_SETTING = "snapshot.intervalMillis";
+
+	/** Setting to insert the FAQ added one by one in batches, from a thread of their own, rather than each in its own round trip to the database */
+	public static final String WRITE_BEHIND_ENABLED_SETTING = "writeBehind.enabled";
+	/** Setting for when a FAQ added one by one is considered inserted : "flush" (once written to the database, in a batch) or "enqueue" (as soon as queued), see {@link WriteBehindQueue.Durability} */
+	public static final String WRITE_BEHIND_DURABILITY_SETTING = "writeBehind.durability";
+	/** Setting for the number of FAQ waiting to be written beyond which new ones wait for room */
+	public static final String WRITE_BEHIND_QUEUE_SIZE_SETTING = "writeBehind.queueSize";
+	/** Setting for how long (milliseconds) a new FAQ waits for room in a full queue before being refused with a 503 error */
+	public static final String WRITE_BEHIND_MAX_WAIT_SETTING = "writeBehind.maxWaitMillis";
+	/** Setting for the maximum number of FAQ written at once */
+	public static final String WRITE_BEHIND_BATCH_SIZE_SETTING = "writeBehind.maxBatchSize";
+	/** Setting for how long (milliseconds) the first FAQ of a batch waits for others before the batch is written. With 0, a batch holds whatever was added while the previous one was written, so nobody waits for nothing when admins add few FAQ */
+	public static final String WRITE_BEHIND_MAX_DELAY_SETTING = "writeBehind.maxDelayMillis";
+	/** Setting for how long (milliseconds) closing waits for the queued FAQ to be written, and how long an admin waits for a FAQ in "flush" durability */
+	public static final String WRITE_BEHIND_DRAIN_TIMEOUT_SETTING = "writeBehind.drainTimeoutMillis";
+
+	/** Name of the identifier field of every mongo document, used for pagination */
+	public static final String FIELD_ID = "_id";
+
+	/** Name under which the cache statistics are visible through JMX */
+	public static final String CACHE_MBEAN_NAME = "com.netheos:type=ResponseCache";
+	/** Name under which the write-behind queue is visible through JMX */
+	public static final String WRITE_BEHIND_MBEAN_NAME = "com.netheos:type=WriteBehindQueue";
+	/** Name under which the replication state is visible through JMX */
+	public static final String REPLICA_MBEAN_NAME = "com.netheos:type=FAQReplica";
+	/** Name under which the version of the collection is visible through JMX */
+	public static final String VERSION_MBEAN_NAME = "com.netheos:type=VersionTracker";
+	/** Name under which the size of the in-memory index (and its off-heap memory) is visible through JMX */
+	public static final String INDEX_MBEAN_NAME = "com.netheos:type=FAQIndex";
+
+	/**
+	 * Private constructor and no public constructor, as per the singleton design pattern. <BR>
+	 * Nothing is read from the database yet (the client connects in the background), see {@link #start} : an unreachable database can't make the creation of the singleton fail.
+	 */
 	private DatabaseAccessor() {
-		MongoClient mongoClient = new MongoClient(new MongoClientURI(MONGO_URL + ":" + MONGO_PORT));
-		this.database = mongoClient.getDatabase(DATABASE_NAME);
+		String uri = Configuration.getString(MONGO_URI_SETTING, MONGO_URL + ":" + MONGO_PORT);
+		this.mongoClient = new MongoClient(new MongoClientURI(uri, buildClientOptions()));
+		try {
+			this.database = mongoClient.getDatabase(Configuration.getString(MONGO_DATABASE_SETTING, DATABASE_NAME));
+			this.readDatabase = database.withReadPreference(ReadPreference.valueOf(Configuration.getString(MONGO_READ_PREFERENCE_SETTING, "primary")));
+			FAQReplica faqReplica = null;
+			if (Configuration.getBoolean(REPLICATION_ENABLED_SETTING, false)) {
+				MongoCollection<Document> faqCollection = database.getCollection(FAQ_COLLECTION_NAME); // The primary, where the changes come from
+				faqReplica = new FAQReplica(faqIndex, responseCache::invalidate,
+					new MongoChangeSource(faqCollection, Configuration.getLong(REPLICATION_AWAIT_SETTING, 1000)),
+					consumer -> forEachMissingFAQ(faqCollection, consumer),
+					Configuration.getLong(REPLICATION_MAX_STALENESS_SETTING, 30_000), System::currentTimeMillis);
+			}
+			this.replica = faqReplica;
+			String snapshotSetting = Configuration.getString(SNAPSHOT_PATH_SETTING, null);
+			this.snapshotPath = snapshotSetting == null ? null : Paths.get(snapshotSetting);
+			// With replication, the writes of other nodes arrive by themselves. Without, they are looked for in the collection
+			VersionTracker.CatchUp catchUp = faqReplica != null ? faqReplica::hasReached : timeMillis -> {
+				addMissingFAQ();
+				return true;
+			};
+			this.versionTracker = new VersionTracker(new MongoVersionCounter(database.getCollection(VERSION_COLLECTION_NAME), FAQ_COLLECTION_NAME), catchUp,
+				Configuration.getLong(VERSION_REFRESH_SETTING, 1000), System::currentTimeMillis);
+			long snapshotInterval = Configuration.getLong(SNAPSHOT_INTERVAL_SETTING, 600_000);
+			if (snapshotPath != null && snapshotInterval > 0) {
+				this.snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+					Thread thread = new Thread(runnable, "faq-snapshot");
+					thread.setDaemon(true);
+					return thread;
+				});
+				snapshotScheduler.scheduleWithFixedDelay(this::writeSnapshot, snapshotInterval, snapshotInterval, TimeUnit.MILLISECONDS);
+			} else {
+				this.snapshotScheduler = null;
+			}
+			if (faqReplica != null) {
+				Metrics.registerMBean(faqReplica, REPLICA_MBEAN_NAME);
+			}
+			Metrics.registerMBean(versionTracker, VERSION_MBEAN_NAME);
+			if (Configuration.getBoolean(WRITE_BEHIND_ENABLED_SETTING, false)) {
+				this.writeBehindQueue = new WriteBehindQueue(this::insertAndIndex, () -> {
+						responseCache.invalidate();
+						versionTracker.written(); // Only now can other nodes read the batch, and it is in the index : the new version describes it
+					},
+					WriteBehindQueue.Durability.valueOf(Configuration.getString(WRITE_BEHIND_DURABILITY_SETTING, "flush").toUpperCase()),
+					Configuration.getInt(WRITE_BEHIND_QUEUE_SIZE_SETTING, 10_000),
+					Configuration.getInt(WRITE_BEHIND_BATCH_SIZE_SETTING, 500),
+					Configuration.getLong(WRITE_BEHIND_MAX_DELAY_SETTING, 0),
+					Configuration.getLong(WRITE_BEHIND_MAX_WAIT_SETTING, 1000),
+					Configuration.getLong(WRITE_BEHIND_DRAIN_TIMEOUT_SETTING, 30_000)); // An admin waits for a batch at most as long as closing does
+				Metrics.registerMBean(writeBehindQueue, WRITE_BEHIND_MBEAN_NAME);
+			} else {
+				this.writeBehindQueue = null;
+			}
+			Metrics.registerMBean(responseCache, CACHE_MBEAN_NAME);
+			Metrics.registerMBean(faqIndex, INDEX_MBEAN_NAME);
+		} catch (RuntimeException | Error e) {
+			mongoClient.close(); // Its threads would never be stopped otherwise
+			throw e;
+		}
+	}
+
+	/**
+	 * Holds the only instance of the class allowed to exist, as per the singleton design pattern. <BR>
+	 * The JVM initializes this class once, the first time it is used, and guarantees no other thread sees it before that is done : concurrent first requests can't create several clients (each with its own pool and threads).
+	 */
+	private static class InstanceHolder {
+		private static final DatabaseAccessor INSTANCE = new DatabaseAccessor();
 	}
 
-	/** Returns the singleton instance, creating it first if it doesn't exist */
+	/**
+	 * Returns the singleton instance, creating it first if it doesn't exist, and {@link #start starting} it if it isn't yet
+	 * @throws com.mongodb.MongoException if the database can't be reached to start it. The next call tries again
+	 */
 	public static DatabaseAccessor getInstance() {
-		if (instance == null) {
-			instance = new DatabaseAccessor();
-		}
+		DatabaseAccessor instance = InstanceHolder.INSTANCE;
+		instance.start();
 		return instance;
 	}
 
+	/** Returns the singleton instance, without starting it : for {@link FAQStores}, whose own holder must not read the database either */
+	static DatabaseAccessor getUnstartedInstance() {
+		return InstanceHolder.INSTANCE;
+	}
+
 	/**
-	 * Returns all documents from the collection with provided name, in provided format.
-	 * Here, format is the json used by documents in mongo, but depending on what the front-end/client needs, it could be anything : XML, HTML, some Java object, simple text formatted in a user-friendly readable way...
-	 * @param format the string "json". Only one accepted for now, but could accept "xml", "human_readable" or more later. How the format is specified could be different (instead of a hardcoded String) depending on what's more convenient, readable and less error-prone. Ex : Integer constants, Strings in a file (xml ? json ? cvs ?), booleans if only 2 formats, enums, different methods for each format... or something else
+	 * Reads the database for the first time : creates the index on the tags, reads the version of the collection, then loads the in-memory index (from the snapshot if there is one) and starts following the writes of other nodes. <BR>
+	 * Done on the first {@link #getInstance} rather than when the singleton is created, so that a database unreachable at deployment only fails the requests made meanwhile : the next one tries again. Does nothing once it succeeded.
 	 */
-	public List<String> getWholeCollection(String format, String collectionName) {
-		List<String> res = new LinkedList<>();
-		if (format != null && format.trim().toLowerCase().equals(FAQServlet.JSON_FORMAT)) {
-			MongoCursor<Document> cursor = database.getCollection(collectionName).find().iterator();
-			
+	@Override
+	public void start() {
+		if (started) {
+			return;
+		}
+		synchronized (this) {
+			if (started) {
+				return;
+			}
+			database.getCollection(FAQ_COLLECTION_NAME).createIndex(Indexes.ascending(FAQ_FIELD_TAGS)); // Multikey index, as tags are an array. Does nothing if it already exists
+			versionTracker.start(initial -> {
+				faqIndex.clear(); // What an earlier attempt loaded before failing
+				CollectionVersion loaded = loadSnapshot(initial);
+				if (replica != null) {
+					replica.start(); // Only reads the FAQ missing from the snapshot, if it was loaded
+				} else if (loaded == null) {
+					loadIndex();
+				} else if (loaded.getNumber() < initial.getNumber()) {
+					addMissingFAQ(); // Written since the snapshot
+				}
+			});
+			started = true;
+		}
+	}
+
+	/**
+	 * Releases the connections and threads of the database client. Called when the application is undeployed, see {@link com.netheos.servlets.ApplicationLifecycleListener}. The instance can't be used afterwards.
+	 */
+	@Override
+	public void close() {
+		if (writeBehindQueue != null) {
+			writeBehindQueue.close(Configuration.getLong(WRITE_BEHIND_DRAIN_TIMEOUT_SETTING, 30_000)); // Before the client, which writes what is still queued
+		}
+		if (snapshotScheduler != null) {
+			snapshotScheduler.shutdownNow();
+		}
+		writeSnapshot(); // Once the queue is written, so that the next startup has nothing to read
+		if (replica != null) {
+			replica.close();
+		}
+		versionTracker.close();
+		mongoClient.close();
+	}
+
+	/**
+	 * Driver options from the configuration. Only configured settings are set, the others keep the driver defaults.
+	 */
+	private static MongoClientOptions.Builder buildClientOptions() {
+		MongoClientOptions.Builder builder = MongoClientOptions.builder();
+		builder.addCommandListener(Metrics.getInstance().getMongoCommandListener());
+		MongoClientOptions defaults = builder.build();
+		builder.connectionsPerHost(Configuration.getInt(MONGO_MAX_POOL_SIZE_SETTING, defaults.getConnectionsPerHost()));
+		builder.minConnectionsPerHost(Configuration.getInt(MONGO_MIN_POOL_SIZE_SETTING, defaults.getMinConnectionsPerHost()));
+		builder.threadsAllowedToBlockForConnectionMultiplier(Configuration.getInt(MONGO_WAIT_QUEUE_MULTIPLE_SETTING, defaults.getThreadsAllowedToBlockForConnectionMultiplier()));
+		builder.maxWaitTime(Configuration.getInt(MONGO_MAX_WAIT_TIME_SETTING, defaults.getMaxWaitTime()));
+		builder.connectTimeout(Configuration.getInt(MONGO_CONNECT_TIMEOUT_SETTING, defaults.getConnectTimeout()));
+		builder.socketTimeout(Configuration.getInt(MONGO_SOCKET_TIMEOUT_SETTING, defaults.getSocketTimeout()));
+		builder.serverSelectionTimeout(Configuration.getInt(MONGO_SERVER_SELECTION_TIMEOUT_SETTING, defaults.getServerSelectionTimeout()));
+		builder.maxConnectionIdleTime(Configuration.getInt(MONGO_MAX_IDLE_TIME_SETTING, defaults.getMaxConnectionIdleTime()));
+		return builder;
+	}
+
+	/**
+	 * Reloads the in-memory FAQ index from the whole collection. <BR>
+	 * Done once at startup ; only needed afterwards if the collection was modified without going through this class (mongo shell, another application, tests...). The version of the collection is then increased, as responses may have changed
+	 */
+	@Override
+	public void rebuildIndex() {
+		loadIndex();
+		versionTracker.written();
+	}
+
+	/** @return the version of the FAQ collection whose writes are all in the responses of this node, see {@link VersionTracker} */
+	@Override
+	public CollectionVersion getCollectionVersion() {
+		return versionTracker.get();
+	}
+
+	/** Loads the in-memory FAQ index from the whole collection, see {@link #rebuildIndex} */
+	private void loadIndex() {
+		synchronized (faqIndex) { // One rebuild at a time
+			faqIndex.rebuild(indexer -> { // Queries keep using the former documents meanwhile
+				try (MongoCursor<Document> cursor = readDatabase.getCollection(FAQ_COLLECTION_NAME).find().iterator()) {
+					while (cursor.hasNext()) {
+						indexer.accept(cursor.next());
+					}
+				}
+			});
+			responseCache.invalidate();
+		}
+	}
+
+	/**
+	 * Adds to the index the FAQ inserted by other nodes since it was loaded (or since the snapshot it was loaded from). Without replication, this is how the version of the collection catches up with them, see {@link #versionTracker}. <BR>
+	 * Read from the primary, as a secondary could still miss some of the FAQ the version stands for.
+	 */
+	private void addMissingFAQ() {
+		int[] added = {0};
+		synchronized (faqIndex) {
+			forEachMissingFAQ(database.getCollection(FAQ_COLLECTION_NAME), document -> {
+				if (faqIndex.add(document)) {
+					added[0]++;
+				}
+			});
+		}
+		if (added[0] > 0) {
+			responseCache.invalidate();
+		}
+	}
+
+	/**
+	 * Gives the consumer the FAQ of the collection that are not in the index. <BR>
+	 * If the index is empty, the whole collection is read. Otherwise, only the identifiers are read first (in their order, so that the database reads them from its index on {@link #FIELD_ID} alone), then the missing FAQ by batches : catching up costs little when few are missing.
+	 */
+	private void forEachMissingFAQ(MongoCollection<Document> collection, Consumer<Document> consumer) {
+		int batchSize = Configuration.getInt(MONGO_CURSOR_BATCH_SIZE_SETTING, 1000);
+		if (faqIndex.size() == 0) {
+			collection.find().batchSize(batchSize).forEach((Block<Document>) consumer::accept);
+			return;
+		}
+		List<Object> missing = new ArrayList<>();
+		try (MongoCursor<Document> cursor = collection.find().projection(Projections.include(FIELD_ID)).sort(Sorts.ascending(FIELD_ID)).batchSize(batchSize).iterator()) {
 			while (cursor.hasNext()) {
-				res.add(cursor.next().toJson());
+				Object databaseId = cursor.next().get(FIELD_ID);
+				if (!faqIndex.contains(databaseId)) {
+					missing.add(databaseId);
+					if (missing.size() == batchSize) {
+						collection.find(Filters.in(FIELD_ID, missing)).forEach((Block<Document>) consumer::accept);
+						missing.clear();
+					}
+				}
 			}
-		} else {
-			res.add("Only json is accepted as a format for now");
 		}
-		return res;
+		if (!missing.isEmpty()) {
+			collection.find(Filters.in(FIELD_ID, missing)).forEach((Block<Document>) consumer::accept);
+		}
 	}
 
 	/**
-	 * Returns a list of FAQ when either the question or answer contains the given String
-	 * @param format the string "json". Only one accepted for now, but could accept "xml", "human_readable" or more later. How the format is specified could be different (instead of a hardcoded String) depending on what's more convenient, readable and less error-prone. Ex : Integer constants, Strings in a file (xml ? json ? cvs ?), booleans if only 2 formats, enums, different methods for each format... or something else.
-	 *
-	 * FIXME possible flaws found, to discuss with client :
-	 * - What if patternString is 2 (or more) words ? Shouldn't we check if those 2 words appear separately, possibly in another order (word2 stuff word1) ? 
-	 * - What if only one of them appears ? Does that count as a match ?
-	 * - Should there be a list of stop-words like in SEO, to avoid words that are too common and meaningless to the search (in, the, at, be, it, etc) ?
-	 * - What about when the pattern is inside a word ? Should that still count as a match ?
+	 * Loads the index from the {@link #SNAPSHOT_PATH_SETTING snapshot}, if there is one and it can be used : same epoch as the collection, not corrupt. Otherwise the index is left empty, to be read from the database.
+	 * @param current version of the collection now
+	 * @return the version of the collection the snapshot includes, null if it wasn't loaded
 	 */
-	public List<String> getFAQMatches(String patternString, String format) { 
-		List<String> res = new LinkedList<>();
+	private CollectionVersion loadSnapshot(CollectionVersion current) {
+		if (snapshotPath == null) {
+			return null;
+		}
+		CollectionVersion loaded;
+		synchronized (faqIndex) {
+			try {
+				loaded = IndexSnapshot.load(snapshotPath, faqIndex, current);
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Could not use the index snapshot " + snapshotPath + ", reading the whole collection : " + e);
+				faqIndex.clear();
+				loaded = null;
+			}
+		}
+		snapshotVersion = loaded;
+		responseCache.invalidate();
+		return loaded;
+	}
 
-		if (patternString == null || patternString.equals("")) {
-			res.add("\"" + FAQServlet.PARAMETER_STRING_MATCH + "\" parameter must be set.");
-		} else {
-			if (format != null && format.trim().toLowerCase().equals(FAQServlet.JSON_FORMAT)) {
-				final String MATCH_REGEX = "^.*" + patternString + ".*$";
+	/**
+	 * Saves the index to the {@link #SNAPSHOT_PATH_SETTING snapshot}, unless snapshots are disabled or nothing was written since the last one. Called regularly, and when the application stops.
+	 */
+	void writeSnapshot() {
+		if (snapshotPath == null) {
+			return;
+		}
+		synchronized (snapshotLock) {
+			try {
+				CollectionVersion version;
+				IndexSnapshot.Contents contents;
+				synchronized (faqIndex) { // Not while the index is reloaded, it would be incomplete
+					version = versionTracker.get(); // Read before the index : it includes at least the writes of this version
+					if (version == null || !version.isNewerThan(snapshotVersion)) {
+						return;
+					}
+					contents = IndexSnapshot.serialize(faqIndex, version); // Inserts only wait for this copy in memory, not for the disk
+				}
+				IndexSnapshot.write(contents, snapshotPath);
+				snapshotVersion = version;
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Could not write the index snapshot " + snapshotPath + " : " + e);
+			}
+		}
+	}
 
-				Pattern pattern = Pattern.compile(MATCH_REGEX);
-				Bson query = Filters.or(
-					Filters.regex(FAQ_FIELD_QUESTION, pattern),
-					Filters.regex(FAQ_FIELD_ANSWER, pattern));
+	/**
+	 * @return how old (milliseconds) the oldest FAQ missing from the responses of this node can be, or -1 if {@link #REPLICATION_ENABLED_SETTING replication} is disabled (reads then go to the database, except "get_match")
+	 */
+	@Override
+	public long getReplicaStalenessMillis() {
+		return replica == null ? -1 : replica.getStalenessMillis();
+	}
 
-				MongoCursor<Document> cursor = database.getCollection(FAQ_COLLECTION_NAME).find(query).iterator();
+	/**
+	 * Same as {@link #getWholeCollection}, but each document is given to the handler as soon as it is read from the database instead of being gathered in a list. <BR>
+	 * Memory usage is therefore bounded by the driver's batch size, whatever the size of the collection.
+	 * @return the number of documents given to the handler (the error message, if any, is counted as one)
+	 * @throws IOException if the handler throws it, typically because the client went away
+	 */
+	@Override
+	public int streamWholeCollection(String format, String collectionName, DocumentHandler handler) throws IOException {
+		int count = 0;
+		if (isJsonFormat(format)) {
+			String cacheKey = "all:" + FAQServlet.JSON_FORMAT + ":" + collectionName;
+			List<String> cached = responseCache.getIfPresent(cacheKey);
+			if (cached != null) {
+				for (String document : cached) {
+					handler.handle(document);
+				}
+				return cached.size();
+			}
+			long cacheGeneration = responseCache.getGeneration(); // Before checking the write-behind queue : a FAQ queued afterwards empties the cache, the response isn't kept then
+			if ((replica != null || isIndexAhead()) && collectionName.equals(FAQ_COLLECTION_NAME)) {
+				List<String> all = faqIndex.getAll();
+				for (String document : all) {
+					handler.handle(document);
+				}
+				return all.size();
+			}
 
+			/* Documents are kept aside to be cached, unless there are too many of them */
+			int maxDocumentsCached = responseCache.getMaxDocumentsPerEntry();
+			List<String> toCache = new ArrayList<>();
+			int batchSize = Configuration.getInt(MONGO_CURSOR_BATCH_SIZE_SETTING, 1000);
+			try (MongoCursor<RawBsonDocument> cursor = readDatabase.getCollection(collectionName, RawBsonDocument.class).find().batchSize(batchSize).iterator()) {
 				while (cursor.hasNext()) {
-					res.add(cursor.next().toJson());
+					String document = JsonEncoder.toJson(cursor.next());
+					handler.handle(document);
+					count++;
+					if (toCache != null) {
+						toCache.add(document);
+						if (toCache.size() > maxDocumentsCached) {
+							toCache = null;
+						}
+					}
 				}
-			} else {
-				res.add("Only json is accepted as a format for now");
 			}
+			if (toCache != null) {
+				responseCache.put(cacheKey, toCache, cacheGeneration);
+			}
+		} else {
+			handler.handle(ONLY_JSON_MESSAGE);
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Served from the payloads of the index only when the {@link #REPLICATION_ENABLED_SETTING replica} keeps it complete, or when the database misses FAQ of the {@link #isIndexAhead write-behind queue}, as {@link #streamWholeCollection} does. Otherwise FAQ written by other nodes could be missing until the next refresh.
+	 */
+	@Override
+	public JsonPayloads getAllPayloads() {
+		return replica != null || isIndexAhead() ? faqIndex.getAllPayloads() : null;
+	}
+
+	/**
+	 * @return true if FAQ added through the {@link #writeBehindQueue} are in the index but not in the database yet. Reads usually served by the database are then served by the index, so that the admin finds the FAQ straight away
+	 */
+	private boolean isIndexAhead() {
+		return writeBehindQueue != null && writeBehindQueue.hasUnwritten();
+	}
+
+	/**
+	 * Gives the handler one page of the collection with provided name : at most pageSize documents, in increasing order of their {@link #FIELD_ID identifier}, starting after the one given by the continuation token. <BR>
+	 * Pages are found with the identifier index ("keyset pagination") rather than by skipping the previous documents, so reading any page costs the same, however far in the collection it is.
+	 * Documents inserted while paging are seen if they come after the current page, as identifiers increase with time.
+	 * @param after continuation token returned for the previous page, or null for the first page
+	 * @param fields names of the fields to return, or null for all of them. {@link #FIELD_ID} is only returned if asked for
+	 * @return the continuation token to give for the next page, or null if this was the last one
+	 * @throws IllegalArgumentException if the continuation token is not one returned by this method
+	 * @throws IOException if the handler throws it
+	 */
+	@Override
+	public String streamCollectionPage(String format, String collectionName, String after, int pageSize, List<String> fields, DocumentHandler handler) throws IOException {
+		if (!isJsonFormat(format)) {
+			handler.handle(ONLY_JSON_MESSAGE);
+			return null;
+		}
+		if (after != null && !ObjectId.isValid(after)) {
+			throw new IllegalArgumentException("Invalid continuation token " + after);
+		}
+
+		FindIterable<RawBsonDocument> query = readDatabase.getCollection(collectionName, RawBsonDocument.class)
+			.find(after == null ? new Document() : Filters.gt(FIELD_ID, new ObjectId(after)))
+			.sort(Sorts.ascending(FIELD_ID))
+			.limit(pageSize)
+			.batchSize(pageSize) // The whole page in a single round trip
+			.maxTime(getQueryMaxTimeMillis(), TimeUnit.MILLISECONDS);
+		boolean withId = fields == null || fields.contains(FIELD_ID);
+		if (fields != null) {
+			query.projection(Projections.include(fields)); // The identifier is always included by mongo, it is needed for the token anyway
+		}
+
+		int count = 0;
+		BsonValue lastId = null;
+		try (MongoCursor<RawBsonDocument> cursor = query.iterator()) {
+			while (cursor.hasNext()) {
+				RawBsonDocument document = cursor.next();
+				lastId = document.get(FIELD_ID);
+				handler.handle(withId ? JsonEncoder.toJson(document) : JsonEncoder.toJsonWithout(document, FIELD_ID));
+				count++;
+			}
+		} catch (MongoExecutionTimeoutException e) {
+			throw new QueryTooExpensiveException("the query took longer than " + getQueryMaxTimeMillis() + " ms", e);
+		}
+		return count == pageSize && lastId != null && lastId.isObjectId() ? lastId.asObjectId().getValue().toHexString() : null;
+	}
+
+	/**
+	 * Returns the FAQ having all (or any) of the given tags. Served by the database, through the index on {@link #FAQ_FIELD_TAGS}, unless FAQ of the {@link #isIndexAhead write-behind queue} are not written yet : by the in-memory index then. <BR>
+	 * The query is stopped by the database after {@link #QUERY_MAX_TIME_SETTING}, and refused if more than {@link #QUERY_MAX_RESULTS_SETTING} FAQ have the tags.
+	 * @param allTags true if FAQ must have all the tags, false if any of them is enough
+	 * @throws QueryTooExpensiveException if the query is stopped or refused
+	 */
+	@Override
+	public List<String> getFAQByTags(List<String> tags, boolean allTags, String format) {
+		List<String> res = new LinkedList<>();
+		if (tags == null || tags.isEmpty()) {
+			res.add("\"" + FAQServlet.PARAMETER_STRING_TAGS + "\" parameter must contain at least one tag (letters only).");
+		} else if (isJsonFormat(format)) {
+			res.addAll(responseCache.get("tags:" + FAQServlet.JSON_FORMAT + ":" + getTagsCacheKey(tags, allTags), () -> {
+				if (isIndexAhead()) {
+					return checkResultCount(faqIndex.findByTags(tags, allTags));
+				}
+				List<String> found = new LinkedList<>();
+				Bson query = allTags ? Filters.all(FAQ_FIELD_TAGS, tags) : Filters.in(FAQ_FIELD_TAGS, tags);
+				int maxResults = getQueryMaxResults();
+				FindIterable<RawBsonDocument> find = readDatabase.getCollection(FAQ_COLLECTION_NAME, RawBsonDocument.class).find(query)
+					.maxTime(getQueryMaxTimeMillis(), TimeUnit.MILLISECONDS)
+					.limit(maxResults > 0 ? maxResults + 1 : 0); // One more, to know whether there are too many
+				try (MongoCursor<RawBsonDocument> cursor = find.iterator()) {
+					while (cursor.hasNext()) {
+						found.add(JsonEncoder.toJson(cursor.next()));
+					}
+				} catch (MongoExecutionTimeoutException e) {
+					throw new QueryTooExpensiveException("the query took longer than " + getQueryMaxTimeMillis() + " ms", e);
+				}
+				return checkResultCount(found);
+			}));
+		} else {
+			res.add(ONLY_JSON_MESSAGE);
 		}
 		return res;
 	}
 
 	/**
-	 * Insert in the database a couple question/answer, along with given tags.
+	 * Insert in the database a couple question/answer, along with given tags. <BR>
+	 * With {@link #WRITE_BEHIND_ENABLED_SETTING write-behind}, the FAQ goes through {@link #writeBehindQueue} instead. Either way, it is in the index (and the cache is emptied) before this method returns. Until it is written, the reads usually served by the database are served by the index (see {@link #isIndexAhead}) : the admin finds it straight away, whatever the request. <BR>
+	 * The version of the collection is only increased once the FAQ is both written and indexed, see {@link #insertAndIndex}.
 	 * @return a message describing the result of the insertion
+	 * @throws java.util.concurrent.RejectedExecutionException if too many FAQ are already waiting to be written
 	 */
+	@Override
 	public String insertNewFAQ(String question, String answer, List<String> tags) {
-		Document document = new Document();
-		document.put(FAQ_FIELD_QUESTION, question);
-		document.put(FAQ_FIELD_ANSWER, answer);
-		document.put(FAQ_FIELD_TAGS, tags);
+		Document document = toDocument(question, answer, tags);
+
+		if (writeBehindQueue != null) {
+			document.put(FIELD_ID, new ObjectId()); // Set now, as the driver would, so that the FAQ can be indexed before being written
+			writeBehindQueue.add(document);
+			faqIndex.add(document); // Already done if the batch was written, see insertAndIndex
+			responseCache.invalidate();
+			return writeBehindQueue.acknowledgesOnEnqueue() ? "Document was succesfully queued for insertion" : "Document was succesfully inserted";
+		}
 
 		database.getCollection(FAQ_COLLECTION_NAME).insertOne(document);
+		faqIndex.add(document); // The driver has set the _id, so the indexed json is the same as the one stored
+		responseCache.invalidate();
+		versionTracker.written();
 
 		return "Document was succesfully inserted";// Exception will have already be thrown if something fails. We might want to send a specific message if that happens.
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Inserts several FAQ in a single round trip to the database. <BR>
+	 * The insertion is unordered : a failing document doesn't prevent the others from being inserted, and the database is free to insert them in parallel.
+	 * @return the number of FAQ actually inserted, the others failed
+	 */
+	@Override
+	public int insertNewFAQs(List<FAQEntry> faqs) {
+		if (faqs.isEmpty()) {
+			return 0; // The driver refuses an empty insertion
+		}
+		List<Document> documents = new ArrayList<>(faqs.size());
+		for (FAQEntry faq : faqs) {
+			documents.add(toDocument(faq.getQuestion(), faq.getAnswer(), faq.getTags()));
+		}
+
+		Set<Integer> failedPositions = insertUnordered(documents);
+		for (int i = 0 ; i < documents.size() ; i++) {
+			if (!failedPositions.contains(i)) {
+				faqIndex.add(documents.get(i));
+			}
+		}
+		responseCache.invalidate();
+		versionTracker.written();
+		return documents.size() - failedPositions.size();
+	}
+
+	/**
+	 * Writes a batch of the {@link #writeBehindQueue}, then indexes the FAQ written, before the version of the collection is increased for them. The admin indexes its FAQ too after queuing it : the first one to get there does it.
+	 * @return the positions of the documents refused by the database
+	 * @throws MongoException if the database couldn't be reached
+	 */
+	private Set<Integer> insertAndIndex(List<Document> documents) {
+		Set<Integer> failedPositions = insertUnordered(documents);
+		for (int i = 0 ; i < documents.size() ; i++) {
+			if (!failedPositions.contains(i)) {
+				faqIndex.add(documents.get(i));
+			}
+		}
+		return failedPositions;
+	}
+
+	/**
+	 * Inserts the documents in a single, unordered, round trip.
+	 * @return the positions of the documents refused by the database
+	 * @throws MongoException if the database couldn't be reached
+	 */
+	private Set<Integer> insertUnordered(List<Document> documents) {
+		Set<Integer> failedPositions = new HashSet<>();
+		try {
+			database.getCollection(FAQ_COLLECTION_NAME).insertMany(documents, new InsertManyOptions().ordered(false));
+		} catch (MongoBulkWriteException e) {
+			for (BulkWriteError error : e.getWriteErrors()) {
+				failedPositions.add(error.getIndex());
+			}
+		}
+		return failedPositions;
+	}
+}
@@ -0,0 +1,378 @@
+package com.netheos.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import com.netheos.servlets.FAQServlet;
+
+/**
+ * {@link FAQStore} keeping the FAQ in a file of the application server, for deployments without any database : no network round trip, and nothing else to install. <BR>
+ * The file is a log : FAQ are only ever appended, each as its BSON bytes preceded by their length and checksum. It is memory-mapped, so reads are served from the page cache without any system call or copy, and an index of where each FAQ starts (by position and by {@link DatabaseAccessor#FIELD_ID identifier}) is kept in memory to find them. <BR>
+ * At startup, the log is read once to rebuild that index and the {@link FAQIndex}. A FAQ whose checksum is wrong, typically half written when the server stopped, ends the log : it and anything after are forgotten and overwritten by the next insertions. <BR>
+ * The file is mapped beyond its content, growing as needed, so it can't hold more than 2 GB. Only one process can use it at a time.
+ */
+public class EmbeddedFAQStore extends AbstractFAQStore {
+	/** Bytes before each FAQ : the length of its BSON bytes, then their CRC32. A length of 0 marks the end of the log */
+	private static final int RECORD_HEADER_SIZE = 8;
+	/** Size mapped when the file is created */
+	private static final int INITIAL_MAPPED_SIZE = 1024 * 1024;
+	/** The mapping doubles when full, but by 64 MB at most so that a big log doesn't suddenly take twice its size on disk */
+	private static final int MAX_MAPPED_GROWTH = 64 * 1024 * 1024;
+
+	private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+	private final File file;
+	private final boolean syncWrites;
+	private final FileChannel channel;
+	/** Prevents another process from writing to the same log */
+	private final FileLock fileLock;
+
+	/* Guarded by this. Readers take a snapshot of them (see #getRecords), then read without lock : appended records never move */
+	private MappedByteBuffer mapped;
+	/** Position after the last record */
+	private int end = 0;
+	/** Offset of each record, in log order */
+	private int[] offsets = new int[1024];
+	private int count = 0;
+	/** Position in {@link #offsets} of each record, by identifier */
+	private final Map<Object, Integer> positions = new HashMap<>();
+
+	/** Identifies this opening of the log : versions are numbered by the count of FAQ, which could be the same again if the file was replaced */
+	private final String epoch = new ObjectId().toHexString();
+	/** Version of the collection : the number of FAQ, as they are only ever appended */
+	private volatile CollectionVersion version;
+
+	/**
+	 * Opens the log, creating it if needed, and reads it.
+	 * @param syncWrites true to force every insertion to the disk before returning. Otherwise, insertions are written to the page cache and survive the application stopping, but not the server crashing
+	 * @throws UncheckedIOException if the file can't be read or written
+	 * @throws IllegalStateException if the file is already used by another store
+	 */
+	public EmbeddedFAQStore(File file, boolean syncWrites) {
+		this.file = file;
+		this.syncWrites = syncWrites;
+		try {
+			this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			FileLock lock;
+			try {
+				lock = channel.tryLock();
+			} catch (OverlappingFileLockException e) {
+				lock = null; // Held by this JVM
+			}
+			if (lock == null) {
+				channel.close();
+				throw new IllegalStateException(file + " is already used by another store");
+			}
+			this.fileLock = lock;
+			this.mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), INITIAL_MAPPED_SIZE));
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not open " + file, e);
+		}
+		readLog();
+		version = new CollectionVersion(epoch, count, file.lastModified());
+	}
+
+	/**
+	 * Finds every complete record of the log, and indexes it.
+	 */
+	private synchronized void readLog() {
+		CRC32 crc = new CRC32();
+		while (end + RECORD_HEADER_SIZE <= mapped.capacity()) {
+			int length = mapped.getInt(end);
+			if (length <= 0 || length > mapped.capacity() - end - RECORD_HEADER_SIZE) {
+				break;
+			}
+			ByteBuffer bson = slice(mapped, end + RECORD_HEADER_SIZE, length);
+			crc.reset();
+			crc.update(bson.duplicate());
+			if ((int) crc.getValue() != mapped.getInt(end + 4)) {
+				// Half written : forgotten, and erased so that what is appended later isn't mistaken for its end
+				for (int i = end ; i < end + RECORD_HEADER_SIZE + length ; i++) {
+					mapped.put(i, (byte) 0);
+				}
+				System.err.println("Ignoring the end of " + file + ", from byte " + end + " : incomplete FAQ");
+				break;
+			}
+			Document document = decode(bson);
+			addOffset(end, document.get(DatabaseAccessor.FIELD_ID));
+			faqIndex.add(document);
+			end += RECORD_HEADER_SIZE + length;
+		}
+	}
+
+	/** @return the version of the collection, the number of FAQ it holds */
+	@Override
+	public CollectionVersion getCollectionVersion() {
+		return version;
+	}
+
+	@Override
+	public synchronized void rebuildIndex() {
+		faqIndex.rebuild(indexer -> { // Queries keep using the former documents meanwhile
+			for (int i = 0 ; i < count ; i++) {
+				indexer.accept(decode(slice(mapped, offsets[i] + RECORD_HEADER_SIZE, mapped.getInt(offsets[i]))));
+			}
+		});
+		responseCache.invalidate();
+	}
+
+	/**
+	 * Returns every FAQ, read from the mapped log : the BSON bytes are turned into json in place. <BR>
+	 * FAQ appended while streaming are not returned. Other collections than {@link DatabaseAccessor#FAQ_COLLECTION_NAME} don't exist, and are empty.
+	 */
+	@Override
+	public int streamWholeCollection(String format, String collectionName, DocumentHandler handler) throws IOException {
+		if (!isJsonFormat(format)) {
+			handler.handle(ONLY_JSON_MESSAGE);
+			return 1;
+		}
+		if (!collectionName.equals(DatabaseAccessor.FAQ_COLLECTION_NAME)) {
+			return 0;
+		}
+		Records records = getRecords();
+		for (int i = 0 ; i < records.count ; i++) {
+			handler.handle(JsonEncoder.toJson(records.bson(i)));
+		}
+		return records.count;
+	}
+
+	/**
+	 * Every FAQ of the log is in the index, so they are all served from its payloads when it keeps them.
+	 */
+	@Override
+	public JsonPayloads getAllPayloads() {
+		return faqIndex.getAllPayloads();
+	}
+
+	/**
+	 * Pages are in log order, which is also the order of the identifiers as they are generated when inserting. The continuation token is the identifier of the last FAQ of the page, as with {@link DatabaseAccessor}.
+	 */
+	@Override
+	public String streamCollectionPage(String format, String collectionName, String after, int pageSize, List<String> fields, DocumentHandler handler) throws IOException {
+		if (!isJsonFormat(format)) {
+			handler.handle(ONLY_JSON_MESSAGE);
+			return null;
+		}
+		if (after != null && !ObjectId.isValid(after)) {
+			throw new IllegalArgumentException("Invalid continuation token " + after);
+		}
+		if (!collectionName.equals(DatabaseAccessor.FAQ_COLLECTION_NAME)) {
+			return null;
+		}
+
+		Records records = getRecords();
+		int first = 0;
+		if (after != null) {
+			Integer position = getPosition(new ObjectId(after));
+			if (position == null) {
+				throw new IllegalArgumentException("Invalid continuation token " + after);
+			}
+			first = position + 1;
+		}
+		int last = Math.min(records.count, first + pageSize);
+		for (int i = first ; i < last ; i++) {
+			if (fields == null) {
+				handler.handle(JsonEncoder.toJson(records.bson(i)));
+			} else {
+				Document document = records.decode(i);
+				document.keySet().retainAll(fields);
+				handler.handle(document.toJson());
+			}
+		}
+		if (last - first < pageSize) {
+			return null;
+		}
+		Object lastId = records.decode(last - 1).get(DatabaseAccessor.FIELD_ID);
+		return lastId instanceof ObjectId ? ((ObjectId) lastId).toHexString() : null;
+	}
+
+	/**
+	 * Served from memory, by the tags of the {@link FAQIndex}.
+	 */
+	@Override
+	public List<String> getFAQByTags(List<String> tags, boolean allTags, String format) {
+		List<String> res = new LinkedList<>();
+		if (tags == null || tags.isEmpty()) {
+			res.add("\"" + FAQServlet.PARAMETER_STRING_TAGS + "\" parameter must contain at least one tag (letters only).");
+		} else if (isJsonFormat(format)) {
+			res.addAll(responseCache.get("tags:" + FAQServlet.JSON_FORMAT + ":" + getTagsCacheKey(tags, allTags), () -> checkResultCount(faqIndex.findByTags(tags, allTags))));
+		} else {
+			res.add(ONLY_JSON_MESSAGE);
+		}
+		return res;
+	}
+
+	@Override
+	public String insertNewFAQ(String question, String answer, List<String> tags) {
+		append(Collections.singletonList(new FAQEntry(question, answer, tags)));
+		return "Document was succesfully inserted";
+	}
+
+	/**
+	 * All the FAQ are appended at once, and forced to the disk once if {@link #syncWrites} is set.
+	 */
+	@Override
+	public int insertNewFAQs(List<FAQEntry> faqs) {
+		append(faqs);
+		return faqs.size();
+	}
+
+	/** Always up to date, as this store is the only one writing to its file */
+	@Override
+	public long getReplicaStalenessMillis() {
+		return -1;
+	}
+
+	/**
+	 * Forces the log to the disk and releases it. The end of the file is left mapped, and empty : it will be used by the next insertions after reopening.
+	 */
+	@Override
+	public synchronized void close() {
+		try {
+			mapped.force();
+			fileLock.release();
+			channel.close();
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not close " + file, e);
+		}
+	}
+
+	/** Number of FAQ in the log */
+	public synchronized int size() {
+		return count;
+	}
+
+	/**
+	 * Appends the FAQ to the log, then to the index, so that they are returned as soon as this method returns. <BR>
+	 * Room is made for the whole batch before anything is written : if the file can't hold it, none of the FAQ is appended.
+	 */
+	private synchronized void append(List<FAQEntry> faqs) {
+		List<Document> documents = new ArrayList<>(faqs.size());
+		List<ByteBuffer> bsons = new ArrayList<>(faqs.size());
+		long needed = end;
+		for (FAQEntry faq : faqs) {
+			Document document = new Document(DatabaseAccessor.FIELD_ID, new ObjectId()); // First, as mongo stores it
+			document.putAll(toDocument(faq.getQuestion(), faq.getAnswer(), faq.getTags()));
+			ByteBuffer bson = new RawBsonDocument(document, DOCUMENT_CODEC).getByteBuffer().asNIO();
+			documents.add(document);
+			bsons.add(bson);
+			needed += RECORD_HEADER_SIZE + bson.remaining();
+		}
+		ensureCapacity(needed);
+
+		for (int i = 0 ; i < documents.size() ; i++) {
+			Document document = documents.get(i);
+			ByteBuffer bson = bsons.get(i);
+			int length = bson.remaining();
+			CRC32 crc = new CRC32();
+			crc.update(bson.duplicate());
+			ByteBuffer target = slice(mapped, end, RECORD_HEADER_SIZE + length);
+			target.putInt(length);
+			target.putInt((int) crc.getValue());
+			target.put(bson);
+			addOffset(end, document.get(DatabaseAccessor.FIELD_ID));
+			end += RECORD_HEADER_SIZE + length;
+		}
+		if (syncWrites) {
+			mapped.force();
+		}
+		for (Document document : documents) {
+			faqIndex.add(document);
+		}
+		responseCache.invalidate();
+		version = new CollectionVersion(epoch, count, System.currentTimeMillis());
+	}
+
+	/** Maps more of the file if the given position is beyond the mapping */
+	private void ensureCapacity(long needed) {
+		if (needed <= mapped.capacity()) {
+			return;
+		}
+		if (needed > Integer.MAX_VALUE) {
+			throw new IllegalStateException(file + " is full : it can't hold more than 2 GB of FAQ");
+		}
+		long capacity = Math.min(Integer.MAX_VALUE, Math.max(needed, mapped.capacity() + Math.min(mapped.capacity(), MAX_MAPPED_GROWTH))); // Less growth near the limit, rather than none
+		try {
+			mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity); // Grows the file. Snapshots of readers keep the previous mapping, still valid
+		} catch (IOException e) {
+			throw new UncheckedIOException("Could not grow " + file, e);
+		}
+	}
+
+	private void addOffset(int offset, Object databaseId) {
+		if (count == offsets.length) {
+			offsets = Arrays.copyOf(offsets, count * 2); // Readers keep the previous array, whose first entries don't change
+		}
+		offsets[count] = offset;
+		if (databaseId != null) {
+			positions.put(databaseId, count);
+		}
+		count++;
+	}
+
+	private synchronized Integer getPosition(Object databaseId) {
+		return positions.get(databaseId);
+	}
+
+	/** The records written so far */
+	private synchronized Records getRecords() {
+		return new Records(mapped, offsets, count);
+	}
+
+	/** Decodes the FAQ from its BSON bytes */
+	private static Document decode(ByteBuffer bson) {
+		return new RawBsonDocument(toArray(bson.duplicate())).decode(DOCUMENT_CODEC);
+	}
+
+	/** View of length bytes of the buffer from the given offset, not changing the buffer itself (shared by all threads) */
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer res = buffer.duplicate();
+		res.limit(offset + length).position(offset);
+		return res.slice();
+	}
+
+	private static byte[] toArray(ByteBuffer buffer) {
+		byte[] res = new byte[buffer.remaining()];
+		buffer.get(res);
+		return res;
+	}
+
+	/**
+	 * The records of the log at a given time, readable without holding the lock of the store
+	 */
+	private static class Records {
+		private final ByteBuffer buffer;
+		private final int[] offsets;
+		private final int count;
+
+		Records(ByteBuffer buffer, int[] offsets, int count) {
+			this.buffer = buffer;
+			this.offsets = offsets;
+			this.count = count;
+		}
+
+		/** The BSON bytes of the record at given position */
+		ByteBuffer bson(int position) {
+			int offset = offsets[position];
+			return slice(buffer, offset + RECORD_HEADER_SIZE, buffer.getInt(offset));
+		}
+
+		Document decode(int position) {
+			return EmbeddedFAQStore.decode(bson(position));
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package com.netheos.db;
+
+import org.bson.Document;
+
+/**
+ * Source of the changes made to the FAQ collection, whichever node made them, followed by {@link FAQReplica}. <BR>
+ * Implementations deliver the changes on a thread of their own. {@link MongoChangeSource} follows the change stream of the database, tests use an in-process stand-in.
+ */
+public interface FAQChangeSource {
+	/**
+	 * Starts delivering the changes made from now on. Every change made after this method returns must be delivered, so the replica can read the whole collection afterwards without missing anything in between.
+	 */
+	void start(Listener listener);
+
+	/** Stops delivering changes and releases the thread and resources of the source */
+	void close();
+
+	/**
+	 * Receives the changes, see {@link FAQChangeSource}
+	 */
+	interface Listener {
+		/** A FAQ was inserted. It may already be known to the replica (inserted by this node, or read while reloading), it is then ignored */
+		void onInsert(Document document);
+
+		/** Every change made before the given time ({@link System#currentTimeMillis()} of this node) has been delivered. This is what the staleness is computed from */
+		void onCaughtUp(long timeMillis);
+
+		/** Changes may have been lost (the source failed and could not resume where it was). Called once the source delivers changes again, so that reading the whole collection afterwards is enough to catch up */
+		void onLost(Exception cause);
+	}
+}
@@ -0,0 +1,30 @@
+package com.netheos.db;
+
+import java.util.*;
+
+/**
+ * A couple question/answer and its tags, as given by the user, before it is stored. Immutable.
+ */
+public class FAQEntry {
+	private final String question;
+	private final String answer;
+	private final List<String> tags;
+
+	public FAQEntry(String question, String answer, List<String> tags) {
+		this.question = question;
+		this.answer = answer;
+		this.tags = Collections.unmodifiableList(new ArrayList<>(tags));
+	}
+
+	public String getQuestion() {
+		return question;
+	}
+
+	public String getAnswer() {
+		return answer;
+	}
+
+	public List<String> getTags() {
+		return tags;
+	}
+}
@@ -0,0 +1,986 @@
+package com.netheos.db;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+/**
+ * In-memory trigram index over the question and answer of every FAQ, used to answer "get_match" queries without scanning the whole collection in the database. <BR>
+ * Each document receives an internal id (its position of insertion, so results keep the same order as the collection's natural order). For every 3-character sequence found in its question or answer, the id is added to the posting list of that sequence. <BR>
+ * A query extracts the literal parts it requires from the pattern, intersects the posting lists of their trigrams to get a (hopefully small) set of candidates, and only then runs the actual regex on those candidates. Patterns from which nothing can be extracted (too short, alternations, character classes...) fall back on running the regex over every document, which is still done in memory. <BR>
+ * Tags are indexed too (tag -> ids of the documents having it), to restrict a query to some tags before any text is matched, and to count the FAQ of each tag. <BR>
+ * Words are indexed as well (word -> ids of the documents containing it, with the number of times it appears in the question and in the answer), for the ranked search of {@link #search} : BM25 scoring, with words of the question counting more than those of the answer, and only the best results kept. <BR>
+ * The whole index can be written to a file and read back, see {@link IndexSnapshot}. <BR>
+ * The json of the documents may be kept off the heap, already encoded, and written to responses from there : see {@link PayloadStore} and {@link JsonPayloads}. <BR>
+ * Thread-safe : reads may happen concurrently, inserts are exclusive.
+ */
+public class FAQIndex implements FAQIndexMBean {
+	/** Kinds of {@link DatabaseAccessor#FIELD_ID identifier} in a snapshot : none, ObjectId (12 bytes), anything else (BSON document holding it) */
+	private static final byte SNAPSHOT_NO_ID = 0;
+	private static final byte SNAPSHOT_OBJECT_ID = 1;
+	private static final byte SNAPSHOT_OTHER_ID = 2;
+
+	/** Length of the character sequences being indexed */
+	public static final int GRAM_LENGTH = 3;
+
+	/** Weight of a word found in the question, relative to {@link #ANSWER_BOOST}. A question is short and says what the FAQ is about, the answer says much more */
+	public static final float QUESTION_BOOST = 2.0f;
+	/** Weight of a word found in the answer */
+	public static final float ANSWER_BOOST = 1.0f;
+	/** BM25 parameter : how fast the score of a word stops growing when it is repeated in a document. Usual value */
+	private static final float K1 = 1.2f;
+	/** BM25 parameter : how much a word found in a long field counts less than in a short one (0 : not at all, 1 : in proportion to the length). Usual value */
+	private static final float B = 0.75f;
+
+	/** Characters after which the pattern can't be considered literal anymore, the whole pattern is then checked against every document */
+	private static final String UNSUPPORTED_REGEX_CHARACTERS = "|()[]\\{}";
+	/** A query checks whether it is past its deadline every this many documents, in addition to the checks made while running a regex (see {@link MatchQuery}) */
+	private static final int DOCUMENTS_BETWEEN_CHECKS = 1024;
+
+	/* The content of the index : only replaced at once by rebuild, under the write lock */
+
+	/** Question of each indexed document, by internal id */
+	private List<String> questions = new ArrayList<>();
+	/** Answer of each indexed document, by internal id */
+	private List<String> answers = new ArrayList<>();
+	/** Json of each indexed document, by internal id. This is what is eventually sent back to the user, so it is computed once at insertion. Empty if they are kept in {@link #payloads} */
+	private List<String> jsons = new ArrayList<>();
+	/** Json of each indexed document, encoded in UTF-8 outside the heap, by internal id. Null if they are kept in {@link #jsons} */
+	private PayloadStore payloads;
+
+	/** Database identifiers of the indexed documents, so that a document delivered twice (inserted by this node then replicated, see {@link FAQReplica}) is indexed once */
+	private Set<Object> databaseIds = new HashSet<>();
+
+	/** Trigram (see {@link #packGram}) -> sorted ids of the documents containing it */
+	private Map<Long, PostingList> postings = new HashMap<>();
+
+	/** Tag -> sorted ids of the documents having it */
+	private Map<String, PostingList> tagPostings = new HashMap<>();
+
+	/** Word (see {@link TextAnalyzer}) -> sorted ids of the documents containing it, with its number of occurrences */
+	private Map<String, WordPostingList> wordPostings = new HashMap<>();
+	/** Number of words of the question of each indexed document, by internal id */
+	private int[] questionLengths = new int[16];
+	/** Number of words of the answer of each indexed document, by internal id */
+	private int[] answerLengths = new int[16];
+	private long totalQuestionLength = 0;
+	private long totalAnswerLength = 0;
+	/** Weight of one occurrence of a word in each field of each document, see {@link #getFieldWeights}. Null once outdated */
+	private volatile FieldWeights fieldWeights = null;
+
+	/** Score of each document during a search, kept by each thread as it is as big as the index */
+	private static final ThreadLocal<ScoreAccumulator> ACCUMULATORS = ThreadLocal.withInitial(ScoreAccumulator::new);
+
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Questions and tags, to complete what users type. Updated under the write lock, but read without any lock */
+	private volatile SuggestionIndex suggestions = new SuggestionIndex();
+
+	/** Documents added while {@link #rebuild} reads the new content, added to it before it replaces the current one. Null unless a rebuild is in progress. Guarded by the write lock */
+	private List<Document> addedDuringRebuild = null;
+
+	/** An index keeping the json of the documents on the heap, as Strings */
+	public FAQIndex() {
+		this(false);
+	}
+
+	/**
+	 * @param offHeapPayloads true to keep the json of the documents outside the heap, already encoded, see {@link #findMatchPayloads} and {@link #getAllPayloads}. Strings are then decoded from it whenever they are asked for
+	 */
+	public FAQIndex(boolean offHeapPayloads) {
+		payloads = offHeapPayloads ? new PayloadStore() : null;
+	}
+
+	/** @return true if the json of the documents is kept outside the heap, see {@link #FAQIndex(boolean)} */
+	public boolean hasPayloads() {
+		return payloads != null;
+	}
+
+	/**
+	 * Adds a document to the index. Its question and answer fields are indexed, the document itself will be returned as json.
+	 * @return false if a document with the same {@link DatabaseAccessor#FIELD_ID identifier} was already indexed, nothing is done then
+	 */
+	public boolean add(Document document) {
+		Object databaseId = document.get(DatabaseAccessor.FIELD_ID);
+		String question = toText(document.get(DatabaseAccessor.FAQ_FIELD_QUESTION));
+		String answer = toText(document.get(DatabaseAccessor.FAQ_FIELD_ANSWER));
+		String json = document.toJson();
+		byte[] payload = payloads == null ? null : json.getBytes(StandardCharsets.UTF_8); // Encoded before taking the lock
+		Object tags = document.get(DatabaseAccessor.FAQ_FIELD_TAGS);
+		List<String> questionWords = TextAnalyzer.tokenize(question);
+		List<String> answerWords = TextAnalyzer.tokenize(answer);
+		Map<String, int[]> occurrences = new HashMap<>(); // Word -> occurrences in the question, in the answer
+		for (String word : questionWords) {
+			occurrences.computeIfAbsent(word, key -> new int[2])[0]++;
+		}
+		for (String word : answerWords) {
+			occurrences.computeIfAbsent(word, key -> new int[2])[1]++;
+		}
+
+		lock.writeLock().lock();
+		try {
+			if (addedDuringRebuild != null) {
+				addedDuringRebuild.add(document); // The rebuild may have read the collection before it was written
+			}
+			if (databaseId != null && !databaseIds.add(databaseId)) {
+				return false;
+			}
+			int id = questions.size();
+			questions.add(question);
+			answers.add(answer);
+			if (payloads == null) {
+				jsons.add(json);
+			} else {
+				payloads.add(payload);
+			}
+			indexText(id, question);
+			indexText(id, answer);
+			if (id == questionLengths.length) {
+				questionLengths = Arrays.copyOf(questionLengths, id * 2);
+				answerLengths = Arrays.copyOf(answerLengths, id * 2);
+			}
+			questionLengths[id] = questionWords.size();
+			answerLengths[id] = answerWords.size();
+			totalQuestionLength += questionWords.size();
+			totalAnswerLength += answerWords.size();
+			for (Map.Entry<String, int[]> entry : occurrences.entrySet()) {
+				wordPostings.computeIfAbsent(entry.getKey(), key -> new WordPostingList()).add(id, entry.getValue()[0], entry.getValue()[1]);
+			}
+			suggestions.add(question, SuggestionIndex.TYPE_QUESTION);
+			if (tags instanceof List) {
+				for (Object tag : (List<?>) tags) {
+					tagPostings.computeIfAbsent(String.valueOf(tag), key -> new PostingList()).add(id);
+					suggestions.add(String.valueOf(tag), SuggestionIndex.TYPE_TAG);
+				}
+			}
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces every document of the index with those given by load, at once : queries keep being answered from the current documents while the new ones are read and indexed aside, then see all of them. Never an empty or partial index. <BR>
+	 * Documents {@link #add added} meanwhile are added to the new content too, as load may have missed them. One rebuild at a time.
+	 * @param load gives every document of the new content to its argument
+	 */
+	public void rebuild(Consumer<Consumer<Document>> load) {
+		FAQIndex rebuilt = new FAQIndex(payloads != null);
+		lock.writeLock().lock();
+		try {
+			addedDuringRebuild = new ArrayList<>();
+		} finally {
+			lock.writeLock().unlock();
+		}
+		try {
+			load.accept(rebuilt::add);
+		} catch (RuntimeException | Error e) {
+			lock.writeLock().lock();
+			try {
+				addedDuringRebuild = null;
+			} finally {
+				lock.writeLock().unlock();
+			}
+			throw e;
+		}
+		lock.writeLock().lock();
+		try {
+			for (Document document : addedDuringRebuild) {
+				rebuilt.add(document); // Ignored if load read it too
+			}
+			addedDuringRebuild = null;
+			questions = rebuilt.questions;
+			answers = rebuilt.answers;
+			jsons = rebuilt.jsons;
+			payloads = rebuilt.payloads; // The former one isn't cleared : payloads already selected from it may still be being written
+			databaseIds = rebuilt.databaseIds;
+			postings = rebuilt.postings;
+			tagPostings = rebuilt.tagPostings;
+			wordPostings = rebuilt.wordPostings;
+			questionLengths = rebuilt.questionLengths;
+			answerLengths = rebuilt.answerLengths;
+			totalQuestionLength = rebuilt.totalQuestionLength;
+			totalAnswerLength = rebuilt.totalAnswerLength;
+			fieldWeights = null;
+			suggestions = rebuilt.suggestions;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Removes every document from the index */
+	public void clear() {
+		lock.writeLock().lock();
+		try {
+			questions.clear();
+			answers.clear();
+			jsons.clear();
+			if (payloads != null) {
+				payloads.clear();
+			}
+			databaseIds.clear();
+			postings.clear();
+			tagPostings.clear();
+			wordPostings.clear();
+			suggestions.clear();
+			questionLengths = new int[16];
+			answerLengths = new int[16];
+			totalQuestionLength = 0;
+			totalAnswerLength = 0;
+			fieldWeights = null;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Number of documents indexed */
+	public int size() {
+		lock.readLock().lock();
+		try {
+			return questions.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int getDocumentCount() {
+		return size();
+	}
+
+	@Override
+	public long getPayloadBytes() {
+		if (payloads == null) {
+			return 0;
+		}
+		lock.readLock().lock();
+		try {
+			return payloads.getByteCount();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public long getPayloadBufferBytes() {
+		if (payloads == null) {
+			return 0;
+		}
+		lock.readLock().lock();
+		try {
+			return payloads.getAllocatedBytes();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** @return true if a document with this {@link DatabaseAccessor#FIELD_ID identifier} is indexed. Cheaper than {@link #add} for documents mostly already known, as nothing is computed */
+	public boolean contains(Object databaseId) {
+		lock.readLock().lock();
+		try {
+			return databaseIds.contains(databaseId);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Json of every indexed document, in insertion order */
+	public List<String> getAll() {
+		lock.readLock().lock();
+		try {
+			if (payloads == null) {
+				return new ArrayList<>(jsons);
+			}
+			List<String> res = new ArrayList<>(payloads.size());
+			for (int id = 0 ; id < payloads.size() ; id++) {
+				res.add(payloads.getString(id));
+			}
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #getAll}, without decoding the json.
+	 * @return null if the json isn't kept off the heap, see {@link #FAQIndex(boolean)}
+	 */
+	public JsonPayloads getAllPayloads() {
+		if (payloads == null) {
+			return null;
+		}
+		lock.readLock().lock();
+		try {
+			return payloads.selectAll();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Number of FAQ having each tag, for tag clouds and facets. Tags of no FAQ are absent.
+	 */
+	public Map<String, Integer> getTagCounts() {
+		Map<String, Integer> res = new HashMap<>();
+		lock.readLock().lock();
+		try {
+			for (Map.Entry<String, PostingList> entry : tagPostings.entrySet()) {
+				res.put(entry.getKey(), entry.getValue().size);
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Writes every structure of the index, as it is, see {@link IndexSnapshot}. Inserts wait meanwhile, reads don't.
+	 */
+	void writeSnapshot(DataOutput out) throws IOException {
+		lock.readLock().lock();
+		try {
+			int documentCount = questions.size();
+			byte[] buffer = payloads == null ? null : new byte[8192];
+			IndexSnapshot.writeVarInt(out, documentCount);
+			for (int id = 0 ; id < documentCount ; id++) {
+				IndexSnapshot.writeString(out, questions.get(id));
+				IndexSnapshot.writeString(out, answers.get(id));
+				if (payloads == null) {
+					IndexSnapshot.writeString(out, jsons.get(id));
+				} else {
+					payloads.writeSnapshot(out, id, buffer); // The same bytes, without decoding them
+				}
+				IndexSnapshot.writeVarInt(out, questionLengths[id]);
+				IndexSnapshot.writeVarInt(out, answerLengths[id]);
+			}
+			IndexSnapshot.writeVarInt(out, databaseIds.size());
+			for (Object databaseId : databaseIds) {
+				writeDatabaseId(out, databaseId);
+			}
+
+			IndexSnapshot.writeVarInt(out, postings.size());
+			for (Map.Entry<Long, PostingList> entry : postings.entrySet()) {
+				out.writeLong(entry.getKey());
+				IndexSnapshot.writeIds(out, entry.getValue().ids, entry.getValue().size);
+			}
+			IndexSnapshot.writeVarInt(out, tagPostings.size());
+			for (Map.Entry<String, PostingList> entry : tagPostings.entrySet()) {
+				IndexSnapshot.writeString(out, entry.getKey());
+				IndexSnapshot.writeIds(out, entry.getValue().ids, entry.getValue().size);
+			}
+			IndexSnapshot.writeVarInt(out, wordPostings.size());
+			for (Map.Entry<String, WordPostingList> entry : wordPostings.entrySet()) {
+				WordPostingList list = entry.getValue();
+				IndexSnapshot.writeString(out, entry.getKey());
+				IndexSnapshot.writeIds(out, list.ids, list.size);
+				for (int i = 0 ; i < list.size ; i++) {
+					IndexSnapshot.writeVarInt(out, list.questionOccurrences[i]);
+					IndexSnapshot.writeVarInt(out, list.answerOccurrences[i]);
+				}
+			}
+			suggestions.writeSnapshot(out); // Only changed under the write lock
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the content of the index with what {@link #writeSnapshot} wrote. Nothing is computed again : no json encoding, no text analysis. <BR>
+	 * The field weights of the search are not in the snapshot, they are computed by the first search as after any insertion.
+	 */
+	void readSnapshot(ByteBuffer in) {
+		lock.writeLock().lock();
+		try {
+			clear();
+			int documentCount = IndexSnapshot.readVarInt(in);
+			questionLengths = new int[Math.max(16, documentCount)];
+			answerLengths = new int[Math.max(16, documentCount)];
+			for (int id = 0 ; id < documentCount ; id++) {
+				questions.add(IndexSnapshot.readString(in));
+				answers.add(IndexSnapshot.readString(in));
+				if (payloads == null) {
+					jsons.add(IndexSnapshot.readString(in));
+				} else {
+					int length = IndexSnapshot.readVarInt(in);
+					ByteBuffer payload = in.duplicate();
+					payload.limit(in.position() + length);
+					payloads.add(payload); // Copied from the file to the off-heap buffers, without going through the heap
+					in.position(in.position() + length);
+				}
+				questionLengths[id] = IndexSnapshot.readVarInt(in);
+				answerLengths[id] = IndexSnapshot.readVarInt(in);
+				totalQuestionLength += questionLengths[id];
+				totalAnswerLength += answerLengths[id];
+			}
+			int idCount = IndexSnapshot.readVarInt(in);
+			for (int i = 0 ; i < idCount ; i++) {
+				databaseIds.add(readDatabaseId(in));
+			}
+
+			int gramCount = IndexSnapshot.readVarInt(in);
+			for (int i = 0 ; i < gramCount ; i++) {
+				long gram = in.getLong();
+				postings.put(gram, readPostingList(in));
+			}
+			int tagCount = IndexSnapshot.readVarInt(in);
+			for (int i = 0 ; i < tagCount ; i++) {
+				String tag = IndexSnapshot.readString(in);
+				tagPostings.put(tag, readPostingList(in));
+			}
+			int wordCount = IndexSnapshot.readVarInt(in);
+			for (int i = 0 ; i < wordCount ; i++) {
+				String word = IndexSnapshot.readString(in);
+				WordPostingList list = new WordPostingList();
+				list.size = IndexSnapshot.readVarInt(in);
+				list.ids = IndexSnapshot.readIds(in, list.size);
+				list.questionOccurrences = new short[list.ids.length];
+				list.answerOccurrences = new short[list.ids.length];
+				for (int j = 0 ; j < list.size ; j++) {
+					list.questionOccurrences[j] = (short) IndexSnapshot.readVarInt(in);
+					list.answerOccurrences[j] = (short) IndexSnapshot.readVarInt(in);
+				}
+				wordPostings.put(word, list);
+			}
+			suggestions.readSnapshot(in);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	private static PostingList readPostingList(ByteBuffer in) {
+		PostingList list = new PostingList();
+		list.size = IndexSnapshot.readVarInt(in);
+		list.ids = IndexSnapshot.readIds(in, list.size);
+		return list;
+	}
+
+	private static void writeDatabaseId(DataOutput out, Object databaseId) throws IOException {
+		if (databaseId == null) {
+			out.writeByte(SNAPSHOT_NO_ID);
+		} else if (databaseId instanceof ObjectId) {
+			out.writeByte(SNAPSHOT_OBJECT_ID);
+			out.write(((ObjectId) databaseId).toByteArray());
+		} else {
+			out.writeByte(SNAPSHOT_OTHER_ID);
+			RawBsonDocument holder = new RawBsonDocument(new Document(DatabaseAccessor.FIELD_ID, databaseId), new DocumentCodec());
+			ByteBuffer bytes = holder.getByteBuffer().asNIO();
+			IndexSnapshot.writeVarInt(out, bytes.remaining());
+			while (bytes.hasRemaining()) {
+				out.writeByte(bytes.get());
+			}
+		}
+	}
+
+	private static Object readDatabaseId(ByteBuffer in) {
+		byte kind = in.get();
+		if (kind == SNAPSHOT_NO_ID) {
+			return null;
+		} else if (kind == SNAPSHOT_OBJECT_ID) {
+			byte[] bytes = new byte[12];
+			in.get(bytes);
+			return new ObjectId(bytes);
+		} else if (kind == SNAPSHOT_OTHER_ID) {
+			byte[] bytes = new byte[IndexSnapshot.readVarInt(in)];
+			in.get(bytes);
+			return new RawBsonDocument(bytes).decode(new DocumentCodec()).get(DatabaseAccessor.FIELD_ID);
+		}
+		throw new IllegalArgumentException("Unknown identifier kind " + kind);
+	}
+
+	/**
+	 * Returns the json of all documents whose question or answer matches the given regex, in insertion order. <BR>
+	 * Same semantic as the original database query : a document matches when the pattern is found in either field.
+	 * @throws java.util.regex.PatternSyntaxException if the pattern is not a valid regex
+	 */
+	public List<String> findMatches(Pattern pattern) {
+		return findMatches(pattern, null, true);
+	}
+
+	/**
+	 * Same as {@link #findMatches(Pattern)}, but only among the documents having the given tags. Tags are checked first, so the regex is only run on documents having them.
+	 * @param tags tags the documents must have, or null to search all documents
+	 * @param allTags true if documents must have all the tags, false if any of them is enough
+	 */
+	public List<String> findMatches(Pattern pattern, List<String> tags, boolean allTags) {
+		return findMatches(MatchQuery.of(pattern), tags, allTags, 0, 0);
+	}
+
+	/**
+	 * Same as {@link #findMatches(Pattern, List, boolean)}, for a query {@link MatchQuery#plan planned} beforehand (literals are then found without any regex), within a budget.
+	 * @param maxTimeMillis time after which the query is stopped, 0 for no limit
+	 * @param maxResults number of documents beyond which the query is stopped, 0 for no limit
+	 * @throws QueryTooExpensiveException if the query is stopped
+	 */
+	public List<String> findMatches(MatchQuery query, List<String> tags, boolean allTags, long maxTimeMillis, int maxResults) {
+		List<String> literals = requiredLiterals(query.getPattern().pattern());
+		lock.readLock().lock();
+		try {
+			int[] ids = findMatchIds(query, literals, tags, allTags, maxTimeMillis, maxResults);
+			List<String> res = new ArrayList<>(ids.length);
+			for (int id : ids) {
+				res.add(getJson(id));
+			}
+			return res;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Same as {@link #findMatches(MatchQuery, List, boolean, long, int)}, without decoding the json.
+	 * @return null if the json isn't kept off the heap, see {@link #FAQIndex(boolean)}
+	 * @throws QueryTooExpensiveException if the query is stopped
+	 */
+	public JsonPayloads findMatchPayloads(MatchQuery query, List<String> tags, boolean allTags, long maxTimeMillis, int maxResults) {
+		if (payloads == null) {
+			return null;
+		}
+		List<String> literals = requiredLiterals(query.getPattern().pattern());
+		lock.readLock().lock();
+		try {
+			int[] ids = findMatchIds(query, literals, tags, allTags, maxTimeMillis, maxResults);
+			return payloads.select(ids, ids.length);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Ids of the documents matching the query, in insertion order. Must be called with the read lock.
+	 * @param literals what {@link #requiredLiterals} found in the pattern
+	 * @throws QueryTooExpensiveException if the query is stopped
+	 */
+	private int[] findMatchIds(MatchQuery query, List<String> literals, List<String> tags, boolean allTags, long maxTimeMillis, int maxResults) {
+		long deadlineNanos = maxTimeMillis > 0 ? System.nanoTime() + maxTimeMillis * 1_000_000 : Long.MAX_VALUE;
+		int[] candidates = literals == null ? null : getCandidates(literals);
+		if (tags != null) {
+			int[] tagged = getTaggedDocuments(tags, allTags);
+			candidates = candidates == null ? tagged : intersect(candidates, tagged);
+		}
+		int count = candidates == null ? questions.size() : candidates.length;
+		int[] res = new int[Math.min(count, 16)];
+		int resSize = 0;
+		for (int i = 0 ; i < count ; i++) {
+			int id = candidates == null ? i : candidates[i];
+			if (query.matches(questions.get(id), deadlineNanos) || query.matches(answers.get(id), deadlineNanos)) {
+				if (resSize == res.length) {
+					res = Arrays.copyOf(res, Math.min(count, resSize * 2));
+				}
+				res[resSize++] = id;
+				if (maxResults > 0 && resSize > maxResults) {
+					throw new QueryTooExpensiveException("more than " + maxResults + " FAQ match");
+				}
+			}
+			if (i % DOCUMENTS_BETWEEN_CHECKS == 0 && System.nanoTime() > deadlineNanos) {
+				throw new QueryTooExpensiveException("the query took longer than " + maxTimeMillis + " ms");
+			}
+		}
+		return resSize == res.length ? res : Arrays.copyOf(res, resSize);
+	}
+
+	/**
+	 * Returns the json of all documents having the given tags, in insertion order.
+	 * @param allTags true if documents must have all the tags, false if any of them is enough
+	 */
+	public List<String> findByTags(List<String> tags, boolean allTags) {
+		List<String> res = new LinkedList<>();
+		lock.readLock().lock();
+		try {
+			for (int id : getTaggedDocuments(tags, allTags)) {
+				res.add(getJson(id));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Type-ahead : returns the questions and tags starting with what the user typed so far (whatever the case, accents and punctuation), those of the most FAQ first. <BR>
+	 * Doesn't wait for insertions in progress, see {@link SuggestionIndex}.
+	 * @param limit maximum number of suggestions returned
+	 * @return json objects with the suggested text, its type ("question" or "tag") and its popularity (number of FAQ having it)
+	 */
+	public List<String> suggest(String prefix, int limit) {
+		List<String> res = new ArrayList<>(limit);
+		for (SuggestionIndex.Suggestion suggestion : suggestions.suggest(prefix, limit)) {
+			res.add(new Document("suggestion", suggestion.text).append("type", suggestion.type).append("popularity", suggestion.popularity).toJson());
+		}
+		return res;
+	}
+
+	/**
+	 * Ranked search : returns the json of the documents best matching the words of the query, best first. <BR>
+	 * Each word of the query found in a document adds to its score (BM25) : rare words count more than common ones, repeated words more than words found once (up to a point), and words of a short field more than those of a long one. Words of the question count {@link #QUESTION_BOOST} times as much as those of the answer. <BR>
+	 * Only the scores of documents containing at least one of the words are computed, and only the best ones are kept while going through them, so the cost depends on how common the words are rather than on the size of the FAQ. <BR>
+	 * Documents with the same score are in insertion order, so the result is always the same for the same index.
+	 * @param limit maximum number of documents returned
+	 * @return the documents, or an empty list if the query has no word (after removing {@link TextAnalyzer#STOP_WORDS})
+	 */
+	public List<String> search(String query, int limit) {
+		List<String> words = new ArrayList<>(new LinkedHashSet<>(TextAnalyzer.tokenize(query))); // A word repeated in the query counts once
+		List<String> res = new ArrayList<>();
+		if (words.isEmpty() || limit <= 0) {
+			return res;
+		}
+
+		lock.readLock().lock();
+		try {
+			int documentCount = questions.size();
+			FieldWeights weights = getFieldWeights(documentCount);
+			ScoreAccumulator scores = ACCUMULATORS.get();
+			scores.reset(documentCount);
+
+			for (String word : words) {
+				WordPostingList list = wordPostings.get(word);
+				if (list == null) {
+					continue;
+				}
+				float idf = (float) Math.log(1 + (documentCount - list.size + 0.5) / (list.size + 0.5)); // Always positive
+				for (int i = 0 ; i < list.size ; i++) {
+					int id = list.ids[i];
+					float frequency = list.questionOccurrences[i] * weights.question[id] + list.answerOccurrences[i] * weights.answer[id];
+					scores.add(id, idf * frequency / (K1 + frequency));
+				}
+			}
+
+			for (int id : scores.best(limit)) {
+				res.add(getJson(id));
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+		return res;
+	}
+
+	/**
+	 * Weight of one occurrence of a word in each field of each document : the boost of the field, lowered when the field is longer than average. <BR>
+	 * They depend on the average lengths, so they are computed again by the first search following an insertion, rather than at each insertion, which would make a bulk import quadratic. Must be called with the read lock.
+	 */
+	private FieldWeights getFieldWeights(int documentCount) {
+		FieldWeights weights = fieldWeights;
+		if (weights == null || weights.documentCount != documentCount) {
+			float averageQuestionLength = documentCount == 0 ? 1 : Math.max(1f, (float) totalQuestionLength / documentCount);
+			float averageAnswerLength = documentCount == 0 ? 1 : Math.max(1f, (float) totalAnswerLength / documentCount);
+			weights = new FieldWeights(documentCount);
+			for (int id = 0 ; id < documentCount ; id++) {
+				weights.question[id] = QUESTION_BOOST / (1 - B + B * questionLengths[id] / averageQuestionLength);
+				weights.answer[id] = ANSWER_BOOST / (1 - B + B * answerLengths[id] / averageAnswerLength);
+			}
+			fieldWeights = weights; // Several searches may compute it at the same time, they all get the same result
+		}
+		return weights;
+	}
+
+	/**
+	 * Intersects the posting lists of every trigram of the given literals.
+	 * @return the sorted ids of candidate documents, or null if the literals are too short to narrow anything (every document is then a candidate)
+	 */
+	private int[] getCandidates(List<String> literals) {
+		List<PostingList> lists = new ArrayList<>();
+		for (String literal : literals) {
+			for (int i = 0 ; i + GRAM_LENGTH <= literal.length() ; i++) {
+				PostingList list = postings.get(packGram(literal, i));
+				if (list == null) {
+					return new int[0]; // Some required trigram appears nowhere, nothing can match
+				}
+				lists.add(list);
+			}
+		}
+		if (lists.isEmpty()) {
+			return null;
+		}
+
+		lists.sort(Comparator.comparingInt(list -> list.size)); // Smallest first, so that intermediate results stay as small as possible
+		int[] res = Arrays.copyOf(lists.get(0).ids, lists.get(0).size);
+		int resSize = res.length;
+		for (int i = 1 ; i < lists.size() && resSize > 0 ; i++) {
+			resSize = intersect(res, resSize, lists.get(i));
+		}
+		return Arrays.copyOf(res, resSize);
+	}
+
+	/**
+	 * @return the sorted ids of the documents having all (or any) of the given tags
+	 */
+	private int[] getTaggedDocuments(List<String> tags, boolean allTags) {
+		int[] res = null;
+		for (String tag : tags) {
+			PostingList list = tagPostings.get(tag);
+			int[] ids = list == null ? new int[0] : Arrays.copyOf(list.ids, list.size);
+			if (res == null) {
+				res = ids;
+			} else if (allTags) {
+				res = intersect(res, ids);
+			} else {
+				res = union(res, ids);
+			}
+		}
+		return res == null ? new int[0] : res;
+	}
+
+	/** Ids present in both sorted arrays */
+	private static int[] intersect(int[] first, int[] second) {
+		int[] res = new int[Math.min(first.length, second.length)];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < first.length && j < second.length) {
+			if (first[i] < second[j]) {
+				i++;
+			} else if (first[i] > second[j]) {
+				j++;
+			} else {
+				res[size++] = first[i++];
+				j++;
+			}
+		}
+		return Arrays.copyOf(res, size);
+	}
+
+	/** Ids present in either sorted array, sorted */
+	private static int[] union(int[] first, int[] second) {
+		int[] res = new int[first.length + second.length];
+		int i = 0;
+		int j = 0;
+		int size = 0;
+		while (i < first.length || j < second.length) {
+			int next;
+			if (j >= second.length || (i < first.length && first[i] <= second[j])) {
+				next = first[i++];
+			} else {
+				next = second[j++];
+			}
+			if (size == 0 || res[size - 1] != next) {
+				res[size++] = next;
+			}
+		}
+		return Arrays.copyOf(res, size);
+	}
+
+	/**
+	 * Keeps in the first resSize elements of res only those also present in the given list. Both are sorted.
+	 * @return the new number of elements in res
+	 */
+	private static int intersect(int[] res, int resSize, PostingList list) {
+		int kept = 0;
+		int j = 0;
+		for (int i = 0 ; i < resSize && j < list.size ; i++) {
+			while (j < list.size && list.ids[j] < res[i]) {
+				j++;
+			}
+			if (j < list.size && list.ids[j] == res[i]) {
+				res[kept++] = res[i];
+			}
+		}
+		return kept;
+	}
+
+	private void indexText(int id, String text) {
+		for (int i = 0 ; i + GRAM_LENGTH <= text.length() ; i++) {
+			postings.computeIfAbsent(packGram(text, i), key -> new PostingList()).add(id);
+		}
+	}
+
+	/**
+	 * Extracts the parts of the pattern that any matching text must contain as is. <BR>
+	 * Only handles what is left after {@link com.netheos.servlets.FAQServlet} sanitization : "." "^" and "$" end a literal, "*" and "?" make the previous character optional, "+" keeps it but ends the literal.
+	 * @return the literals, or null if the pattern uses something (alternation, groups, classes...) that prevents from knowing what is required
+	 */
+	static List<String> requiredLiterals(String patternString) {
+		List<String> res = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+
+		for (int i = 0 ; i < patternString.length() ; i++) {
+			char c = patternString.charAt(i);
+			if (UNSUPPORTED_REGEX_CHARACTERS.indexOf(c) >= 0) {
+				return null;
+			} else if (c == '*' || c == '?') {
+				if (current.length() > 0) {
+					current.setLength(current.length() - 1);
+				}
+				addLiteral(res, current);
+			} else if (c == '.' || c == '^' || c == '$' || c == '+') {
+				addLiteral(res, current);
+			} else {
+				current.append(c);
+			}
+		}
+		addLiteral(res, current);
+		return res;
+	}
+
+	private static void addLiteral(List<String> literals, StringBuilder current) {
+		if (current.length() > 0) {
+			literals.add(current.toString());
+			current.setLength(0);
+		}
+	}
+
+	/** Packs the 3 chars starting at given position in a single long, avoiding the creation of a String per trigram */
+	private static long packGram(String text, int start) {
+		return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+	}
+
+	/** @return the json of the document, decoded if kept off the heap. Must be called with the read lock */
+	private String getJson(int id) {
+		return payloads == null ? jsons.get(id) : payloads.getString(id);
+	}
+
+	private static String toText(Object field) {
+		return field == null ? "" : field.toString();
+	}
+
+	/** Same as {@link PostingList}, with the occurrences of the word in the question and the answer of each document */
+	private static class WordPostingList {
+		private int[] ids = new int[4];
+		private short[] questionOccurrences = new short[4];
+		private short[] answerOccurrences = new short[4];
+		private int size = 0;
+
+		private void add(int id, int inQuestion, int inAnswer) {
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+				questionOccurrences = Arrays.copyOf(questionOccurrences, size * 2);
+				answerOccurrences = Arrays.copyOf(answerOccurrences, size * 2);
+			}
+			ids[size] = id;
+			questionOccurrences[size] = (short) Math.min(inQuestion, Short.MAX_VALUE); // Beyond a few occurrences, the score doesn't change anyway
+			answerOccurrences[size] = (short) Math.min(inAnswer, Short.MAX_VALUE);
+			size++;
+		}
+	}
+
+	/** See {@link #getFieldWeights} */
+	private static class FieldWeights {
+		private final int documentCount;
+		private final float[] question;
+		private final float[] answer;
+
+		private FieldWeights(int documentCount) {
+			this.documentCount = documentCount;
+			this.question = new float[documentCount];
+			this.answer = new float[documentCount];
+		}
+	}
+
+	/**
+	 * Scores of the documents during a search. Only the documents actually scored are visited afterwards, so the array is as big as the index but only partially used and cleaned.
+	 */
+	private static class ScoreAccumulator {
+		private float[] scores = new float[0];
+		private int[] scored = new int[0];
+		private int scoredCount = 0;
+
+		private void reset(int documentCount) {
+			if (scores.length < documentCount) {
+				scores = new float[documentCount];
+				scored = new int[documentCount];
+			}
+			scoredCount = 0;
+		}
+
+		private void add(int id, float score) {
+			if (scores[id] == 0) { // Scores are always positive
+				scored[scoredCount++] = id;
+			}
+			scores[id] += score;
+		}
+
+		/**
+		 * Keeps the best documents in a heap whose root is the worst of them, replaced whenever a better one is found. Cleans the scores for the next search.
+		 * @return the ids of the best documents, best first
+		 */
+		private int[] best(int limit) {
+			int[] heap = new int[Math.min(limit, scoredCount)];
+			int heapSize = 0;
+			for (int i = 0 ; i < scoredCount ; i++) {
+				int id = scored[i];
+				if (heapSize < heap.length) {
+					heap[heapSize] = id;
+					siftUp(heap, heapSize++);
+				} else if (isWorse(heap[0], id)) {
+					heap[0] = id;
+					siftDown(heap, heapSize);
+				}
+			}
+
+			int[] res = new int[heapSize];
+			for (int i = heapSize - 1 ; i >= 0 ; i--) { // The root is the worst, so the array is filled from its end
+				res[i] = heap[0];
+				heap[0] = heap[i];
+				siftDown(heap, i);
+			}
+			for (int i = 0 ; i < scoredCount ; i++) {
+				scores[scored[i]] = 0;
+			}
+			return res;
+		}
+
+		/** @return true if the first document ranks after the second : lower score, or same score and inserted later */
+		private boolean isWorse(int first, int second) {
+			return scores[first] < scores[second] || (scores[first] == scores[second] && first > second);
+		}
+
+		private void siftUp(int[] heap, int position) {
+			while (position > 0) {
+				int parent = (position - 1) / 2;
+				if (!isWorse(heap[position], heap[parent])) {
+					return;
+				}
+				swap(heap, position, parent);
+				position = parent;
+			}
+		}
+
+		private void siftDown(int[] heap, int heapSize) {
+			int position = 0;
+			while (true) {
+				int worst = position;
+				for (int child = 2 * position + 1 ; child <= 2 * position + 2 && child < heapSize ; child++) {
+					if (isWorse(heap[child], heap[worst])) {
+						worst = child;
+					}
+				}
+				if (worst == position) {
+					return;
+				}
+				swap(heap, position, worst);
+				position = worst;
+			}
+		}
+
+		private static void swap(int[] heap, int i, int j) {
+			int temp = heap[i];
+			heap[i] = heap[j];
+			heap[j] = temp;
+		}
+	}
+
+	/** Growable array of document ids, sorted since ids are given in increasing order */
+	private static class PostingList {
+		private int[] ids = new int[4];
+		private int size = 0;
+
+		private void add(int id) {
+			if (size > 0 && ids[size - 1] == id) {
+				return; // Trigram already seen in this document
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+}
@@ -0,0 +1,14 @@
+package com.netheos.db;
+
+/**
+ * What {@link FAQIndex} shows through JMX, to follow its size. <BR>
+ * The off-heap payloads (see {@link AbstractFAQStore#PAYLOADS_OFF_HEAP_SETTING}) are direct memory : the JVM refuses to allocate more than -XX:MaxDirectMemorySize (by default, as much as the maximum heap), and the heap metrics don't show it.
+ */
+public interface FAQIndexMBean {
+	/** Number of documents indexed */
+	int getDocumentCount();
+	/** Bytes of the json of every document kept off the heap, 0 if it is kept on the heap */
+	long getPayloadBytes();
+	/** Direct memory allocated for the payloads, room left in the last buffer included : what counts towards -XX:MaxDirectMemorySize */
+	long getPayloadBufferBytes();
+}
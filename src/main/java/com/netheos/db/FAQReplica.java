@@ -0,0 +1,184 @@
+package com.netheos.db;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+import org.bson.Document;
+
+/**
+ * Keeps the in-memory {@link FAQIndex} of this node up to date with the FAQ inserted by every node, so that reads can be served from memory on all of them. <BR>
+ * The changes are followed from a {@link FAQChangeSource} opened before the collection is read, then the collection is read once : every FAQ is either read or delivered (or both, duplicates are ignored by the index). <BR>
+ * The staleness is how old the oldest FAQ that may be missing can be : everything committed before the last time the source said it was caught up is known. If the source loses changes, or stays silent longer than allowed, the collection is read again. Only the missing FAQ are added then, so reads keep being served meanwhile. <BR>
+ * Only insertions are followed, as the application never updates nor deletes a FAQ.
+ */
+public class FAQReplica implements FAQReplicaMBean, FAQChangeSource.Listener {
+	/**
+	 * Reads the whole collection, see {@link FAQReplica}
+	 */
+	public interface Loader {
+		/** Gives every document of the collection to the consumer */
+		void loadAll(Consumer<Document> consumer);
+	}
+
+	private final FAQIndex index;
+	/** Called after FAQ were added, to drop the responses computed without them */
+	private final Runnable onChange;
+	private final FAQChangeSource source;
+	private final Loader loader;
+	private final long maxStalenessMillis;
+	private final LongSupplier clock;
+
+	/** Everything committed before this time is in the index, -1 before the first load. Guarded by this */
+	private long upToMillis = -1;
+	/** False while changes may have been lost, until the next reload. Guarded by this */
+	private boolean complete = false;
+
+	private final AtomicLong losses = new AtomicLong();
+	private final AtomicLong appliedInserts = new AtomicLong();
+	private final AtomicLong reloads = new AtomicLong();
+
+	/** Reloads the collection when needed, on a thread of its own so that the source thread keeps delivering changes meanwhile */
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param maxStalenessMillis staleness beyond which the collection is read again, whatever the source says
+	 * @param clock current time in milliseconds, the same as the one of the source
+	 */
+	public FAQReplica(FAQIndex index, Runnable onChange, FAQChangeSource source, Loader loader, long maxStalenessMillis, LongSupplier clock) {
+		this.index = index;
+		this.onChange = onChange;
+		this.source = source;
+		this.loader = loader;
+		this.maxStalenessMillis = maxStalenessMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * Starts following the changes, then reads the whole collection. Returns once it is read, the index then being as fresh as the database. Can be called again if reading failed.
+	 */
+	public void start() {
+		if (scheduler == null) { // Otherwise already following the changes : only reading the collection failed
+			scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+				Thread thread = new Thread(runnable, "faq-replica");
+				thread.setDaemon(true);
+				return thread;
+			});
+			source.start(this);
+		}
+		reload();
+		long checkPeriod = Math.max(1, maxStalenessMillis / 4);
+		scheduler.scheduleWithFixedDelay(this::checkStaleness, checkPeriod, checkPeriod, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops following the changes. The index keeps what it has */
+	public void close() {
+		source.close();
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	@Override
+	public void onInsert(Document document) {
+		if (apply(document)) {
+			appliedInserts.incrementAndGet();
+			onChange.run();
+		}
+	}
+
+	@Override
+	public synchronized void onCaughtUp(long timeMillis) {
+		if (complete && timeMillis > upToMillis) {
+			upToMillis = timeMillis;
+		}
+	}
+
+	@Override
+	public void onLost(Exception cause) {
+		synchronized (this) {
+			complete = false;
+			losses.incrementAndGet();
+		}
+		System.err.println("FAQ changes may have been lost, reading the collection again : " + cause);
+		try {
+			if (scheduler != null) {
+				scheduler.execute(this::reload);
+			}
+		} catch (RejectedExecutionException e) {
+			// Closed
+		}
+	}
+
+	@Override
+	public void reload() {
+		long startMillis = clock.getAsLong();
+		long lossesAtStart = losses.get();
+		long[] added = {0};
+		loader.loadAll(document -> {
+			if (apply(document)) {
+				added[0]++;
+			}
+		});
+		if (added[0] > 0) {
+			onChange.run();
+		}
+		reloads.incrementAndGet();
+		synchronized (this) {
+			if (losses.get() == lossesAtStart) { // Otherwise, what was lost meanwhile may have been committed after the collection was read
+				complete = true;
+				upToMillis = Math.max(upToMillis, startMillis);
+			}
+		}
+	}
+
+	/** Reads the collection again if the source has been silent for too long. Called regularly */
+	void checkStaleness() {
+		if (getStalenessMillis() > maxStalenessMillis) {
+			reload();
+		}
+	}
+
+	/** @return true if the document wasn't known yet */
+	private boolean apply(Document document) {
+		Object databaseId = document.get(DatabaseAccessor.FIELD_ID);
+		return (databaseId == null || !index.contains(databaseId)) && index.add(document);
+	}
+
+	/**
+	 * @param timeMillis time of the same clock as this replica
+	 * @return true if everything committed before the given time is in the index
+	 */
+	public synchronized boolean hasReached(long timeMillis) {
+		return upToMillis >= timeMillis;
+	}
+
+	@Override
+	public synchronized long getStalenessMillis() {
+		return upToMillis < 0 ? Long.MAX_VALUE : Math.max(0, clock.getAsLong() - upToMillis);
+	}
+
+	@Override
+	public long getMaxStalenessMillis() {
+		return maxStalenessMillis;
+	}
+
+	@Override
+	public long getAppliedInserts() {
+		return appliedInserts.get();
+	}
+
+	@Override
+	public long getReloads() {
+		return reloads.get();
+	}
+
+	@Override
+	public long getLosses() {
+		return losses.get();
+	}
+}
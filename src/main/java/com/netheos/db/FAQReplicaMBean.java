@@ -0,0 +1,17 @@
+package com.netheos.db;
+
+/**
+ * What {@link FAQReplica} shows through JMX, to check how far behind the database each node is.
+ */
+public interface FAQReplicaMBean {
+	/** How old (milliseconds) the oldest FAQ that may be missing from this node can be */
+	long getStalenessMillis();
+	long getMaxStalenessMillis();
+	/** FAQ inserted by other nodes (or by hand) and applied from the change source */
+	long getAppliedInserts();
+	long getReloads();
+	/** Times the change source lost changes and the collection had to be read again */
+	long getLosses();
+	/** Reads the whole collection again, adding the FAQ that are missing */
+	void reload();
+}
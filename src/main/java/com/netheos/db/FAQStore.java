@@ -0,0 +1,146 @@
+package com.netheos.db;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+
+/**
+ * Where the FAQ are stored, and everything the controller can ask about them. <BR>
+ * The controller only knows this interface : {@link DatabaseAccessor} keeps the FAQ in MongoDB, {@link EmbeddedFAQStore} in a file of the application server itself. Which one is used is chosen by {@link FAQStores#STORE_TYPE_SETTING}. <BR>
+ * Every method taking a format only accepts {@link com.netheos.servlets.FAQServlet#JSON_FORMAT} for now, and answers anything else with a message saying so. Documents are returned as json.
+ */
+public interface FAQStore {
+	/**
+	 * Returns all documents from the collection with provided name, in provided format.
+	 * Here, format is the json used by documents in mongo, but depending on what the front-end/client needs, it could be anything : XML, HTML, some Java object, simple text formatted in a user-friendly readable way...
+	 * @param format the string "json". Only one accepted for now, but could accept "xml", "human_readable" or more later. How the format is specified could be different (instead of a hardcoded String) depending on what's more convenient, readable and less error-prone. Ex : Integer constants, Strings in a file (xml ? json ? cvs ?), booleans if only 2 formats, enums, different methods for each format... or something else
+	 */
+	default List<String> getWholeCollection(String format, String collectionName) {
+		List<String> res = new LinkedList<>();
+		try {
+			streamWholeCollection(format, collectionName, res::add);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e); // Can't happen, adding to a list doesn't do any I/O
+		}
+		return res;
+	}
+
+	/**
+	 * Same as {@link #getWholeCollection}, but each document is given to the handler as soon as it is read instead of being gathered in a list.
+	 * @return the number of documents given to the handler (the error message, if any, is counted as one)
+	 * @throws IOException if the handler throws it, typically because the client went away
+	 */
+	int streamWholeCollection(String format, String collectionName, DocumentHandler handler) throws IOException;
+
+	/**
+	 * Gives the handler one page of the collection with provided name : at most pageSize documents, starting after the one given by the continuation token.
+	 * @param after continuation token returned for the previous page, or null for the first page
+	 * @param fields names of the fields to return, or null for all of them. {@link DatabaseAccessor#FIELD_ID} is only returned if asked for
+	 * @return the continuation token to give for the next page, or null if this was the last one
+	 * @throws IllegalArgumentException if the continuation token is not one returned by this method
+	 * @throws IOException if the handler throws it
+	 */
+	String streamCollectionPage(String format, String collectionName, String after, int pageSize, List<String> fields, DocumentHandler handler) throws IOException;
+
+	/**
+	 * Returns a list of FAQ when either the question or answer contains the given String (a regex).
+	 */
+	default List<String> getFAQMatches(String patternString, String format) {
+		return getFAQMatches(patternString, format, null, true);
+	}
+
+	/**
+	 * Same as {@link #getFAQMatches(String, String)}, but only among the FAQ having the given tags.
+	 * @param tags tags the FAQ must have, or null for all FAQ
+	 * @param allTags true if FAQ must have all the tags, false if any of them is enough
+	 */
+	List<String> getFAQMatches(String patternString, String format, List<String> tags, boolean allTags);
+
+	/**
+	 * Same as {@link #getFAQMatches(String, String, List, boolean)} in json, as the encoded documents the store keeps, to be written to the response without building any String.
+	 * @return null if the store doesn't keep them, {@link #getFAQMatches(String, String, List, boolean)} must be used then
+	 */
+	default JsonPayloads getFAQMatchPayloads(String patternString, List<String> tags, boolean allTags) {
+		return null;
+	}
+
+	/**
+	 * Same as {@link #getWholeCollection} for the FAQ collection in json, as the encoded documents the store keeps.
+	 * @return null if the store doesn't keep them, or they may miss FAQ written by other nodes : {@link #streamWholeCollection} must be used then
+	 */
+	default JsonPayloads getAllPayloads() {
+		return null;
+	}
+
+	/**
+	 * Returns the FAQ best matching the words of the query, best first. See {@link FAQIndex#search}.
+	 * @param limit maximum number of FAQ returned
+	 */
+	List<String> search(String query, int limit, String format);
+
+	/**
+	 * Returns the questions and tags completing what the user typed so far, most popular first. See {@link FAQIndex#suggest}.
+	 * @param limit maximum number of suggestions returned
+	 */
+	List<String> suggest(String prefix, int limit, String format);
+
+	/**
+	 * @return the version of the FAQ collection, increased by every write, that the responses of this node include. Compared to the one of the client for conditional requests
+	 */
+	CollectionVersion getCollectionVersion();
+
+	/**
+	 * Returns the FAQ having all (or any) of the given tags.
+	 * @param allTags true if FAQ must have all the tags, false if any of them is enough
+	 */
+	List<String> getFAQByTags(List<String> tags, boolean allTags, String format);
+
+	/** Number of FAQ having each tag, for tag clouds and facets */
+	Map<String, Integer> getTagCounts();
+
+	/**
+	 * Stores a couple question/answer, along with given tags.
+	 * @return a message describing the result of the insertion
+	 */
+	String insertNewFAQ(String question, String answer, List<String> tags);
+
+	/**
+	 * Stores several FAQ at once.
+	 * @return the number of FAQ actually stored, the others failed
+	 */
+	int insertNewFAQs(List<FAQEntry> faqs);
+
+	/**
+	 * Reloads what is kept in memory from the stored FAQ. Only needed if they were modified without going through this store (tests...)
+	 */
+	void rebuildIndex();
+
+	/**
+	 * @return how old (milliseconds) the oldest FAQ missing from the responses of this node can be, or -1 if they are always up to date
+	 */
+	long getReplicaStalenessMillis();
+
+	/** Statistics of the response cache (hits, misses, evictions...) */
+	ResponseCacheMBean getCacheStatistics();
+
+	/** Statistics of the in-memory index (documents, off-heap memory...) */
+	FAQIndexMBean getIndexStatistics();
+
+	/**
+	 * Reads what the store needs before answering (database connection, in-memory index...), if not done yet. Called before each use by {@link FAQStores#getInstance} : when it fails, the next call tries again
+	 */
+	default void start() {
+		// Nothing to read by default
+	}
+
+	/** Releases the resources of the store (connections, threads, files...), even if it wasn't {@link #start started}. It can't be used afterwards */
+	void close();
+
+	/**
+	 * Receives documents, one at a time, from the streaming methods of {@link FAQStore}
+	 */
+	interface DocumentHandler {
+		/** @param document the document, already in the requested format */
+		void handle(String document) throws IOException;
+	}
+}
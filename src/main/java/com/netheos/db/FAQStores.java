@@ -0,0 +1,66 @@
+package com.netheos.db;
+
+import java.io.File;
+
+import com.netheos.Configuration;
+import com.netheos.monitoring.Metrics;
+
+/**
+ * Gives the {@link FAQStore} of the application, chosen by {@link #STORE_TYPE_SETTING}.
+ */
+public final class FAQStores {
+	/** Setting for where the FAQ are stored : {@link #STORE_TYPE_MONGO} or {@link #STORE_TYPE_EMBEDDED} */
+	public static final String STORE_TYPE_SETTING = "store.type";
+	/** FAQ stored in MongoDB, see {@link DatabaseAccessor} */
+	public static final String STORE_TYPE_MONGO = "mongo";
+	/** FAQ stored in a file of the application server, see {@link EmbeddedFAQStore}. No database needed */
+	public static final String STORE_TYPE_EMBEDDED = "embedded";
+
+	/** Setting for the file of {@link EmbeddedFAQStore} */
+	public static final String EMBEDDED_PATH_SETTING = "embedded.path";
+	/** Setting to force every write of {@link EmbeddedFAQStore} to the disk before answering, see {@link EmbeddedFAQStore#EmbeddedFAQStore(File, boolean)} */
+	public static final String EMBEDDED_SYNC_WRITES_SETTING = "embedded.syncWrites";
+
+	/** No instance needed, everything is static */
+	private FAQStores() {
+	}
+
+	/**
+	 * Holds the store, created the first time it is asked for. See {@link DatabaseAccessor}'s own holder for why.
+	 */
+	private static class InstanceHolder {
+		private static final FAQStore INSTANCE = create();
+	}
+
+	/**
+	 * Returns the store of the application, creating it first if it doesn't exist, and {@link FAQStore#start starting} it if it isn't yet
+	 * @throws RuntimeException if it can't be started (database unreachable...). The next call tries again
+	 */
+	public static FAQStore getInstance() {
+		FAQStore store = InstanceHolder.INSTANCE;
+		store.start();
+		return store;
+	}
+
+	/** Closes the store of the application, whether it could be started or not */
+	public static void close() {
+		InstanceHolder.INSTANCE.close();
+	}
+
+	/**
+	 * @throws IllegalArgumentException if {@link #STORE_TYPE_SETTING} is none of the known types
+	 */
+	private static FAQStore create() {
+		String type = Configuration.getString(STORE_TYPE_SETTING, STORE_TYPE_MONGO);
+		if (type.equalsIgnoreCase(STORE_TYPE_MONGO)) {
+			return DatabaseAccessor.getUnstartedInstance(); // Started by getInstance, outside of the class initialization : a failure there could never be retried
+		} else if (type.equalsIgnoreCase(STORE_TYPE_EMBEDDED)) {
+			File file = new File(Configuration.getString(EMBEDDED_PATH_SETTING, new File(System.getProperty("user.home"), "netheos-faq.log").getPath()));
+			EmbeddedFAQStore store = new EmbeddedFAQStore(file, Configuration.getBoolean(EMBEDDED_SYNC_WRITES_SETTING, false));
+			Metrics.registerMBean(store.getCacheStatistics(), DatabaseAccessor.CACHE_MBEAN_NAME);
+			Metrics.registerMBean(store.getIndexStatistics(), DatabaseAccessor.INDEX_MBEAN_NAME);
+			return store;
+		}
+		throw new IllegalArgumentException("Setting " + STORE_TYPE_SETTING + " should be " + STORE_TYPE_MONGO + " or " + STORE_TYPE_EMBEDDED + ", found " + type);
+	}
+}
@@ -0,0 +1,244 @@
+package com.netheos.db;
+
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Copy of a {@link FAQIndex} on the local disk, so that a restarted node (server restart, application redeployed) serves requests straight away instead of reading the whole collection from the database and indexing it again. <BR>
+ * The file holds a header (format, {@link CollectionVersion version} of the collection the index includes), then the structures of the index as they are in memory, numbers being written in as few bytes as needed, then a CRC32 of everything before it. It is read through a memory mapping, without copying it first. <BR>
+ * A snapshot is refused if its checksum or format is wrong (file truncated, written by another version of the application...), or if it comes from another {@link CollectionVersion#getEpoch() epoch} : the index is then built from the database, as without snapshot.
+ */
+final class IndexSnapshot {
+	/** "FAQS", at the start of every snapshot */
+	private static final int MAGIC = 0x46415153;
+	/** Increased whenever what is written changes, so that older snapshots are refused rather than misread */
+	static final int FORMAT_VERSION = 1;
+	/** Magic number, format version */
+	private static final int HEADER_LENGTH = 8;
+	/** CRC32 at the end of the file */
+	private static final int CHECKSUM_LENGTH = 8;
+
+	/** No instance needed, everything is static */
+	private IndexSnapshot() {
+	}
+
+	/**
+	 * Writes the index to the file, see {@link #serialize} and {@link #write(Contents, Path)}.
+	 * @param version version of the collection whose writes are all in the index
+	 */
+	static void write(FAQIndex index, CollectionVersion version, Path path) throws IOException {
+		write(serialize(index, version), path);
+	}
+
+	/**
+	 * Copies the index to memory, as it will be written. Inserts wait meanwhile, but only for the copy : the file is written afterwards, without holding anything.
+	 * @param version version of the collection whose writes are all in the index
+	 */
+	static Contents serialize(FAQIndex index, CollectionVersion version) throws IOException {
+		Contents contents = new Contents();
+		DataOutputStream out = new DataOutputStream(contents);
+		out.writeInt(MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		writeString(out, version.getEpoch());
+		out.writeLong(version.getNumber());
+		out.writeLong(version.getLastModifiedMillis());
+		index.writeSnapshot(out);
+		out.flush();
+		return contents; // The checksum is computed when written, out of the lock
+	}
+
+	/**
+	 * Writes a copy of the index to the file. A temporary file is written, then renamed : a node stopping meanwhile leaves the previous snapshot untouched.
+	 */
+	static void write(Contents contents, Path path) throws IOException {
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+		try (FileOutputStream file = new FileOutputStream(temporary.toFile())) {
+			CRC32 crc = contents.writeTo(file);
+			new DataOutputStream(file).writeLong(crc.getValue());
+			file.getFD().sync(); // On the disk before it replaces the previous snapshot
+		}
+		Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Replaces the content of the index with the snapshot, if it can be used.
+	 * @param current version of the collection now : the snapshot must come from the same epoch, and not be newer
+	 * @return the version of the collection the index now includes, older than the current one if FAQ were written since the snapshot. Null if there is no snapshot, or if it comes from another epoch : the index is left untouched then
+	 * @throws IOException if the snapshot can't be read, or is corrupt. The index may have been cleared then
+	 */
+	static CollectionVersion load(Path path, FAQIndex index, CollectionVersion current) throws IOException {
+		if (!Files.isRegularFile(path)) {
+			return null;
+		}
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size < HEADER_LENGTH + CHECKSUM_LENGTH || size > Integer.MAX_VALUE) {
+				throw new IOException("Invalid snapshot size " + size);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException("Not a snapshot");
+			}
+			int format = buffer.getInt();
+			if (format != FORMAT_VERSION) {
+				throw new IOException("Snapshot format " + format + " instead of " + FORMAT_VERSION);
+			}
+			CRC32 crc = new CRC32();
+			ByteBuffer content = buffer.duplicate();
+			content.position(0).limit((int) size - CHECKSUM_LENGTH);
+			crc.update(content);
+			if (crc.getValue() != buffer.getLong((int) size - CHECKSUM_LENGTH)) {
+				throw new IOException("Wrong snapshot checksum");
+			}
+
+			buffer.limit((int) size - CHECKSUM_LENGTH);
+			CollectionVersion version = new CollectionVersion(readString(buffer), buffer.getLong(), buffer.getLong());
+			if (!version.getEpoch().equals(current.getEpoch()) || version.getNumber() > current.getNumber()) {
+				return null;
+			}
+			index.readSnapshot(buffer);
+			if (buffer.hasRemaining()) {
+				throw new IOException(buffer.remaining() + " unexpected bytes at the end of the snapshot");
+			}
+			return version;
+		} catch (BufferUnderflowException | IllegalArgumentException | IndexOutOfBoundsException | NegativeArraySizeException e) {
+			throw new IOException("Truncated snapshot", e); // Checksum right, but not what this version of the application writes
+		}
+	}
+
+	/** Writes a positive number on 1 to 5 bytes, 7 bits at a time, smallest first */
+	static void writeVarInt(DataOutput out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/** Reads a number written by {@link #writeVarInt} */
+	static int readVarInt(ByteBuffer in) {
+		int res = 0;
+		for (int shift = 0 ; shift < 32 ; shift += 7) {
+			byte b = in.get();
+			res |= (b & 0x7F) << shift;
+			if (b >= 0) {
+				return res;
+			}
+		}
+		throw new IllegalArgumentException("Invalid number");
+	}
+
+	/** Writes the length of the UTF-8 bytes, then the bytes. Unlike {@link DataOutput#writeUTF}, there is no length limit */
+	static void writeString(DataOutput out, String value) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		writeVarInt(out, bytes.length);
+		out.write(bytes);
+	}
+
+	/** Reads a string written by {@link #writeString} */
+	static String readString(ByteBuffer in) {
+		int length = readVarInt(in);
+		if (in.hasArray()) {
+			String res = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+			return res;
+		}
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Writes sorted ids as differences from the previous one, small numbers taking a single byte */
+	static void writeIds(DataOutput out, int[] ids, int size) throws IOException {
+		writeVarInt(out, size);
+		int previous = 0;
+		for (int i = 0 ; i < size ; i++) {
+			writeVarInt(out, ids[i] - previous);
+			previous = ids[i];
+		}
+	}
+
+	/**
+	 * Reads ids written by {@link #writeIds}, once their number was read with {@link #readVarInt}
+	 * @return the ids, in an array having room for at least one more
+	 */
+	static int[] readIds(ByteBuffer in, int size) {
+		int[] res = new int[Math.max(4, size + 1)];
+		int previous = 0;
+		for (int i = 0 ; i < size ; i++) {
+			previous += readVarInt(in);
+			res[i] = previous;
+		}
+		return res;
+	}
+
+	/**
+	 * The bytes of a snapshot, between the index and the file. Kept in blocks of {@link #BLOCK_SIZE} bytes rather than one growing array : nothing is copied again as it grows, and no block as big as the snapshot is needed.
+	 */
+	static final class Contents extends OutputStream {
+		private static final int BLOCK_SIZE = 1 << 16;
+
+		private final List<byte[]> blocks = new ArrayList<>();
+		/** Last block, the one written to */
+		private byte[] current;
+		/** Bytes used in {@link #current} */
+		private int used = BLOCK_SIZE;
+
+		@Override
+		public void write(int b) {
+			if (used == BLOCK_SIZE) {
+				addBlock();
+			}
+			current[used++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			while (length > 0) {
+				if (used == BLOCK_SIZE) {
+					addBlock();
+				}
+				int count = Math.min(length, BLOCK_SIZE - used);
+				System.arraycopy(bytes, offset, current, used, count);
+				used += count;
+				offset += count;
+				length -= count;
+			}
+		}
+
+		/**
+		 * Writes every byte to the output, which isn't closed.
+		 * @return the checksum of the bytes written
+		 */
+		CRC32 writeTo(OutputStream output) throws IOException {
+			CRC32 res = new CRC32();
+			for (int i = 0 ; i < blocks.size() ; i++) {
+				int length = i == blocks.size() - 1 ? used : BLOCK_SIZE;
+				res.update(blocks.get(i), 0, length);
+				output.write(blocks.get(i), 0, length);
+			}
+			return res;
+		}
+
+		private void addBlock() {
+			current = new byte[BLOCK_SIZE];
+			blocks.add(current);
+			used = 0;
+		}
+	}
+}
@@ -0,0 +1,59 @@
+package com.netheos.db;
+
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+
+import org.bson.BsonBinaryReader;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.json.JsonWriter;
+import org.bson.json.JsonWriterSettings;
+
+/**
+ * Turns documents read from the database into json, straight from their BSON bytes. <BR>
+ * Documents are read as {@link RawBsonDocument}, so the driver doesn't decode them into a {@link Document} (maps, lists, strings...) only for them to be encoded again right after. Their bytes are piped to a {@link JsonWriter} writing in a buffer kept by each thread, so that the resulting String is about the only thing allocated. <BR>
+ * The json is exactly the one of {@link Document#toJson()}, which is what the in-memory index and the cache hold.
+ */
+final class JsonEncoder {
+	/** Same settings as {@link Document#toJson()} */
+	@SuppressWarnings("deprecation")
+	private static final JsonWriterSettings SETTINGS = new JsonWriterSettings();
+
+	private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+	/** Buffers bigger than this (in chars) aren't kept for the next document, so that one huge document doesn't hold memory forever */
+	private static final int MAX_POOLED_BUFFER_SIZE = 64 * 1024;
+
+	private static final ThreadLocal<StringWriter> BUFFERS = ThreadLocal.withInitial(() -> new StringWriter(1024));
+
+	/** No instance needed, everything is static */
+	private JsonEncoder() {
+	}
+
+	/** Json of the whole document */
+	static String toJson(RawBsonDocument document) {
+		return toJson(document.getByteBuffer().asNIO());
+	}
+
+	/** Json of the document whose BSON bytes are between the position and the limit of the buffer, read in place (see {@link EmbeddedFAQStore}) */
+	static String toJson(ByteBuffer bson) {
+		StringWriter buffer = BUFFERS.get();
+		buffer.getBuffer().setLength(0);
+		try (BsonBinaryReader reader = new BsonBinaryReader(bson)) {
+			new JsonWriter(buffer, SETTINGS).pipe(reader);
+		}
+		String res = buffer.toString();
+		if (buffer.getBuffer().capacity() > MAX_POOLED_BUFFER_SIZE) {
+			BUFFERS.remove();
+		}
+		return res;
+	}
+
+	/** Json of the document without the given field. Rare enough that the document is simply decoded */
+	static String toJsonWithout(RawBsonDocument document, String field) {
+		Document decoded = document.decode(DOCUMENT_CODEC);
+		decoded.remove(field);
+		return decoded.toJson(SETTINGS, DOCUMENT_CODEC);
+	}
+}
@@ -0,0 +1,81 @@
+package com.netheos.db;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Some documents of a {@link FAQIndex} keeping its json off the heap (see {@link AbstractFAQStore#PAYLOADS_OFF_HEAP_SETTING}), to be written to a response as a json array. <BR>
+ * The bytes are copied from the buffers of the index to the output, a few KB at a time, without any String being created : the response costs about the same memory whatever the number of FAQ. <BR>
+ * The documents are those indexed when it was taken : FAQ added since are not included, and the ones included can still be written after the index is cleared.
+ */
+public final class JsonPayloads {
+	/** Bytes copied to the output at a time. Many small FAQ are gathered before being written */
+	private static final int COPY_BUFFER_SIZE = 8192;
+
+	private static final ThreadLocal<byte[]> COPY_BUFFERS = ThreadLocal.withInitial(() -> new byte[COPY_BUFFER_SIZE]);
+
+	private final ByteBuffer[] chunks;
+	/** Chunk and offset of each document, see {@link PayloadStore} */
+	private final long[] positions;
+	private final int[] lengths;
+	private final int size;
+
+	JsonPayloads(ByteBuffer[] chunks, long[] positions, int[] lengths, int size) {
+		this.chunks = chunks;
+		this.positions = positions;
+		this.lengths = lengths;
+		this.size = size;
+	}
+
+	/** Number of documents */
+	public int size() {
+		return size;
+	}
+
+	/** @return the number of bytes {@link #writeJsonArray} writes, known before writing anything so that it can be sent as the length of the response */
+	public long getJsonArrayLength() {
+		long res = 2 + Math.max(0, size - 1); // Brackets and commas
+		for (int i = 0 ; i < size ; i++) {
+			res += lengths[i];
+		}
+		return res;
+	}
+
+	/**
+	 * Writes the documents as a single json array, the same as {@link com.netheos.servlets.FAQServlet#toJsonArray} would give in UTF-8. The output isn't closed.
+	 */
+	public void writeJsonArray(OutputStream output) throws IOException {
+		byte[] buffer = COPY_BUFFERS.get();
+		int used = 0;
+		buffer[used++] = '[';
+		for (int i = 0 ; i < size ; i++) {
+			if (i > 0) {
+				if (used == buffer.length) {
+					output.write(buffer, 0, used);
+					used = 0;
+				}
+				buffer[used++] = ',';
+			}
+			ByteBuffer source = chunks[(int) (positions[i] >>> 32)].duplicate();
+			source.position((int) positions[i]);
+			int remaining = lengths[i];
+			while (remaining > 0) {
+				if (used == buffer.length) {
+					output.write(buffer, 0, used);
+					used = 0;
+				}
+				int count = Math.min(remaining, buffer.length - used);
+				source.get(buffer, used, count);
+				used += count;
+				remaining -= count;
+			}
+		}
+		if (used == buffer.length) {
+			output.write(buffer, 0, used);
+			used = 0;
+		}
+		buffer[used++] = ']';
+		output.write(buffer, 0, used);
+	}
+}
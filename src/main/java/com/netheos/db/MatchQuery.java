@@ -0,0 +1,226 @@
+package com.netheos.db;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.regex.Pattern;
+
+/**
+ * How a "get_match" pattern is run, decided before any FAQ is looked at. <BR>
+ * Most patterns are a word or a few words, without any regex construct : they are literals, found with {@link String#indexOf} rather than by the regex engine. <BR>
+ * Other patterns are simplified first (".*" at either end, or right after another one, adds nothing to the "^.*pattern.*$" regex they are wrapped in), then refused if they could make the regex engine backtrack for too long : too long, too many unbounded repetitions (each one multiplies the ways a text can be tried, ".*a.*b.*c" is already tried in n^5 ways), or a repeated group itself containing a repetition or an alternation ("(a+)+", "(a|ab)*"), which can take exponential time. <BR>
+ * Whatever the plan, a match is stopped once past its deadline, see {@link #matches}. Immutable.
+ */
+public final class MatchQuery {
+	/** Characters having a meaning in a regex. A pattern without any of them is a literal */
+	private static final String REGEX_CHARACTERS = ".*+?^$|()[]{}\\";
+	/** Characters changing how many times the previous element is repeated */
+	private static final String QUANTIFIERS = "*+?{";
+	/** Characters which may end a quantifier, after which "+" and "?" only change how it is repeated (possessive, lazy) */
+	private static final String QUANTIFIER_ENDS = "*+?}";
+	/** Characters of a line break, which ".*" doesn't cross */
+	private static final String LINE_TERMINATORS = "\n\r\u0085\u2028\u2029";
+	/** The deadline is checked every this many characters read by the regex engine, as reading the clock costs more than reading a character */
+	private static final int CHARACTERS_BETWEEN_CHECKS = 4096;
+
+	/** The pattern given by the user, once simplified */
+	private final String patternString;
+	/** Text to find as is, or null if the pattern is a regex */
+	private final String literal;
+	/** The pattern wrapped as the database used to run it, "^.*pattern.*$" */
+	private final Pattern pattern;
+
+	private MatchQuery(String patternString, String literal, Pattern pattern) {
+		this.patternString = patternString;
+		this.literal = literal;
+		this.pattern = pattern;
+	}
+
+	/**
+	 * Decides how the pattern will be run.
+	 * @param patternString as given by the user, once sanitized. Found anywhere in a text, as with "^.*pattern.*$"
+	 * @param maxLength maximum number of characters of the simplified pattern, 0 for no limit
+	 * @param maxRepetitions maximum number of unbounded repetitions ("*", "+") in the simplified pattern, 0 for no limit
+	 * @throws QueryTooExpensiveException if the pattern could take too long to run
+	 * @throws java.util.regex.PatternSyntaxException if the pattern is not a valid regex
+	 */
+	public static MatchQuery plan(String patternString, int maxLength, int maxRepetitions) {
+		String simplified = simplify(patternString);
+		if (maxLength > 0 && simplified.length() > maxLength) {
+			throw new QueryTooExpensiveException("the pattern is longer than " + maxLength + " characters");
+		}
+		Pattern pattern = Pattern.compile("^.*" + simplified + ".*$");
+		for (int i = 0 ; i < simplified.length() ; i++) {
+			if (REGEX_CHARACTERS.indexOf(simplified.charAt(i)) >= 0) {
+				checkComplexity(simplified, maxRepetitions);
+				return new MatchQuery(simplified, null, pattern);
+			}
+		}
+		return new MatchQuery(simplified, simplified, pattern);
+	}
+
+	/**
+	 * Wraps a regex already built, run as is (without any check nor simplification).
+	 */
+	static MatchQuery of(Pattern pattern) {
+		return new MatchQuery(pattern.pattern(), null, pattern);
+	}
+
+	/** @return the pattern given by the user, once simplified : patterns giving the same results often give the same string */
+	public String getPatternString() {
+		return patternString;
+	}
+
+	/** @return true if the pattern is found with a substring search, without any regex */
+	public boolean isLiteral() {
+		return literal != null;
+	}
+
+	/** @return the regex actually run, "^.*pattern.*$" */
+	Pattern getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @param deadlineNanos value of {@link System#nanoTime()} after which the match is stopped, {@link Long#MAX_VALUE} for none
+	 * @return true if the text matches the pattern
+	 * @throws QueryTooExpensiveException if the deadline passed while matching
+	 */
+	boolean matches(String text, long deadlineNanos) {
+		if (literal != null) {
+			if (!text.contains(literal)) {
+				return false;
+			} else if (!containsLineTerminator(text)) {
+				return true;
+			} // Else the regex decides, as ".*" doesn't cross a line break
+		}
+		return pattern.matcher(deadlineNanos == Long.MAX_VALUE ? text : new BoundedText(text, deadlineNanos)).find();
+	}
+
+	/**
+	 * Removes the ".*" adding nothing to the regex : at either end of the pattern (it is wrapped in ".*"), or right after another ".*". <BR>
+	 * Patterns containing escapes are kept as is, as a "." could then be a literal dot.
+	 */
+	static String simplify(String patternString) {
+		if (patternString.indexOf('\\') >= 0) {
+			return patternString;
+		}
+		StringBuilder res = new StringBuilder(patternString.length());
+		for (int i = 0 ; i < patternString.length() ; i++) {
+			boolean wildcard = patternString.startsWith(".*", i) && (i + 2 == patternString.length() || QUANTIFIERS.indexOf(patternString.charAt(i + 2)) < 0);
+			if (wildcard && (res.length() == 0 || endsWithWildcard(res))) {
+				i++; // Skips the "*" too
+			} else {
+				res.append(patternString.charAt(i));
+			}
+		}
+		while (endsWithWildcard(res)) {
+			res.setLength(res.length() - 2);
+		}
+		return res.toString();
+	}
+
+	/**
+	 * Refuses the patterns which could make the regex engine backtrack for too long, see the class description.
+	 * @throws QueryTooExpensiveException if the pattern is one of them
+	 */
+	private static void checkComplexity(String patternString, int maxRepetitions) {
+		Deque<GroupContent> groups = new ArrayDeque<>(); // Groups opened and not closed yet, innermost first
+		groups.push(new GroupContent()); // The pattern itself
+		int repetitions = 0;
+		int classDepth = 0;
+		char previous = 0;
+
+		for (int i = 0 ; i < patternString.length() ; i++) {
+			char c = patternString.charAt(i);
+			if (c == '\\') {
+				i++; // The escaped character is taken as is
+				c = 'a';
+			} else if (classDepth > 0) {
+				if (c == '[') {
+					classDepth++;
+				} else if (c == ']' && previous != '[' && !(previous == '^' && patternString.charAt(i - 2) == '[')) { // "[]...]" and "[^]...]" contain "]"
+					classDepth--;
+				}
+			} else if (c == '[') {
+				classDepth++;
+			} else if (c == '(') {
+				groups.push(new GroupContent());
+			} else if (c == '|') {
+				groups.peek().alternation = true;
+			} else if (c == ')' && groups.size() > 1) {
+				GroupContent group = groups.pop();
+				boolean repeated = i + 1 < patternString.length() && "*+{".indexOf(patternString.charAt(i + 1)) >= 0;
+				if (repeated && (group.repetition || group.alternation)) {
+					throw new QueryTooExpensiveException("a repeated group may not contain a repetition nor an alternation");
+				}
+				groups.peek().repetition |= group.repetition;
+			} else if (QUANTIFIERS.indexOf(c) >= 0 && previous != '(' && QUANTIFIER_ENDS.indexOf(previous) < 0) {
+				groups.peek().repetition = true;
+				if (c == '*' || c == '+') {
+					repetitions++;
+				}
+			}
+			previous = c;
+		}
+		if (maxRepetitions > 0 && repetitions > maxRepetitions) {
+			throw new QueryTooExpensiveException("the pattern contains more than " + maxRepetitions + " repetitions (\"*\", \"+\")");
+		}
+	}
+
+	private static boolean endsWithWildcard(StringBuilder pattern) {
+		int length = pattern.length();
+		return length >= 2 && pattern.charAt(length - 2) == '.' && pattern.charAt(length - 1) == '*';
+	}
+
+	private static boolean containsLineTerminator(String text) {
+		for (int i = 0 ; i < text.length() ; i++) {
+			if (LINE_TERMINATORS.indexOf(text.charAt(i)) >= 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** What a group of the pattern contains, as far as backtracking is concerned */
+	private static class GroupContent {
+		private boolean repetition = false;
+		private boolean alternation = false;
+	}
+
+	/**
+	 * Text whose reading fails once the deadline is past, so that a regex taking too long is stopped wherever it is, rather than holding the thread.
+	 */
+	private static final class BoundedText implements CharSequence {
+		private final String text;
+		private final long deadlineNanos;
+		private int reads = 0;
+
+		private BoundedText(String text, long deadlineNanos) {
+			this.text = text;
+			this.deadlineNanos = deadlineNanos;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if (++reads % CHARACTERS_BETWEEN_CHECKS == 0 && System.nanoTime() > deadlineNanos) {
+				throw new QueryTooExpensiveException("the query took too long");
+			}
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new BoundedText(text.substring(start, end), deadlineNanos);
+		}
+
+		@Override
+		public String toString() {
+			return text;
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package com.netheos.db;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.bson.BsonDocument;
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+
+/**
+ * Follows the change stream of the FAQ collection : every insert, made by any node, is delivered as soon as it is majority committed. Needs a replica set (even of a single member), standalone servers have no change stream. <BR>
+ * After an error, the stream is resumed after the last change delivered, so nothing is lost. If it can't be resumed (the change is too old for the oplog...), a new stream is opened and the listener is told changes may have been lost. <BR>
+ * Each time the server answers that there is nothing new, everything made before the request is known to have been delivered : with {@link #awaitMillis} of waiting on the server, the staleness stays around that value while the stream is healthy.
+ */
+public class MongoChangeSource implements FAQChangeSource {
+	/** Time to wait before opening a new stream after a failure, so that an unavailable server isn't hammered */
+	private static final long RETRY_DELAY_MILLIS = 1000;
+
+	private final MongoCollection<Document> collection;
+	/** How long the server waits for a change before answering that there is none */
+	private final long awaitMillis;
+
+	private volatile boolean closed = false;
+	private Thread thread;
+
+	public MongoChangeSource(MongoCollection<Document> collection, long awaitMillis) {
+		this.collection = collection;
+		this.awaitMillis = awaitMillis;
+	}
+
+	@Override
+	public void start(Listener listener) {
+		MongoCursor<ChangeStreamDocument<Document>> cursor = null;
+		try {
+			cursor = open(null); // Opened before returning, so that no change made afterwards is missed
+		} catch (MongoException e) {
+			listener.onLost(e); // The thread will try again, and the replica reads the collection regularly meanwhile
+		}
+		MongoCursor<ChangeStreamDocument<Document>> firstCursor = cursor;
+		thread = new Thread(() -> follow(listener, firstCursor), "faq-change-stream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	private MongoCursor<ChangeStreamDocument<Document>> open(BsonDocument resumeToken) {
+		ChangeStreamIterable<Document> stream = collection.watch(Collections.singletonList(Aggregates.match(Filters.eq("operationType", "insert"))))
+			.maxAwaitTime(awaitMillis, TimeUnit.MILLISECONDS);
+		if (resumeToken != null) {
+			stream = stream.resumeAfter(resumeToken);
+		}
+		return stream.iterator();
+	}
+
+	private void follow(Listener listener, MongoCursor<ChangeStreamDocument<Document>> cursor) {
+		BsonDocument resumeToken = null;
+		while (!closed) {
+			try {
+				if (cursor == null) {
+					try {
+						cursor = open(resumeToken);
+					} catch (MongoException e) {
+						if (resumeToken == null) {
+							throw e;
+						}
+						resumeToken = null; // Can't resume, start again from now
+						cursor = open(null);
+						listener.onLost(e);
+					}
+				}
+				long requestTime = System.currentTimeMillis();
+				ChangeStreamDocument<Document> change = cursor.tryNext(); // Waits up to awaitMillis on the server
+				if (change == null) {
+					listener.onCaughtUp(requestTime);
+				} else {
+					resumeToken = change.getResumeToken();
+					listener.onInsert(change.getFullDocument());
+				}
+			} catch (MongoException | IllegalStateException e) { // IllegalStateException when the client is closed
+				if (cursor != null) {
+					try {
+						cursor.close();
+					} catch (RuntimeException closeException) {
+						// Already broken
+					}
+					cursor = null;
+				}
+				if (closed) {
+					return;
+				}
+				if (resumeToken == null) {
+					listener.onLost(e); // Nothing to resume from
+				}
+				try {
+					Thread.sleep(RETRY_DELAY_MILLIS);
+				} catch (InterruptedException interrupted) {
+					return; // Closed
+				}
+			}
+		}
+		if (cursor != null) {
+			cursor.close();
+		}
+	}
+}
@@ -0,0 +1,66 @@
+package com.netheos.db;
+
+import java.util.Date;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.FindOneAndUpdateOptions;
+import com.mongodb.client.model.ReturnDocument;
+import com.mongodb.client.model.Updates;
+
+/**
+ * Version of a collection shared by every node, kept in a document of its own : { _id : collection name, epoch : identifier of the counter, number : version, modified : time of the last write }. <BR>
+ * Increased atomically by the database, so that two nodes writing at the same time get different versions. Reading it costs a single lookup by identifier.
+ */
+public class MongoVersionCounter implements VersionTracker.Counter {
+	private static final String FIELD_EPOCH = "epoch";
+	private static final String FIELD_NUMBER = "number";
+	private static final String FIELD_MODIFIED = "modified";
+
+	private final MongoCollection<Document> versions;
+	/** Name of the collection whose version is kept */
+	private final String collectionName;
+
+	/**
+	 * @param versions collection where the version documents are kept, one per collection followed
+	 */
+	public MongoVersionCounter(MongoCollection<Document> versions, String collectionName) {
+		this.versions = versions;
+		this.collectionName = collectionName;
+	}
+
+	@Override
+	public CollectionVersion read() {
+		Document document = versions.find(Filters.eq(DatabaseAccessor.FIELD_ID, collectionName)).first();
+		if (document == null) {
+			try {
+				document = versions.findOneAndUpdate(Filters.eq(DatabaseAccessor.FIELD_ID, collectionName),
+					Updates.combine(Updates.setOnInsert(FIELD_EPOCH, new ObjectId()), Updates.setOnInsert(FIELD_NUMBER, 0L), Updates.setOnInsert(FIELD_MODIFIED, new Date())),
+					new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+			} catch (MongoWriteException e) {
+				if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+					throw e;
+				}
+				document = versions.find(Filters.eq(DatabaseAccessor.FIELD_ID, collectionName)).first(); // Another node created it at the same time
+			}
+		}
+		return toVersion(document);
+	}
+
+	@Override
+	public CollectionVersion increment() {
+		Document document = versions.findOneAndUpdate(Filters.eq(DatabaseAccessor.FIELD_ID, collectionName),
+			Updates.combine(Updates.inc(FIELD_NUMBER, 1L), Updates.currentDate(FIELD_MODIFIED), Updates.setOnInsert(FIELD_EPOCH, new ObjectId())),
+			new FindOneAndUpdateOptions().upsert(true).returnDocument(ReturnDocument.AFTER));
+		return toVersion(document);
+	}
+
+	private static CollectionVersion toVersion(Document document) {
+		return new CollectionVersion(document.getObjectId(FIELD_EPOCH).toHexString(), ((Number) document.get(FIELD_NUMBER)).longValue(), document.getDate(FIELD_MODIFIED).getTime());
+	}
+}
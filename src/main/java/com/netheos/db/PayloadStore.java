@@ -0,0 +1,154 @@
+package com.netheos.db;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * The json of every document of a {@link FAQIndex}, already encoded in UTF-8, kept outside the Java heap. <BR>
+ * Payloads are appended one after the other in direct buffers of {@link #CHUNK_SIZE} bytes (a bigger payload gets a buffer of its own), and found by the id the index gave them : chunk and offset, then length. The garbage collector only sees a few big buffers instead of one String per FAQ, and responses are written by copying the bytes as they are, without encoding them again. <BR>
+ * Payloads are never moved nor overwritten once written, and {@link #clear} drops the buffers rather than reusing them : a {@link JsonPayloads} taken under the read lock of the index can still be written after the lock is released, while FAQ are added. <BR>
+ * Not thread-safe on its own : the {@link FAQIndex} only changes it under its write lock.
+ */
+final class PayloadStore {
+	/** Size (bytes) of the buffers payloads are appended to. Allocated one at a time, as needed */
+	static final int CHUNK_SIZE = 1 << 20;
+
+	/** Buffers holding the payloads. Replaced, never changed, when one is added : captured arrays stay valid */
+	private ByteBuffer[] chunks = new ByteBuffer[0];
+	/** Buffer the next payloads are appended to, null until the first one */
+	private ByteBuffer current = null;
+	/** Index in {@link #chunks} of {@link #current} */
+	private int currentChunk = -1;
+	/** Chunk of each payload in the 32 high bits, offset in the chunk in the 32 low bits. Replaced when grown, like the lengths */
+	private long[] positions = new long[16];
+	private int[] lengths = new int[16];
+	private int size = 0;
+	/** Bytes of all payloads, for monitoring */
+	private long byteCount = 0;
+	/** Bytes of all chunks, for monitoring : the direct memory used */
+	private long allocatedBytes = 0;
+
+	/**
+	 * Appends a payload.
+	 * @return its id : the number of payloads added before it
+	 */
+	int add(byte[] payload) {
+		return add(ByteBuffer.wrap(payload));
+	}
+
+	/**
+	 * Appends the remaining bytes of the buffer (a slice of a {@link IndexSnapshot} typically), which is read to its end.
+	 * @return its id
+	 */
+	int add(ByteBuffer payload) {
+		int length = payload.remaining();
+		ByteBuffer target;
+		if (length > CHUNK_SIZE) {
+			target = ByteBuffer.allocateDirect(length);
+			addChunk(target); // The current chunk, not full yet, stays the one appended to
+		} else {
+			if (current == null || current.remaining() < length) {
+				current = ByteBuffer.allocateDirect(CHUNK_SIZE);
+				currentChunk = addChunk(current);
+			}
+			target = current;
+		}
+		int chunk = target == current ? currentChunk : chunks.length - 1;
+		int offset = target.position();
+		target.put(payload);
+
+		if (size == positions.length) {
+			positions = Arrays.copyOf(positions, size * 2);
+			lengths = Arrays.copyOf(lengths, size * 2);
+		}
+		positions[size] = (long) chunk << 32 | offset;
+		lengths[size] = length;
+		byteCount += length;
+		return size++;
+	}
+
+	/** Removes every payload. Their buffers are freed once no {@link JsonPayloads} uses them anymore */
+	void clear() {
+		chunks = new ByteBuffer[0];
+		current = null;
+		currentChunk = -1;
+		positions = new long[16];
+		lengths = new int[16];
+		size = 0;
+		byteCount = 0;
+		allocatedBytes = 0;
+	}
+
+	/** Number of payloads */
+	int size() {
+		return size;
+	}
+
+	/** Bytes of all payloads, not counting the room left in the last chunk */
+	long getByteCount() {
+		return byteCount;
+	}
+
+	/** Bytes of all chunks, including the room left in them. Chunks dropped by {@link #clear} are not counted, though they are only freed once no longer used */
+	long getAllocatedBytes() {
+		return allocatedBytes;
+	}
+
+	/** @return the payload decoded, for callers needing a String */
+	String getString(int id) {
+		byte[] bytes = new byte[lengths[id]];
+		read(id).get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/** Writes the length of the payload then its bytes, as {@link IndexSnapshot#writeString} would write its json */
+	void writeSnapshot(DataOutput out, int id, byte[] buffer) throws IOException {
+		IndexSnapshot.writeVarInt(out, lengths[id]);
+		ByteBuffer source = read(id);
+		while (source.hasRemaining()) {
+			int count = Math.min(buffer.length, source.remaining());
+			source.get(buffer, 0, count);
+			out.write(buffer, 0, count);
+		}
+	}
+
+	/**
+	 * @param ids ids of the payloads, in the order they must be written
+	 * @param count number of ids to take from the array
+	 * @return the payloads, still readable after the store changes
+	 */
+	JsonPayloads select(int[] ids, int count) {
+		long[] selectedPositions = new long[count];
+		int[] selectedLengths = new int[count];
+		for (int i = 0 ; i < count ; i++) {
+			selectedPositions[i] = positions[ids[i]];
+			selectedLengths[i] = lengths[ids[i]];
+		}
+		return new JsonPayloads(chunks, selectedPositions, selectedLengths, count);
+	}
+
+	/** @return every payload, in insertion order */
+	JsonPayloads selectAll() {
+		return new JsonPayloads(chunks, positions, lengths, size); // Entries below size never change, the arrays can be shared
+	}
+
+	/** @return a buffer whose remaining bytes are the payload, independent of the chunk itself */
+	private ByteBuffer read(int id) {
+		ByteBuffer res = chunks[(int) (positions[id] >>> 32)].duplicate();
+		int offset = (int) positions[id];
+		res.limit(offset + lengths[id]);
+		res.position(offset);
+		return res;
+	}
+
+	/** @return the index of the new chunk */
+	private int addChunk(ByteBuffer chunk) {
+		chunks = Arrays.copyOf(chunks, chunks.length + 1);
+		chunks[chunks.length - 1] = chunk;
+		allocatedBytes += chunk.capacity();
+		return chunks.length - 1;
+	}
+}
@@ -0,0 +1,17 @@
+package com.netheos.db;
+
+/**
+ * Thrown when a query is refused, or stopped, because answering it would cost too much : a pattern that could make the regex engine backtrack for ages, a query running longer than {@link AbstractFAQStore#QUERY_MAX_TIME_SETTING}, or returning more than {@link AbstractFAQStore#QUERY_MAX_RESULTS_SETTING} FAQ. <BR>
+ * The message tells the user why, so that they can make the query more specific.
+ */
+public class QueryTooExpensiveException extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	public QueryTooExpensiveException(String reason) {
+		super(reason);
+	}
+
+	public QueryTooExpensiveException(String reason, Throwable cause) {
+		super(reason, cause);
+	}
+}
@@ -0,0 +1,172 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Bounded, least-recently-used cache of the responses computed by {@link DatabaseAccessor}, as the FAQ is read far more often than it is written. <BR>
+ * Entries expire after a given time to live, and all of them are dropped by {@link #invalidate()}, which must be called after every write to the FAQ. <BR>
+ * Each invalidation also increases a generation counter : a response that was being computed while an invalidation happened is not stored, as it may have been read before the write. <BR>
+ * Responses of more than a given number of documents are not stored either : a few broad queries could otherwise fill the heap, however few the entries. <BR>
+ * Thread-safe. A maximum size of 0 disables the cache.
+ */
+public class ResponseCache implements ResponseCacheMBean {
+	private final int maxEntries;
+	private final long timeToLiveMillis;
+	private final int maxDocumentsPerEntry;
+
+	/** Key -> entry, in access order so that the eldest one is the least recently used */
+	private final LinkedHashMap<String, Entry> entries;
+
+	/** Increased by each invalidation */
+	private long generation = 0;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	private final AtomicLong tooLargeResponses = new AtomicLong();
+
+	/** Cache keeping responses of any size, see {@link #ResponseCache(int, long, int)} */
+	public ResponseCache(int maxEntries, long timeToLiveMillis) {
+		this(maxEntries, timeToLiveMillis, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxEntries number of responses kept at most, the least recently used being evicted first. 0 disables the cache
+	 * @param timeToLiveMillis how long a response stays valid, even without any write. 0 or less means forever
+	 * @param maxDocumentsPerEntry number of documents of a response beyond which it is not kept
+	 */
+	public ResponseCache(int maxEntries, long timeToLiveMillis, int maxDocumentsPerEntry) {
+		this.maxEntries = maxEntries;
+		this.timeToLiveMillis = timeToLiveMillis;
+		this.maxDocumentsPerEntry = maxDocumentsPerEntry;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				boolean full = size() > ResponseCache.this.maxEntries;
+				if (full) {
+					evictions.incrementAndGet();
+				}
+				return full;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached response for given key, or computes it with the loader (outside of any lock, so that a slow query doesn't block other readers) and caches it.
+	 * @param loader computes the response on a miss. It may return null for a response that must not be cached
+	 */
+	public List<String> get(String key, Supplier<List<String>> loader) {
+		long loadGeneration;
+		synchronized (this) {
+			List<String> cached = getIfPresent(key);
+			if (cached != null) {
+				return cached;
+			}
+			loadGeneration = generation;
+		}
+
+		List<String> res = loader.get();
+		if (res != null) {
+			put(key, res, loadGeneration);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the cached response for given key, or null if it isn't cached or has expired. Counts as a hit or a miss.
+	 */
+	public synchronized List<String> getIfPresent(String key) {
+		Entry entry = entries.get(key);
+		if (entry != null && timeToLiveMillis > 0 && System.currentTimeMillis() - entry.creationTime > timeToLiveMillis) {
+			entries.remove(key);
+			entry = null;
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.value;
+	}
+
+	/**
+	 * Stores a response computed while the cache was at given generation, unless an invalidation happened since, or it has more than {@link #getMaxDocumentsPerEntry} documents.
+	 * @param loadGeneration value of {@link #getGeneration()} before the response started being computed
+	 */
+	public synchronized void put(String key, List<String> value, long loadGeneration) {
+		if (value.size() > maxDocumentsPerEntry) {
+			tooLargeResponses.incrementAndGet();
+		} else if (maxEntries > 0 && loadGeneration == generation) {
+			entries.put(key, new Entry(Collections.unmodifiableList(value)));
+		}
+	}
+
+	/** Current generation, to be given back to {@link #put} */
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	@Override
+	public synchronized void invalidate() {
+		generation++;
+		entries.clear();
+		invalidations.incrementAndGet();
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public long getTooLargeResponses() {
+		return tooLargeResponses.get();
+	}
+
+	@Override
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	@Override
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+
+	@Override
+	public long getTimeToLiveMillis() {
+		return timeToLiveMillis;
+	}
+
+	@Override
+	public int getMaxDocumentsPerEntry() {
+		return maxDocumentsPerEntry;
+	}
+
+	private static class Entry {
+		private final List<String> value;
+		private final long creationTime = System.currentTimeMillis();
+
+		private Entry(List<String> value) {
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,19 @@
+package com.netheos.db;
+
+/**
+ * What {@link ResponseCache} shows through JMX (jconsole, VisualVM, monitoring agents...), to help sizing it in production.
+ */
+public interface ResponseCacheMBean {
+	long getHits();
+	long getMisses();
+	long getEvictions();
+	long getInvalidations();
+	/** Responses not kept for having more than {@link #getMaxDocumentsPerEntry} documents */
+	long getTooLargeResponses();
+	int getSize();
+	int getMaxEntries();
+	long getTimeToLiveMillis();
+	int getMaxDocumentsPerEntry();
+	/** Empties the cache, as an insertion would */
+	void invalidate();
+}
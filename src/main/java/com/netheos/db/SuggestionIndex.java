@@ -0,0 +1,245 @@
+package com.netheos.db;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.Normalizer;
+import java.util.*;
+
+/**
+ * Completions of what users are typing, among the questions and tags of the FAQ, most popular first. Used by {@link FAQIndex#suggest}. <BR>
+ * Questions and tags are normalized (lowered, without accents nor punctuation), then kept sorted : the completions of a prefix are then a range of neighbours, found by binary search, as the children of a node of a trie would be. The most popular ones of the range are picked with a tree holding the most popular entry of each half, quarter... of the array, so that only about limit * log(size) entries are looked at, however many complete the prefix. <BR>
+ * Readers never wait : they use an immutable snapshot, replaced by every write (copy-on-write). So that a write doesn't copy everything, recent entries go in a small second snapshot, merged into the main one once it reaches about the square root of its size.
+ */
+final class SuggestionIndex {
+	/** Type of the suggestions completing a question */
+	static final String TYPE_QUESTION = "question";
+	/** Type of the suggestions completing a tag */
+	static final String TYPE_TAG = "tag";
+
+	/** The recent entries are merged into the main snapshot when there are more of them than this, or than the square root of the main snapshot size */
+	private static final int MIN_MERGE_SIZE = 256;
+
+	/** Every entry, by key. Guarded by this, only used by writers */
+	private final TreeMap<String, Suggestion> all = new TreeMap<>();
+	/** Entries added or changed since {@link #main} was built. Guarded by this */
+	private final TreeMap<String, Suggestion> recent = new TreeMap<>();
+
+	private volatile Snapshot main = new Snapshot(Collections.emptyList());
+	private volatile Snapshot delta = new Snapshot(Collections.emptyList());
+
+	/**
+	 * Adds one to the popularity of the given question or tag, adding it if it isn't known yet. Nothing is done for text without any letter or digit.
+	 * @param text as it will be suggested. For a question, the first text seen for a key is kept
+	 */
+	synchronized void add(String text, String type) {
+		String key = type.charAt(0) + normalize(text); // Same text as a question and a tag are 2 suggestions
+		if (key.length() == 1) {
+			return;
+		}
+		Suggestion previous = all.get(key);
+		Suggestion suggestion = new Suggestion(key, previous == null ? text.trim() : previous.text, type, previous == null ? 1 : previous.popularity + 1);
+		all.put(key, suggestion);
+		recent.put(key, suggestion);
+		if (recent.size() > Math.max(MIN_MERGE_SIZE, Math.sqrt(all.size()))) {
+			main = new Snapshot(all.values());
+			recent.clear();
+		}
+		delta = new Snapshot(recent.values());
+	}
+
+	synchronized void clear() {
+		all.clear();
+		recent.clear();
+		main = new Snapshot(Collections.emptyList());
+		delta = new Snapshot(Collections.emptyList());
+	}
+
+	/** Writes every entry, for {@link FAQIndex#writeSnapshot} */
+	synchronized void writeSnapshot(DataOutput out) throws IOException {
+		IndexSnapshot.writeVarInt(out, all.size());
+		for (Suggestion suggestion : all.values()) {
+			IndexSnapshot.writeString(out, suggestion.key);
+			IndexSnapshot.writeString(out, suggestion.text);
+			IndexSnapshot.writeVarInt(out, suggestion.popularity);
+		}
+	}
+
+	/** Replaces every entry with those written by {@link #writeSnapshot}, in a single main snapshot */
+	synchronized void readSnapshot(ByteBuffer in) {
+		clear();
+		int count = IndexSnapshot.readVarInt(in);
+		for (int i = 0 ; i < count ; i++) {
+			String key = IndexSnapshot.readString(in);
+			String text = IndexSnapshot.readString(in);
+			String type = key.charAt(0) == TYPE_TAG.charAt(0) ? TYPE_TAG : TYPE_QUESTION;
+			all.put(key, new Suggestion(key, text, type, IndexSnapshot.readVarInt(in)));
+		}
+		main = new Snapshot(all.values());
+	}
+
+	/**
+	 * @return at most limit suggestions completing the prefix, questions and tags mixed, most popular first, then shortest first. Empty if the prefix has no letter nor digit
+	 */
+	List<Suggestion> suggest(String prefix, int limit) {
+		String normalized = normalize(prefix);
+		if (normalized.isEmpty()) {
+			return Collections.emptyList();
+		}
+		if (!Character.isLetterOrDigit(prefix.charAt(prefix.length() - 1))) {
+			normalized += ' '; // A finished word : "join " shouldn't suggest "joined"
+		}
+		Snapshot currentDelta = delta; // Read before main : a merge sets main first, so an entry may be seen twice, but never missed
+		Snapshot currentMain = main;
+
+		List<Suggestion> res = new ArrayList<>(limit * 2);
+		for (String type : Arrays.asList(TYPE_QUESTION, TYPE_TAG)) {
+			String key = type.charAt(0) + normalized;
+			currentDelta.addBest(key, limit, null, res);
+			currentMain.addBest(key, limit, currentDelta, res); // Entries changed since are in the delta, with their new popularity
+		}
+		res.sort(Suggestion.BEST_FIRST);
+		return res.size() > limit ? res.subList(0, limit) : res;
+	}
+
+	/**
+	 * @return the text lowered, without accents, with letters and digits only, words separated by a single space
+	 */
+	static String normalize(String text) {
+		String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+		StringBuilder res = new StringBuilder(decomposed.length());
+		boolean space = false;
+		for (int i = 0 ; i < decomposed.length() ; i++) {
+			char c = decomposed.charAt(i);
+			if (Character.isLetterOrDigit(c)) {
+				if (space && res.length() > 0) {
+					res.append(' ');
+				}
+				res.append(Character.toLowerCase(c));
+				space = false;
+			} else if (Character.getType(c) != Character.NON_SPACING_MARK) { // Accents are dropped without separating words
+				space = true;
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * A question or tag that may be suggested. Immutable
+	 */
+	static final class Suggestion {
+		/** Most popular first, then shortest, then in alphabetical order */
+		static final Comparator<Suggestion> BEST_FIRST = (first, second) -> {
+			if (first.popularity != second.popularity) {
+				return Integer.compare(second.popularity, first.popularity);
+			}
+			if (first.key.length() != second.key.length()) {
+				return Integer.compare(first.key.length(), second.key.length());
+			}
+			return first.key.compareTo(second.key);
+		};
+
+		/** First letter of the type, then the normalized text */
+		final String key;
+		final String text;
+		final String type;
+		/** Number of FAQ having this tag, or this question */
+		final int popularity;
+
+		Suggestion(String key, String text, String type, int popularity) {
+			this.key = key;
+			this.text = text;
+			this.type = type;
+			this.popularity = popularity;
+		}
+	}
+
+	/**
+	 * Sorted entries, and a tree telling which is the best of any range of them. Immutable
+	 */
+	private static final class Snapshot {
+		private final String[] keys;
+		private final Suggestion[] suggestions;
+		/** Number of leaves of {@link #tree}, a power of 2 */
+		private final int leaves;
+		/** Implicit binary tree : node i has children 2i and 2i+1, leaves start at {@link #leaves}. Each node holds the position of the best entry below it, -1 if none */
+		private final int[] tree;
+
+		Snapshot(Collection<Suggestion> sorted) {
+			suggestions = sorted.toArray(new Suggestion[0]);
+			keys = new String[suggestions.length];
+			for (int i = 0 ; i < suggestions.length ; i++) {
+				keys[i] = suggestions[i].key;
+			}
+			leaves = Integer.highestOneBit(Math.max(1, suggestions.length - 1)) << 1;
+			tree = new int[2 * leaves];
+			Arrays.fill(tree, -1);
+			for (int i = 0 ; i < suggestions.length ; i++) {
+				tree[leaves + i] = i;
+			}
+			for (int node = leaves - 1 ; node > 0 ; node--) {
+				tree[node] = best(tree[2 * node], tree[2 * node + 1]);
+			}
+		}
+
+		/**
+		 * Adds to res the best entries, at most limit, whose key starts with the given one. Entries present in the ignored snapshot are skipped.
+		 */
+		void addBest(String prefix, int limit, Snapshot ignored, List<Suggestion> res) {
+			int from = lowerBound(prefix);
+			int to = lowerBound(prefix + Character.MAX_VALUE);
+			if (from >= to) {
+				return;
+			}
+			// Best first search : each range is represented by its best entry, taking it splits the range in 2
+			PriorityQueue<int[]> ranges = new PriorityQueue<>((first, second) -> Suggestion.BEST_FIRST.compare(suggestions[first[0]], suggestions[second[0]]));
+			ranges.add(new int[] {bestIn(from, to), from, to});
+			int added = 0;
+			while (added < limit && !ranges.isEmpty()) {
+				int[] range = ranges.poll();
+				int position = range[0];
+				if (ignored == null || !ignored.contains(keys[position])) {
+					res.add(suggestions[position]);
+					added++;
+				}
+				if (range[1] < position) {
+					ranges.add(new int[] {bestIn(range[1], position), range[1], position});
+				}
+				if (position + 1 < range[2]) {
+					ranges.add(new int[] {bestIn(position + 1, range[2]), position + 1, range[2]});
+				}
+			}
+		}
+
+		boolean contains(String key) {
+			return Arrays.binarySearch(keys, key) >= 0;
+		}
+
+		/** Position of the first key not before the given one */
+		private int lowerBound(String key) {
+			int position = Arrays.binarySearch(keys, key);
+			return position >= 0 ? position : -position - 1;
+		}
+
+		/** Position of the best entry between from (included) and to (excluded), not empty */
+		private int bestIn(int from, int to) {
+			int res = -1;
+			for (int left = from + leaves, right = to + leaves ; left < right ; left >>= 1, right >>= 1) {
+				if ((left & 1) == 1) {
+					res = best(res, tree[left++]);
+				}
+				if ((right & 1) == 1) {
+					res = best(res, tree[--right]);
+				}
+			}
+			return res;
+		}
+
+		private int best(int first, int second) {
+			if (first < 0 || second < 0) {
+				return Math.max(first, second);
+			}
+			return Suggestion.BEST_FIRST.compare(suggestions[first], suggestions[second]) <= 0 ? first : second;
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.netheos.db;
+
+import java.util.*;
+
+/**
+ * Splits text into the words used by the ranked search of {@link FAQIndex}, the same way for the FAQ and for the queries. <BR>
+ * Words are sequences of letters and digits, lowered. Single characters and very common English words (see {@link #STOP_WORDS}) are dropped : they appear in nearly every FAQ, so they would only slow the search down without changing the ranking much. <BR>
+ * There is no stemming : "invoice" and "invoices" are different words.
+ */
+final class TextAnalyzer {
+	/** Words ignored by the search */
+	static final Set<String> STOP_WORDS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+		"a", "about", "an", "and", "are", "as", "at", "be", "but", "by", "can", "do", "does", "for", "from", "has", "have", "how", "i", "if", "in", "into",
+		"is", "it", "its", "me", "my", "no", "not", "of", "on", "or", "so", "such", "that", "the", "their", "then", "there", "these", "they", "this",
+		"to", "was", "we", "what", "when", "where", "which", "who", "why", "will", "with", "you", "your")));
+
+	/** No instance needed, everything is static */
+	private TextAnalyzer() {
+	}
+
+	/**
+	 * @return the words of the text, in order, repeated as many times as they appear
+	 */
+	static List<String> tokenize(String text) {
+		List<String> res = new ArrayList<>();
+		int start = -1;
+		for (int i = 0 ; i <= text.length() ; i++) {
+			boolean wordCharacter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+			if (wordCharacter && start < 0) {
+				start = i;
+			} else if (!wordCharacter && start >= 0) {
+				if (i - start > 1) {
+					String word = text.substring(start, i).toLowerCase(Locale.ROOT);
+					if (!STOP_WORDS.contains(word)) {
+						res.add(word);
+					}
+				}
+				start = -1;
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,180 @@
+package com.netheos.db;
+
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+
+/**
+ * Version of the FAQ collection advertised by this node, for conditional requests : a client having the response of a version gets a "304 Not Modified" rather than the same response again. <BR>
+ * The version is a counter shared by every node ({@link Counter}), increased after each write has reached the database. A node only advertises a version once everything written up to it is in the responses it serves, otherwise a client could keep a response missing a FAQ. <BR>
+ * Its own writes are in its responses as soon as they are made, so their versions are advertised straight away, as long as no other node wrote in between. Versions increased by other nodes are read regularly (every {@link #refreshMillis}) by a thread of its own, and advertised once this node has {@link CatchUp caught up} with the writes they stand for. <BR>
+ * Advertising an older version than it could is always safe : the client is at worst sent a response it already has.
+ */
+public class VersionTracker implements VersionTrackerMBean {
+	/**
+	 * The counter shared by every node, see {@link VersionTracker}
+	 */
+	public interface Counter {
+		/** @return the current version, created if there is none yet */
+		CollectionVersion read();
+
+		/** Increases the version by one, after a write. @return the new version */
+		CollectionVersion increment();
+	}
+
+	/**
+	 * Brings in what other nodes wrote, see {@link VersionTracker}
+	 */
+	public interface CatchUp {
+		/**
+		 * @param timeMillis {@link System#currentTimeMillis()} of this node
+		 * @return true once everything committed before that time is in the responses of this node, possibly brought in by this call. False to be asked again later
+		 */
+		boolean reach(long timeMillis);
+	}
+
+	private final Counter counter;
+	private final CatchUp catchUp;
+	private final long refreshMillis;
+	private final LongSupplier clock;
+
+	/** Version advertised, see {@link #get} */
+	private volatile CollectionVersion version;
+	/** Latest version read from the counter */
+	private volatile CollectionVersion latest;
+	/** Versions of the writes of this node, above {@link #version} but not advertised yet, as versions are missing in between. Guarded by this */
+	private final TreeMap<Long, CollectionVersion> ownVersions = new TreeMap<>();
+
+	private final AtomicLong catchUps = new AtomicLong();
+	private final AtomicLong pendingIncrements = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param refreshMillis how often the counter is read, to follow the writes of other nodes
+	 * @param clock current time in milliseconds, the same as the one of catchUp
+	 */
+	public VersionTracker(Counter counter, CatchUp catchUp, long refreshMillis, LongSupplier clock) {
+		this.counter = counter;
+		this.catchUp = catchUp;
+		this.refreshMillis = refreshMillis;
+		this.clock = clock;
+	}
+
+	/**
+	 * Reads the current version, then loads the collection : the responses then include everything written up to that version, which is advertised. Then starts following the writes of other nodes.
+	 * @param load reads the collection, returns once done. Given the version read, for what was saved from an earlier one (see {@link IndexSnapshot})
+	 */
+	public void start(Consumer<CollectionVersion> load) {
+		CollectionVersion initial = counter.read();
+		load.accept(initial);
+		version = initial;
+		latest = initial;
+		scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "faq-version");
+			thread.setDaemon(true);
+			return thread;
+		});
+		scheduler.scheduleWithFixedDelay(this::refresh, refreshMillis, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Stops following the writes of other nodes */
+	public void close() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+		}
+	}
+
+	/** @return the version this node answers conditional requests with */
+	public CollectionVersion get() {
+		return version;
+	}
+
+	/**
+	 * Increases the version after a write of this node has reached the database, and is in its responses. <BR>
+	 * If the counter can't be reached, the write still succeeded : the increase is tried again at the next refresh, the version not changing meanwhile.
+	 */
+	public void written() {
+		CollectionVersion increased;
+		try {
+			increased = counter.increment();
+		} catch (RuntimeException e) {
+			pendingIncrements.incrementAndGet();
+			System.err.println("Could not increase the version of the FAQ collection, will try again : " + e);
+			return;
+		}
+		latest = newest(latest, increased);
+		synchronized (this) {
+			if (version != null && increased.getEpoch().equals(version.getEpoch()) && increased.getNumber() > version.getNumber()) {
+				ownVersions.put(increased.getNumber(), increased);
+				advanceOwnVersions();
+			} // Otherwise, the counter was created again : the next refresh catches up with it
+		}
+	}
+
+	/**
+	 * Increases the version if that failed before, then reads it and advertises it once caught up with the writes of the other nodes. Called regularly.
+	 */
+	void refresh() {
+		try {
+			if (pendingIncrements.getAndSet(0) > 0) {
+				written();
+			}
+			CollectionVersion read = counter.read();
+			long readMillis = clock.getAsLong(); // After the read : everything the version stands for was committed before
+			latest = newest(latest, read);
+			if (read.isNewerThan(version) && catchUp.reach(readMillis)) {
+				catchUps.incrementAndGet();
+				synchronized (this) {
+					if (read.isNewerThan(version)) {
+						if (read.getEpoch().equals(version.getEpoch())) {
+							ownVersions.headMap(read.getNumber(), true).clear();
+						} else {
+							ownVersions.clear();
+						}
+						version = read;
+						advanceOwnVersions();
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			System.err.println("Could not refresh the version of the FAQ collection : " + e);
+		}
+	}
+
+	/** Advertises the versions of the writes of this node following the one advertised. Must hold the lock */
+	private void advanceOwnVersions() {
+		CollectionVersion next;
+		while ((next = ownVersions.remove(version.getNumber() + 1)) != null) {
+			version = next;
+		}
+	}
+
+	private static CollectionVersion newest(CollectionVersion first, CollectionVersion second) {
+		return second.isNewerThan(first) ? second : first;
+	}
+
+	@Override
+	public String getVersion() {
+		return String.valueOf(version);
+	}
+
+	@Override
+	public String getLatestVersion() {
+		return String.valueOf(latest);
+	}
+
+	@Override
+	public long getCatchUps() {
+		return catchUps.get();
+	}
+
+	@Override
+	public long getPendingIncrements() {
+		return pendingIncrements.get();
+	}
+}
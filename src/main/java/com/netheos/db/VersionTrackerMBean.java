@@ -0,0 +1,15 @@
+package com.netheos.db;
+
+/**
+ * What {@link VersionTracker} shows through JMX, to check that every node follows the version of the collection.
+ */
+public interface VersionTrackerMBean {
+	/** Version of the collection this node answers conditional requests with */
+	String getVersion();
+	/** Latest version of the shared counter this node has read, it may not have caught up with it yet */
+	String getLatestVersion();
+	/** Times this node brought in writes of other nodes before advertising their version */
+	long getCatchUps();
+	/** Writes whose version could not be increased yet, the counter being unreachable. Tried again at each refresh */
+	long getPendingIncrements();
+}
@@ -0,0 +1,294 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+
+/**
+ * Inserts FAQ in the database from a thread of its own, grouping those added at about the same time into a single insertion. <BR>
+ * When admins add many FAQ at once, each of them then no longer pays a round trip to the database : a batch is sent as soon as it holds {@link #maxBatchSize} FAQ, or {@link #maxDelayMillis} after its first one. Even without any delay, the FAQ added while a batch is being written are grouped in the next one. <BR>
+ * The queue is bounded : when it is full, adding waits up to {@link #maxWaitMillis} for room, then is refused, so that a slow database makes admins wait or retry rather than filling the memory. <BR>
+ * Batches failing because of the database (unreachable, primary changing...) are tried again a few times. FAQ refused by the database (invalid...) are not. <BR>
+ * Admins waiting for their FAQ to be written never wait forever : they give up after {@link #flushTimeoutMillis}, and the FAQ still queued when the queue stops (closed or interrupted) are failed.
+ */
+public class WriteBehindQueue implements WriteBehindQueueMBean {
+	/** When a FAQ added to the queue is considered inserted */
+	public enum Durability {
+		/** As soon as it is queued : fastest, but it is lost if the server stops before it is written, and failures are only logged */
+		ENQUEUE,
+		/** Once its batch is written to the database : the admin waits for the batch, but still doesn't pay a round trip alone */
+		FLUSH
+	}
+
+	/**
+	 * Writes a batch to the database
+	 */
+	public interface BatchWriter {
+		/**
+		 * @return the positions, in the batch, of the FAQ refused by the database. The others were inserted
+		 * @throws MongoException if the batch couldn't be written at all, it is then tried again
+		 */
+		Set<Integer> write(List<Document> batch);
+	}
+
+	/** Times a batch is tried when the database can't be reached */
+	private static final int MAX_ATTEMPTS = 3;
+	/** Time waited after a first failed attempt, doubled after each following one */
+	private static final long RETRY_DELAY_MILLIS = 200;
+
+	private final BatchWriter writer;
+	/** Called after each batch written, to drop the responses read from the database before it */
+	private final Runnable onFlush;
+	private final Durability durability;
+	private final int maxBatchSize;
+	private final long maxDelayMillis;
+	private final long maxWaitMillis;
+	private final long flushTimeoutMillis;
+
+	private final BlockingQueue<Pending> queue;
+	private final Thread flusher;
+	private volatile boolean closed = false;
+	/** Set once the flusher writes nothing more : whatever is still queued then is failed */
+	private volatile boolean stopped = false;
+
+	private final AtomicLong flushedBatches = new AtomicLong();
+	private final AtomicLong flushedDocuments = new AtomicLong();
+	private final AtomicLong failedDocuments = new AtomicLong();
+	private final AtomicLong rejections = new AtomicLong();
+	/** FAQ added and neither written nor failed yet, whether still queued or in the batch being written */
+	private final AtomicInteger unwritten = new AtomicInteger();
+
+	/**
+	 * Starts the thread writing the batches.
+	 * @param capacity number of FAQ waiting to be written beyond which adding waits
+	 * @param maxWaitMillis how long adding waits for room in a full queue before being refused
+	 * @param flushTimeoutMillis how long adding waits, in {@link Durability#FLUSH} mode, for the FAQ to be written
+	 */
+	public WriteBehindQueue(BatchWriter writer, Runnable onFlush, Durability durability, int capacity, int maxBatchSize, long maxDelayMillis, long maxWaitMillis, long flushTimeoutMillis) {
+		this.writer = writer;
+		this.onFlush = onFlush;
+		this.durability = durability;
+		this.maxBatchSize = maxBatchSize;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxWaitMillis = maxWaitMillis;
+		this.flushTimeoutMillis = flushTimeoutMillis;
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.flusher = new Thread(this::flushLoop, "faq-write-behind");
+		flusher.setDaemon(true); // Stopped by close(), this is just in case it isn't called
+		flusher.start();
+	}
+
+	/**
+	 * Adds the FAQ to the queue. Depending on the {@link Durability}, returns once it is queued, or once it is written.
+	 * @throws RejectedExecutionException if the queue stayed full for {@link #maxWaitMillis}
+	 * @throws MongoException in {@link Durability#FLUSH} mode, if the FAQ could not be written, or wasn't within {@link #flushTimeoutMillis} (it may still be written later)
+	 * @throws IllegalStateException if the queue is closed
+	 */
+	public void add(Document document) {
+		if (closed) {
+			throw new IllegalStateException("The write-behind queue is closed");
+		}
+		Pending pending = new Pending(document);
+		unwritten.incrementAndGet(); // Before it is queued, so that it can't be written before being counted
+		boolean queued = false;
+		try {
+			if (!queue.offer(pending, maxWaitMillis, TimeUnit.MILLISECONDS)) {
+				unwritten.decrementAndGet();
+				rejections.incrementAndGet();
+				throw new RejectedExecutionException("Too many FAQ are waiting to be inserted");
+			}
+			queued = true;
+			if (stopped) {
+				failQueued(); // Queued after the flusher stopped, nobody would ever write it
+			}
+			if (durability == Durability.FLUSH) {
+				pending.written.get(flushTimeoutMillis, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			if (!queued) {
+				unwritten.decrementAndGet(); // Interrupted while waiting for room
+			}
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while inserting", e);
+		} catch (TimeoutException e) {
+			throw new MongoException("The FAQ was not written within " + flushTimeoutMillis + " ms, it may still be");
+		} catch (ExecutionException e) {
+			throw e.getCause() instanceof MongoException ? (MongoException) e.getCause() : new MongoException("Could not insert the FAQ", e.getCause());
+		}
+	}
+
+	/** @return true if some FAQ added are not written yet : the database doesn't have them, the responses read from it would miss them */
+	public boolean hasUnwritten() {
+		return unwritten.get() > 0;
+	}
+
+	/** @return true if {@link #add} returns before the FAQ is written, see {@link Durability#ENQUEUE} */
+	public boolean acknowledgesOnEnqueue() {
+		return durability == Durability.ENQUEUE;
+	}
+
+	/**
+	 * Writes what is still queued, then stops the thread. FAQ added meanwhile are refused, or failed if they are queued too late.
+	 * @param timeoutMillis how long to wait for the queue to be written. FAQ still queued afterwards are lost, and failed
+	 */
+	public void close(long timeoutMillis) {
+		closed = true;
+		try {
+			flusher.join(timeoutMillis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		if (flusher.isAlive()) {
+			System.err.println("Write-behind queue closed before being written, " + queue.size() + " FAQ lost");
+			flusher.interrupt(); // Fails them
+		}
+	}
+
+	/** Gathers the batches and writes them, until closed and empty */
+	private void flushLoop() {
+		List<Pending> batch = new ArrayList<>(maxBatchSize);
+		try {
+			while (!closed || !queue.isEmpty()) {
+				Pending first = queue.poll(100, TimeUnit.MILLISECONDS); // Regularly checks whether it was closed
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+				while (batch.size() < maxBatchSize) {
+					queue.drainTo(batch, maxBatchSize - batch.size());
+					long remaining = deadline - System.nanoTime();
+					if (batch.size() >= maxBatchSize || remaining <= 0 || closed) {
+						break;
+					}
+					Pending next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+					if (next != null) {
+						batch.add(next);
+					}
+				}
+				flush(batch);
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			// Closed without waiting any longer
+		} finally {
+			stopped = true;
+			fail(batch); // Interrupted while writing it
+			failQueued();
+		}
+	}
+
+	/** Fails every FAQ still queued, once the flusher stopped */
+	private void failQueued() {
+		List<Pending> remaining = new ArrayList<>();
+		queue.drainTo(remaining);
+		fail(remaining);
+	}
+
+	/** Tells the admins waiting for these FAQ that they won't be written. Those already written are left as they are */
+	private void fail(List<Pending> pendings) {
+		for (Pending pending : pendings) {
+			if (!pending.written.isDone()) { // Each FAQ is only failed by whoever drained it, but the batch may be partly written already
+				failedDocuments.incrementAndGet(); // Counted before the admin is told, as flush does
+				unwritten.decrementAndGet();
+				pending.written.completeExceptionally(new MongoException("The write-behind queue stopped before the FAQ was written"));
+			}
+		}
+	}
+
+	/** Writes a batch, trying again if the database can't be reached, then tells every waiting admin how it went */
+	private void flush(List<Pending> batch) throws InterruptedException {
+		List<Document> documents = new ArrayList<>(batch.size());
+		for (Pending pending : batch) {
+			documents.add(pending.document);
+		}
+
+		Set<Integer> failedPositions = null;
+		MongoException error = null;
+		for (int attempt = 1 ; attempt <= MAX_ATTEMPTS && failedPositions == null ; attempt++) {
+			try {
+				failedPositions = writer.write(documents);
+				error = null;
+			} catch (MongoException e) {
+				error = e;
+				if (attempt < MAX_ATTEMPTS) {
+					Thread.sleep(RETRY_DELAY_MILLIS << (attempt - 1));
+				}
+			}
+		}
+		if (failedPositions == null) { // Nothing written
+			failedPositions = new HashSet<>();
+			for (int i = 0 ; i < batch.size() ; i++) {
+				failedPositions.add(i);
+			}
+		}
+
+		flushedBatches.incrementAndGet();
+		flushedDocuments.addAndGet(batch.size() - failedPositions.size());
+		failedDocuments.addAndGet(failedPositions.size());
+		if (!failedPositions.isEmpty() && durability == Durability.ENQUEUE) {
+			System.err.println("Could not insert " + failedPositions.size() + " queued FAQ, they are only in the memory of this server : " + error);
+		}
+		onFlush.run();
+		unwritten.addAndGet(-batch.size());
+		for (int i = 0 ; i < batch.size() ; i++) {
+			if (failedPositions.contains(i)) {
+				batch.get(i).written.completeExceptionally(error != null ? error : new MongoException("The FAQ was refused by the database"));
+			} else {
+				batch.get(i).written.complete(null);
+			}
+		}
+	}
+
+	@Override
+	public int getQueued() {
+		return queue.size();
+	}
+
+	@Override
+	public long getFlushedBatches() {
+		return flushedBatches.get();
+	}
+
+	@Override
+	public long getFlushedDocuments() {
+		return flushedDocuments.get();
+	}
+
+	@Override
+	public long getFailedDocuments() {
+		return failedDocuments.get();
+	}
+
+	@Override
+	public long getRejections() {
+		return rejections.get();
+	}
+
+	@Override
+	public String getDurability() {
+		return durability.name();
+	}
+
+	/** A FAQ waiting in the queue */
+	private static class Pending {
+		private final Document document;
+		/** Completed once the FAQ is written, or failed */
+		private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+		Pending(Document document) {
+			this.document = document;
+		}
+	}
+}
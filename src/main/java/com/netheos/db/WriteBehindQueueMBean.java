@@ -0,0 +1,16 @@
+package com.netheos.db;
+
+/**
+ * What {@link WriteBehindQueue} shows through JMX, to size it and to notice a database falling behind.
+ */
+public interface WriteBehindQueueMBean {
+	/** FAQ waiting to be written */
+	int getQueued();
+	long getFlushedBatches();
+	long getFlushedDocuments();
+	/** FAQ that could not be written, even after trying again */
+	long getFailedDocuments();
+	/** Additions refused because the queue stayed full */
+	long getRejections();
+	String getDurability();
+}
@@ -0,0 +1,94 @@
+package com.netheos.monitoring;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Distribution of durations, in microseconds, from which percentiles can be read. <BR>
+ * Same principle as HdrHistogram, without the dependency : values are counted in buckets whose width grows with the value (16 buckets per power of 2), so any value is known within about 6%, from 1 microsecond to days, with a fixed memory of a few kilobytes. <BR>
+ * Recording is lock-free and doesn't allocate, so it can stay enabled under production load. Reads may be slightly inconsistent with concurrent recordings, which doesn't matter for monitoring.
+ */
+public class LatencyHistogram {
+	/** Buckets per power of 2, as a power of 2 */
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+	/** Highest power of 2 recorded (2^40 microseconds is about 12 days), bigger values are counted in the last bucket */
+	private static final int MAX_EXPONENT = 40;
+	private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKET_COUNT;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/** Records a duration, negative ones being counted as 0 */
+	public void record(long micros) {
+		micros = Math.max(micros, 0);
+		buckets.incrementAndGet(getBucket(micros));
+		count.increment();
+		sum.add(micros);
+		max.accumulate(micros);
+	}
+
+	public long getCount() {
+		return count.sum();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long currentCount = count.sum();
+		return currentCount == 0 ? 0 : (double) sum.sum() / currentCount;
+	}
+
+	/**
+	 * @param percentile between 0 and 100 (ex : 99.9)
+	 * @return the value under which the given percentage of recorded values are, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] counts = new long[BUCKET_COUNT];
+		for (int i = 0 ; i < BUCKET_COUNT ; i++) {
+			counts[i] = buckets.get(i);
+			total += counts[i];
+		}
+		if (total == 0) {
+			return 0;
+		}
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+		long seen = 0;
+		for (int i = 0 ; i < BUCKET_COUNT ; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return Math.min(getBucketHighestValue(i), getMax()); // The max is exact, a bucket bound may be above it
+			}
+		}
+		return getMax();
+	}
+
+	/** Values below SUB_BUCKET_COUNT have a bucket each, then each power of 2 is split in SUB_BUCKET_COUNT buckets */
+	static int getBucket(long value) {
+		if (value < SUB_BUCKET_COUNT) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		if (exponent > MAX_EXPONENT) {
+			return BUCKET_COUNT - 1;
+		}
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT + subBucket;
+	}
+
+	/** Highest value counted in given bucket */
+	static long getBucketHighestValue(int bucket) {
+		if (bucket < SUB_BUCKET_COUNT) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKET_COUNT + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKET_COUNT;
+		return ((SUB_BUCKET_COUNT + subBucket + 1) << (exponent - SUB_BUCKET_BITS)) - 1;
+	}
+}
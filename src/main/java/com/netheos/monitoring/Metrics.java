@@ -0,0 +1,112 @@
+package com.netheos.monitoring;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.mongodb.event.CommandFailedEvent;
+import com.mongodb.event.CommandListener;
+import com.mongodb.event.CommandStartedEvent;
+import com.mongodb.event.CommandSucceededEvent;
+
+/**
+ * Statistics of the application, kept in memory since startup : one {@link OperationMetrics} per request type, and one per database command (find, insert, getMore...). <BR>
+ * Each of them is visible through JMX (com.netheos:type=RequestMetrics,name=... and com.netheos:type=MongoCommandMetrics,name=...) and through the admin request {@link com.netheos.servlets.FAQServlet#REQUEST_TYPE_GET_METRICS}. <BR>
+ * Singleton, thread-safe.
+ */
+public class Metrics {
+	private static final Metrics INSTANCE = new Metrics();
+
+	private final ConcurrentMap<String, OperationMetrics> requestMetrics = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, OperationMetrics> mongoCommandMetrics = new ConcurrentHashMap<>();
+
+	/** Times every command sent by the database driver, see {@link com.mongodb.MongoClientOptions.Builder#addCommandListener} */
+	private final CommandListener mongoCommandListener = new CommandListener() {
+		@Override
+		public void commandStarted(CommandStartedEvent event) {
+			// Durations are given by the end events
+		}
+
+		@Override
+		public void commandSucceeded(CommandSucceededEvent event) {
+			getMongoCommandMetrics(event.getCommandName()).record(event.getElapsedTime(TimeUnit.NANOSECONDS), 0, 0);
+		}
+
+		@Override
+		public void commandFailed(CommandFailedEvent event) {
+			OperationMetrics metrics = getMongoCommandMetrics(event.getCommandName());
+			metrics.recordError();
+			metrics.record(event.getElapsedTime(TimeUnit.NANOSECONDS), 0, 0);
+		}
+	};
+
+	/** Private constructor, as per the singleton design pattern */
+	private Metrics() {
+	}
+
+	public static Metrics getInstance() {
+		return INSTANCE;
+	}
+
+	/**
+	 * Statistics of the given request type, created on first use. The caller must make sure there is a limited number of names (not whatever the user sent).
+	 */
+	public OperationMetrics getRequestMetrics(String requestType) {
+		return getOrCreate(requestMetrics, requestType, "RequestMetrics");
+	}
+
+	/** Statistics of the given database command, created on first use */
+	public OperationMetrics getMongoCommandMetrics(String commandName) {
+		return getOrCreate(mongoCommandMetrics, commandName, "MongoCommandMetrics");
+	}
+
+	public CommandListener getMongoCommandListener() {
+		return mongoCommandListener;
+	}
+
+	/** Statistics of every request type, then of every database command, each as a json object, by name */
+	public List<String> toJson() {
+		List<String> res = new ArrayList<>();
+		for (Map<String, OperationMetrics> metrics : Arrays.asList(requestMetrics, mongoCommandMetrics)) {
+			for (OperationMetrics operation : new TreeMap<>(metrics).values()) {
+				res.add(operation.toJson());
+			}
+		}
+		return res;
+	}
+
+	private static OperationMetrics getOrCreate(ConcurrentMap<String, OperationMetrics> map, String name, String jmxType) {
+		OperationMetrics res = map.get(name); // Avoids the locking of computeIfAbsent in the usual case
+		if (res == null) {
+			res = map.computeIfAbsent(name, key -> {
+				OperationMetrics created = new OperationMetrics(key);
+				registerMBean(created, "com.netheos:type=" + jmxType + ",name=" + ObjectName.quote(key));
+				return created;
+			});
+		}
+		return res;
+	}
+
+	/**
+	 * Makes given object visible through JMX. Replaces any previous one with the same name, left by a previous deployment of the application.
+	 */
+	public static void registerMBean(Object mbean, String name) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			if (server.isRegistered(objectName)) {
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(mbean, objectName);
+		} catch (JMException e) {
+			// Monitoring is not worth preventing the application from working
+			System.err.println("Could not register " + name + " in JMX : " + e);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package com.netheos.monitoring;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.bson.Document;
+
+/**
+ * Statistics of one kind of operation (a request type, a database command...) : how many, how long, how many failed, and how much data they returned. Lock-free.
+ */
+public class OperationMetrics implements OperationMetricsMBean {
+	private final String name;
+	private final LatencyHistogram latencies = new LatencyHistogram();
+	private final LongAdder errors = new LongAdder();
+	private final LongAdder documents = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+
+	public OperationMetrics(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Records one operation.
+	 * @param documentCount number of FAQ returned
+	 * @param byteCount size of the response
+	 */
+	public void record(long durationNanos, long documentCount, long byteCount) {
+		latencies.record(TimeUnit.NANOSECONDS.toMicros(durationNanos));
+		documents.add(documentCount);
+		bytes.add(byteCount);
+	}
+
+	/** Records one more failed operation. Its duration must still be recorded with {@link #record} */
+	public void recordError() {
+		errors.increment();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public long getCount() {
+		return latencies.getCount();
+	}
+
+	@Override
+	public long getErrors() {
+		return errors.sum();
+	}
+
+	@Override
+	public double getMeanMicros() {
+		return latencies.getMean();
+	}
+
+	@Override
+	public long getMedianMicros() {
+		return latencies.getPercentile(50);
+	}
+
+	@Override
+	public long get90thPercentileMicros() {
+		return latencies.getPercentile(90);
+	}
+
+	@Override
+	public long get99thPercentileMicros() {
+		return latencies.getPercentile(99);
+	}
+
+	@Override
+	public long get999thPercentileMicros() {
+		return latencies.getPercentile(99.9);
+	}
+
+	@Override
+	public long getMaxMicros() {
+		return latencies.getMax();
+	}
+
+	@Override
+	public long getDocuments() {
+		return documents.sum();
+	}
+
+	@Override
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/** All statistics as a json object */
+	public String toJson() {
+		return new Document("name", name)
+			.append("count", getCount())
+			.append("errors", getErrors())
+			.append("meanMicros", Math.round(getMeanMicros()))
+			.append("p50Micros", getMedianMicros())
+			.append("p90Micros", get90thPercentileMicros())
+			.append("p99Micros", get99thPercentileMicros())
+			.append("p999Micros", get999thPercentileMicros())
+			.append("maxMicros", getMaxMicros())
+			.append("documents", getDocuments())
+			.append("bytes", getBytes())
+			.toJson();
+	}
+}
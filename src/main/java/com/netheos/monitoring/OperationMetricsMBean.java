@@ -0,0 +1,17 @@
+package com.netheos.monitoring;
+
+/**
+ * What {@link OperationMetrics} shows through JMX. Durations are in microseconds.
+ */
+public interface OperationMetricsMBean {
+	long getCount();
+	long getErrors();
+	double getMeanMicros();
+	long getMedianMicros();
+	long get90thPercentileMicros();
+	long get99thPercentileMicros();
+	long get999thPercentileMicros();
+	long getMaxMicros();
+	long getDocuments();
+	long getBytes();
+}
@@ -0,0 +1,47 @@
+package com.netheos.monitoring;
+
+/**
+ * Statistics of a single request being processed, added to its {@link OperationMetrics} when it ends. Not thread-safe : belongs to the thread processing the request.
+ */
+public class RequestRecording {
+	private final OperationMetrics metrics;
+	private final long start = System.nanoTime();
+	private long documents = 0;
+	private boolean failed = false;
+	private boolean refused = false;
+
+	public RequestRecording(OperationMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/** Counts FAQ returned to the user */
+	public void addDocuments(long count) {
+		documents += count;
+	}
+
+	/** Marks the request as failed */
+	public void fail() {
+		failed = true;
+	}
+
+	/** Marks the request as answered with a message instead of what was asked for (missing parameter, query refused or stopped...). Such a response must not be kept by the client, see {@link com.netheos.servlets.ConditionalResponses} */
+	public void refuse() {
+		refused = true;
+	}
+
+	/** @return true if {@link #refuse} was called */
+	public boolean isRefused() {
+		return refused;
+	}
+
+	/**
+	 * Records the request in its metrics. To be called once.
+	 * @param bytes size of the response
+	 */
+	public void end(long bytes) {
+		if (failed) {
+			metrics.recordError();
+		}
+		metrics.record(System.nanoTime() - start, documents, bytes);
+	}
+}
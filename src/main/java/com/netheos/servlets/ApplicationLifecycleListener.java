@@ -0,0 +1,27 @@
+package com.netheos.servlets;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+
+import com.netheos.db.FAQStores;
+
+/**
+ * Called by the servlet container when the application is deployed and undeployed. <BR>
+ * Opens the FAQ store (connecting to the database, building the in-memory index...) at deployment rather than on the first request, so that no user has to wait for it, and releases it at undeployment, so that redeploying doesn't leak connections and threads.
+ */
+public class ApplicationLifecycleListener implements ServletContextListener {
+
+	@Override
+	public void contextInitialized(ServletContextEvent event) {
+		try {
+			FAQStores.getInstance();
+		} catch (RuntimeException e) { // The application is deployed anyway, the first requests will try again
+			event.getServletContext().log("Could not start the FAQ store, will try again on the next request", e);
+		}
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent event) {
+		FAQStores.close(); // Not getInstance, which would try to start a store that couldn't be
+	}
+}
@@ -0,0 +1,96 @@
+package com.netheos.servlets;
+
+import java.io.*;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * Response counting the size, in UTF-8 bytes, of what is written to it through {@link #getWriter()} or {@link #getOutputStream()} (after compression, if any), for the metrics. <BR>
+ * Nothing is buffered here : each write goes straight to the writer of the wrapped response, so flushing that response still sends everything written so far.
+ */
+public class ByteCountingResponse extends HttpServletResponseWrapper {
+	private PrintWriter writer;
+	private ServletOutputStream outputStream;
+	private long byteCount = 0;
+
+	public ByteCountingResponse(HttpServletResponse response) {
+		super(response);
+	}
+
+	@Override
+	public PrintWriter getWriter() throws IOException {
+		if (writer == null) {
+			final Writer wrapped = super.getWriter();
+			writer = new PrintWriter(new Writer() {
+				@Override
+				public void write(char[] buffer, int offset, int length) throws IOException {
+					for (int i = offset ; i < offset + length ; i++) {
+						char c = buffer[i];
+						byteCount += c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3; // A surrogate pair is 4 bytes
+					}
+					wrapped.write(buffer, offset, length);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					wrapped.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					wrapped.close();
+				}
+			});
+		}
+		return writer;
+	}
+
+	@Override
+	public ServletOutputStream getOutputStream() throws IOException {
+		if (outputStream == null) {
+			final ServletOutputStream wrapped = super.getOutputStream();
+			outputStream = new ServletOutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					byteCount++;
+					wrapped.write(b);
+				}
+
+				@Override
+				public void write(byte[] buffer, int offset, int length) throws IOException {
+					byteCount += length;
+					wrapped.write(buffer, offset, length);
+				}
+
+				@Override
+				public void flush() throws IOException {
+					wrapped.flush();
+				}
+
+				@Override
+				public void close() throws IOException {
+					wrapped.close();
+				}
+
+				@Override
+				public boolean isReady() {
+					return wrapped.isReady();
+				}
+
+				@Override
+				public void setWriteListener(WriteListener listener) {
+					wrapped.setWriteListener(listener);
+				}
+			};
+		}
+		return outputStream;
+	}
+
+	/** Bytes written so far */
+	public long getByteCount() {
+		return byteCount;
+	}
+}
@@ -0,0 +1,61 @@
+package com.netheos.servlets;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.netheos.db.CollectionVersion;
+
+/**
+ * Answers conditional GET requests : responses carry the version of the FAQ collection they were computed from (ETag header), and a client sending it back (If-None-Match) while the collection hasn't changed gets an empty "304 Not Modified". <BR>
+ * Nothing is read from the database nor serialized then : the version is kept in memory by the {@link com.netheos.db.FAQStore}, see {@link com.netheos.db.VersionTracker}. <BR>
+ * There is no Last-Modified, nor If-Modified-Since : a date to the second can't tell apart two writes of the same second, and a node learns the writes of the others up to {@link com.netheos.db.DatabaseAccessor#VERSION_REFRESH_SETTING} late, with its own clock. A client could then be told a response without a recent FAQ is still valid.
+ */
+public class ConditionalResponses {
+
+	/** No instance needed, everything is static */
+	private ConditionalResponses() {
+	}
+
+	/**
+	 * Sends a "304 Not Modified" if the client already has the response for this version. Nothing is added to the response otherwise : the headers describing the version are only added by {@link #addValidators}, once the response is known to hold the documents of this version.
+	 * @param variant what the response depends on besides the URL (json or HTML), so that a copy of one isn't mistaken for the other
+	 * @return true if the 304 was sent, nothing more must be written then
+	 */
+	public static boolean answerIfNotModified(HttpServletRequest request, HttpServletResponse response, CollectionVersion version, String variant) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		boolean notModified = ifNoneMatch != null && matchesETag(ifNoneMatch, version.toETag(variant));
+		if (notModified) {
+			addValidators(response, version, variant);
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		}
+		return notModified;
+	}
+
+	/**
+	 * Adds the headers describing the version (ETag) to a response holding the documents of this version, so that the client can ask for it again conditionally. <BR>
+	 * Never to an error or a refusal (query too long, database too slow...) : it may not happen again, and the client would keep it until the next write.
+	 */
+	public static void addValidators(HttpServletResponse response, CollectionVersion version, String variant) {
+		response.setHeader("ETag", version.toETag(variant));
+		response.setHeader("Cache-Control", "no-cache"); // May be kept, but must be checked every time
+	}
+
+	/**
+	 * @param ifNoneMatch value of the If-None-Match header : "*", or ETags separated by commas
+	 * @return true if one of the ETags is the given one. Weak comparison, as required for If-None-Match : "W/" is ignored
+	 */
+	static boolean matchesETag(String ifNoneMatch, String eTag) {
+		String expected = withoutWeakPrefix(eTag);
+		for (String candidate : ifNoneMatch.split(",")) {
+			String trimmed = candidate.trim();
+			if (trimmed.equals("*") || withoutWeakPrefix(trimmed).equals(expected)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static String withoutWeakPrefix(String eTag) {
+		return eTag.startsWith("W/") ? eTag.substring(2) : eTag;
+	}
+}
@@ -0,0 +1,136 @@
+package com.netheos.servlets;
+
+import java.io.*;
+import java.util.*;
+
+import org.bson.Document;
+
+import com.netheos.db.FAQEntry;
+
+/**
+ * Reads FAQ one at a time from an uploaded file, without loading the whole file in memory. <BR>
+ * Two formats are accepted, one FAQ per line : <BR>
+ * - {@link FAQServlet#IMPORT_FORMAT_JSON_LINES} : {"question": "...", "answer": "...", "tags": ["tag1", "tag2"]} <BR>
+ * - {@link FAQServlet#IMPORT_FORMAT_CSV} : question,answer,tag1;tag2 with fields containing commas between double quotes (and double quotes doubled). An optional first line "question,answer,tags" is skipped. A field can't contain a line break. <BR>
+ * Values are cleaned the same way as those of a single insertion : {@link FAQServlet#sanitizeInput} and {@link FAQServlet#filterBadTags}.
+ */
+public class FAQImportReader {
+	private final BufferedReader reader;
+	private final boolean csv;
+	private int lineNumber = 0;
+
+	/**
+	 * @param format {@link FAQServlet#IMPORT_FORMAT_JSON_LINES} or {@link FAQServlet#IMPORT_FORMAT_CSV}
+	 * @throws IllegalArgumentException if the format is neither
+	 */
+	public FAQImportReader(Reader reader, String format) {
+		if (!FAQServlet.IMPORT_FORMAT_JSON_LINES.equals(format) && !FAQServlet.IMPORT_FORMAT_CSV.equals(format)) {
+			throw new IllegalArgumentException("Import format should be " + FAQServlet.IMPORT_FORMAT_JSON_LINES + " or " + FAQServlet.IMPORT_FORMAT_CSV);
+		}
+		this.reader = new BufferedReader(reader);
+		this.csv = FAQServlet.IMPORT_FORMAT_CSV.equals(format);
+	}
+
+	/**
+	 * Reads the next FAQ. Blank lines are skipped.
+	 * @return the FAQ, or null once the end of the file is reached
+	 * @throws IllegalArgumentException if the line is not a valid FAQ. The next call reads the following line, so that one bad line doesn't stop the import
+	 */
+	public FAQEntry next() throws IOException {
+		String line;
+		do {
+			line = reader.readLine();
+			if (line == null) {
+				return null;
+			}
+			lineNumber++;
+		} while (line.trim().isEmpty() || (csv && lineNumber == 1 && line.trim().equalsIgnoreCase(FAQServlet.PARAMETER_STRING_QUESTION + "," + FAQServlet.PARAMETER_STRING_ANSWER + "," + FAQServlet.PARAMETER_STRING_TAGS)));
+
+		return csv ? parseCsvLine(line) : parseJsonLine(line);
+	}
+
+	/** Number of the last line read, starting at 1 */
+	public int getLineNumber() {
+		return lineNumber;
+	}
+
+	private FAQEntry parseJsonLine(String line) {
+		Document document;
+		try {
+			document = Document.parse(line);
+		} catch (RuntimeException e) { // The parser throws various kinds of exceptions
+			throw new IllegalArgumentException("Line " + lineNumber + " is not valid json");
+		}
+
+		Object tags = document.get(FAQServlet.PARAMETER_STRING_TAGS);
+		List<String> tagList = new ArrayList<>();
+		if (tags instanceof List) {
+			for (Object tag : (List<?>) tags) {
+				tagList.add(String.valueOf(tag));
+			}
+		} else if (tags != null) {
+			throw new IllegalArgumentException("Line " + lineNumber + " : " + FAQServlet.PARAMETER_STRING_TAGS + " should be an array");
+		}
+		return toEntry(getString(document, FAQServlet.PARAMETER_STRING_QUESTION), getString(document, FAQServlet.PARAMETER_STRING_ANSWER), tagList);
+	}
+
+	private String getString(Document document, String field) {
+		Object value = document.get(field);
+		if (value != null && !(value instanceof String)) {
+			throw new IllegalArgumentException("Line " + lineNumber + " : " + field + " should be a string");
+		}
+		return (String) value;
+	}
+
+	private FAQEntry parseCsvLine(String line) {
+		List<String> fields = splitCsvLine(line);
+		if (fields.size() < 2 || fields.size() > 3) {
+			throw new IllegalArgumentException("Line " + lineNumber + " should have 2 or 3 fields (question, answer and optional tags), found " + fields.size());
+		}
+		List<String> tags = fields.size() == 3 ? Arrays.asList(fields.get(2).split(FAQServlet.TAG_SEPARATOR)) : Collections.<String>emptyList();
+		return toEntry(fields.get(0), fields.get(1), tags);
+	}
+
+	/** Splits a CSV line on commas, except those between double quotes */
+	private List<String> splitCsvLine(String line) {
+		List<String> res = new ArrayList<>();
+		StringBuilder field = new StringBuilder();
+		boolean quoted = false;
+		for (int i = 0 ; i < line.length() ; i++) {
+			char c = line.charAt(i);
+			if (quoted) {
+				if (c == '"' && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+					field.append('"');
+					i++;
+				} else if (c == '"') {
+					quoted = false;
+				} else {
+					field.append(c);
+				}
+			} else if (c == '"') {
+				quoted = true;
+			} else if (c == ',') {
+				res.add(field.toString());
+				field.setLength(0);
+			} else {
+				field.append(c);
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Line " + lineNumber + " has an unclosed double quote");
+		}
+		res.add(field.toString());
+		return res;
+	}
+
+	private FAQEntry toEntry(String question, String answer, List<String> tags) {
+		if (question == null || question.trim().isEmpty() || answer == null || answer.trim().isEmpty()) {
+			throw new IllegalArgumentException("Line " + lineNumber + " : " + FAQServlet.PARAMETER_STRING_QUESTION + " and " + FAQServlet.PARAMETER_STRING_ANSWER + " must be set");
+		}
+		String[] cleanedTags = new String[tags.size()];
+		for (int i = 0 ; i < cleanedTags.length ; i++) {
+			cleanedTags[i] = tags.get(i).trim().toLowerCase();
+		}
+		return new FAQEntry(FAQServlet.sanitizeInput(question), FAQServlet.sanitizeInput(answer), FAQServlet.filterBadTags(cleanedTags));
+	}
+}
@@ -4,8 +4,23 @@ import javax.servlet.*;
 import javax.servlet.http.*;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.PatternSyntaxException;
 
+import org.bson.Document;
+
+import com.netheos.Configuration;
+import com.netheos.db.CollectionVersion;
 import com.netheos.db.DatabaseAccessor;
+import com.netheos.db.FAQEntry;
+import com.netheos.db.FAQStore;
+import com.netheos.db.FAQStores;
+import com.netheos.db.JsonPayloads;
+import com.netheos.db.QueryTooExpensiveException;
+import com.netheos.monitoring.Metrics;
+import com.netheos.monitoring.RequestRecording;
 import com.netheos.SecurityManager;
 
 
@@ -15,10 +30,21 @@ import com.netheos.SecurityManager;
 *
 * There are 3 possible uses now : <BR>
 * - Use case 1 (send a new couple question/answer (+tags) to add to the database) : Use POST with the question, answer and tags as parameters. Set also {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_ADD_NEW_FAQ}. Tags are meant to be sent as letters-only Strings, separated by {@link #TAG_SEPARATOR the tag separator (ex tag1;tag2)}. Admin use only, you must also send admin username/password <BR>
-* - Use case 2 (retrieve all data from the FAQ) : Use GET. Set {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_ALL_FAQ} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT}. Admin use only, you must also send admin username/password <BR>
+* - Use case 2 (retrieve all data from the FAQ) : Use GET. Set {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_ALL_FAQ} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT}. Admin use only, you must also send admin username/password. Set also {@link #PARAMETER_STRING_PAGE_SIZE the page size} (and optionally {@link #PARAMETER_STRING_AFTER the continuation token} and {@link #PARAMETER_STRING_FIELDS the fields}) to get the data page by page <BR>
 * - Use case 3 (get all FAQ whose question or answer contains a given pattern) : Use GET with the {@link #PARAMETER_STRING_MATCH pattern to match} as parameter. Set also {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_CORRESPONDING_FAQ} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT}. <BR>
+* - Ranked search (get the FAQ best matching some words, best first) : Use GET with the {@link #PARAMETER_STRING_QUERY words to search} as parameter. Set also {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_SEARCH}, {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT} and optionally {@link #PARAMETER_STRING_LIMIT the number of FAQ wanted}. <BR>
+* - Type-ahead (questions and tags starting with what the user typed so far, most popular first) : Use GET with the {@link #PARAMETER_STRING_PREFIX text typed} as parameter. Set also {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_SUGGEST}, {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT} (or {@link #JSON_API_FORMAT}, better suited to being called on every keystroke) and optionally {@link #PARAMETER_STRING_LIMIT the number of suggestions wanted}. <BR>
+* - Tag search (get all FAQ having some tags) : Use GET with the {@link #PARAMETER_STRING_TAGS tags} as parameter, separated by {@link #TAG_SEPARATOR}. Set also {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_BY_TAGS}, {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT} and optionally {@link #PARAMETER_STRING_TAG_MODE the tag mode}. Tags can also be given to use case 3, to search only among FAQ having them. <BR>
+* - Tag cloud (number of FAQ of each tag) : Use GET. Set {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_TAG_COUNTS} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT}. <BR>
+* - Metrics (number of requests, latency percentiles, documents and bytes returned, per request type and per database command) : Use GET. Set {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_GET_METRICS} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_FORMAT}. Admin use only. Also available through JMX. <BR>
+* - Bulk import (add many FAQ at once, from a file) : Use POST with the file as body, and the other parameters in the URL. Set {@link #PARAMETER_STRING_REQUEST_TYPE the request type} to {@link #REQUEST_TYPE_BULK_IMPORT} and {@link #PARAMETER_STRING_FORMAT the format} to {@link #IMPORT_FORMAT_JSON_LINES} or {@link #IMPORT_FORMAT_CSV}. Admin use only. <BR>
+*
+* Responses are HTML pages meant for browsers. API clients get plain json instead (a json array of FAQ, or an object with a "message") by setting {@link #PARAMETER_STRING_FORMAT the format} to {@link #JSON_API_FORMAT}, or by preferring it in their Accept header. Bulk import always answers with its HTML progress report. <BR>
+* Responses of the {@link #CONDITIONAL_REQUEST_TYPES read requests} carry the version of the FAQ collection (ETag) : clients polling them get an empty "304 Not Modified" while nothing was added, see {@link ConditionalResponses}. <BR>
 */
 public class FAQServlet extends HttpServlet {
+	/* Helper methods that don't need the servlet instance are static and package-private, so that they can be benchmarked (see src/jmh/java) */
+
 	/** Name of the main table of this project. Although the implementation is technically a collection and not a table, DB matters (here, the fact that it's mongoDB) do not belong in the controller : it could be a table, if DatabaseAccessor used SQL for example. Therefore "table" is used as a general case. */
 	public static final String FAQ_TABLE_NAME = DatabaseAccessor.FAQ_COLLECTION_NAME;
 
@@ -46,9 +72,82 @@ public class FAQServlet extends HttpServlet {
 	public static final String REQUEST_TYPE_GET_ALL_FAQ = "get_all";
 	/** Constant indicating user story 3 */
 	public static final String REQUEST_TYPE_GET_CORRESPONDING_FAQ = "get_match";
+	/** Constant indicating a search of the FAQ having given {@link #PARAMETER_STRING_TAGS tags} */
+	public static final String REQUEST_TYPE_GET_BY_TAGS = "get_by_tags";
+	/** Constant indicating a request for the number of FAQ of each tag (tag cloud) */
+	public static final String REQUEST_TYPE_GET_TAG_COUNTS = "get_tags";
+	/** Constant indicating a request for the statistics of the application (see {@link Metrics}). Admin use only */
+	public static final String REQUEST_TYPE_GET_METRICS = "get_metrics";
+	/** Constant indicating the import of many FAQ at once, see {@link #streamBulkImportRequest} */
+	public static final String REQUEST_TYPE_BULK_IMPORT = "bulk_import";
+	/** Constant indicating the ranked search of the FAQ best matching some words */
+	public static final String REQUEST_TYPE_SEARCH = "search";
+
+	/** Constant indicating a request for the questions and tags completing what the user typed so far */
+	public static final String REQUEST_TYPE_SUGGEST = "suggest";
+
+	/** Name of the parameter giving the words of a {@link #REQUEST_TYPE_SEARCH ranked search} */
+	public static final String PARAMETER_STRING_QUERY = "query";
+	/** Name of the parameter giving the maximum number of FAQ returned by a {@link #REQUEST_TYPE_SEARCH ranked search} */
+	public static final String PARAMETER_STRING_LIMIT = "limit";
+	/** Setting for the number of FAQ returned by a ranked search when {@link #PARAMETER_STRING_LIMIT} isn't given */
+	public static final String SEARCH_DEFAULT_LIMIT_SETTING = "search.defaultLimit";
+	/** Setting for the maximum {@link #PARAMETER_STRING_LIMIT} */
+	public static final String SEARCH_MAX_LIMIT_SETTING = "search.maxLimit";
+
+	/** Name of the parameter giving what the user typed so far, for a {@link #REQUEST_TYPE_SUGGEST type-ahead} */
+	public static final String PARAMETER_STRING_PREFIX = "prefix";
+	/** Setting for the number of suggestions returned when {@link #PARAMETER_STRING_LIMIT} isn't given */
+	public static final String SUGGEST_DEFAULT_LIMIT_SETTING = "suggest.defaultLimit";
+	/** Setting for the maximum {@link #PARAMETER_STRING_LIMIT} of a type-ahead */
+	public static final String SUGGEST_MAX_LIMIT_SETTING = "suggest.maxLimit";
+
+	/** Name of the parameter specifying whether FAQ must have all the given tags ({@link #TAG_MODE_ALL}, the default) or at least one of them ({@link #TAG_MODE_ANY}) */
+	public static final String PARAMETER_STRING_TAG_MODE = "tag_mode";
+	/** FAQ must have all given tags */
+	public static final String TAG_MODE_ALL = "and";
+	/** FAQ must have at least one of the given tags */
+	public static final String TAG_MODE_ANY = "or";
+
+	/** Name of the parameter asking for {@link #REQUEST_TYPE_GET_ALL_FAQ} to return only that many FAQ, see {@link #streamGetAllFAQPageRequest} */
+	public static final String PARAMETER_STRING_PAGE_SIZE = "page_size";
+	/** Name of the parameter giving the continuation token returned with the previous page */
+	public static final String PARAMETER_STRING_AFTER = "after";
+	/** Name of the parameter listing, separated by {@link #FIELD_SEPARATOR}, the fields of each FAQ to return with a page */
+	public static final String PARAMETER_STRING_FIELDS = "fields";
+	/** Separator of the field names in {@link #PARAMETER_STRING_FIELDS} */
+	public static final String FIELD_SEPARATOR = ",";
+	/** Field names accepted in {@link #PARAMETER_STRING_FIELDS} */
+	public static final List<String> PAGE_FIELDS = Collections.unmodifiableList(Arrays.asList(DatabaseAccessor.FIELD_ID, PARAMETER_STRING_QUESTION, PARAMETER_STRING_ANSWER, PARAMETER_STRING_TAGS));
+	/** Setting for the maximum {@link #PARAMETER_STRING_PAGE_SIZE page size} */
+	public static final String GET_ALL_MAX_PAGE_SIZE_SETTING = "getAll.maxPageSize";
+
+	/** All request types, the others being incorrect */
+	public static final List<String> REQUEST_TYPES = Collections.unmodifiableList(Arrays.asList(REQUEST_TYPE_ADD_NEW_FAQ, REQUEST_TYPE_GET_ALL_FAQ, REQUEST_TYPE_GET_CORRESPONDING_FAQ,
+		REQUEST_TYPE_GET_BY_TAGS, REQUEST_TYPE_GET_TAG_COUNTS, REQUEST_TYPE_GET_METRICS, REQUEST_TYPE_BULK_IMPORT, REQUEST_TYPE_SEARCH, REQUEST_TYPE_SUGGEST));
+
+	/** Request types whose response only depends on the FAQ collection : they carry its version, and are answered "304 Not Modified" when the client already has it, see {@link ConditionalResponses} */
+	public static final Set<String> CONDITIONAL_REQUEST_TYPES = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(REQUEST_TYPE_GET_ALL_FAQ, REQUEST_TYPE_GET_CORRESPONDING_FAQ,
+		REQUEST_TYPE_GET_BY_TAGS, REQUEST_TYPE_GET_TAG_COUNTS, REQUEST_TYPE_SEARCH)));
+
+	/** Name of the parameter specifying how many FAQ are sent to the database at once during a {@link #REQUEST_TYPE_BULK_IMPORT bulk import} */
+	public static final String PARAMETER_STRING_BATCH_SIZE = "batch_size";
+	/** Import format with one json object per line, see {@link FAQImportReader} */
+	public static final String IMPORT_FORMAT_JSON_LINES = "jsonl";
+	/** Import format with one "question,answer,tags" line per FAQ, see {@link FAQImportReader} */
+	public static final String IMPORT_FORMAT_CSV = "csv";
+	/** Setting for the default number of FAQ per batch during a bulk import */
+	public static final String BULK_IMPORT_BATCH_SIZE_SETTING = "bulkImport.batchSize";
+	/** Setting for the maximum number of FAQ per batch a user may ask for, as the whole batch is held in memory */
+	public static final String BULK_IMPORT_MAX_BATCH_SIZE_SETTING = "bulkImport.maxBatchSize";
 
 	/** One of the accepted formats for the server response (actually the only one as of now) */
 	public static final String JSON_FORMAT = "json";
+	/** Format asking for the documents in {@link #JSON_FORMAT}, sent as a plain json response instead of an HTML page, see {@link JsonResponseWriter} */
+	public static final String JSON_API_FORMAT = "application/json";
+
+	/** Header telling how old (milliseconds) the oldest FAQ missing from the response can be, when reads are served from the memory of this node (see {@link DatabaseAccessor#REPLICATION_ENABLED_SETTING}) */
+	public static final String STALENESS_HEADER = "X-FAQ-Staleness-Millis";
 
 	/** Used to send a list of letters-only tags as a simple string. Tags will be split according to this pattern */
 	public static final String TAG_SEPARATOR = ";";
@@ -56,14 +155,313 @@ public class FAQServlet extends HttpServlet {
 	/** Name of the attribute send to JSP through request dispatching, it contains the server response and will be displayed in the final HTML */
 	public static final String ATTRIBUTE_MESSAGE = "message";
 
+	/** Names of the request attributes holding the version of the collection the response must describe, and its variant, see {@link #addValidators} */
+	private static final String ATTRIBUTE_VERSION = "com.netheos.collectionVersion";
+	private static final String ATTRIBUTE_VARIANT = "com.netheos.collectionVariant";
+
 	/** URL to the view */
 	public static final String JSP_URL = "/WEB-INF/pages/index.jsp";
+	/** URL to the beginning of the view, for responses written directly by the servlet instead of being forwarded to {@link #JSP_URL} */
+	public static final String JSP_HEADER_URL = "/WEB-INF/pages/header.jsp";
+	/** URL to the end of the view, see {@link #JSP_HEADER_URL} */
+	public static final String JSP_FOOTER_URL = "/WEB-INF/pages/footer.jsp";
+	/** Content type of the view, as set by the JSP */
+	public static final String HTML_CONTENT_TYPE = "text/html;charset=UTF-8";
+
+	/** Setting enabling the processing of requests by the servlet's own threads rather than by the container's, see {@link #processAsynchronously} */
+	public static final String ASYNC_ENABLED_SETTING = "async.enabled";
+	/** Setting for the number of threads processing requests, i.e. the maximum number of requests processed at the same time */
+	public static final String ASYNC_THREADS_SETTING = "async.threads";
+	/** Setting for the number of requests that may wait for a thread. Beyond that, users receive a 503 error straight away */
+	public static final String ASYNC_QUEUE_SIZE_SETTING = "async.queueSize";
+	/** Setting for how long (milliseconds) a read may take before users receive a 503 error. Writes are never timed out, see {@link #processAsynchronously} */
+	public static final String ASYNC_TIMEOUT_SETTING = "async.timeoutMillis";
+
+	/** Answer to a {@link #PARAMETER_STRING_TAGS tags} parameter in which no tag is valid */
+	private static final String NO_VALID_TAG_MESSAGE = "\"" + PARAMETER_STRING_TAGS + "\" parameter must contain at least one tag (letters only).";
+
+	/** Header shown above all FAQ returned for {@link #REQUEST_TYPE_GET_ALL_FAQ} */
+	private static final String GET_ALL_HEADER = "All documents";
+
+	/** Threads processing the requests when {@link #ASYNC_ENABLED_SETTING asynchronous processing} is enabled, null otherwise */
+	private ThreadPoolExecutor asyncExecutor;
+	/** How long (milliseconds) an asynchronous request may take before the user receives an error */
+	private long asyncTimeoutMillis;
+
+	@Override
+	public void init() throws ServletException {
+		if (Configuration.getBoolean(ASYNC_ENABLED_SETTING, true)) {
+			int threads = Configuration.getInt(ASYNC_THREADS_SETTING, 32);
+			AtomicInteger threadCount = new AtomicInteger();
+			asyncExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<>(Configuration.getInt(ASYNC_QUEUE_SIZE_SETTING, 100)), // Bounded : beyond that, requests are refused rather than piling up
+				runnable -> {
+					Thread thread = new Thread(runnable, "faq-worker-" + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				});
+			asyncExecutor.allowCoreThreadTimeOut(true);
+			asyncTimeoutMillis = Configuration.getLong(ASYNC_TIMEOUT_SETTING, 30_000);
+		}
+	}
+
+	@Override
+	public void destroy() {
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			try {
+				asyncExecutor.awaitTermination(10, TimeUnit.SECONDS); // Lets requests being processed finish
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
 
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		process(request, response, false);
+	}
+
+	@Override
+	public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		process(request, response, true);
+	}
+
+	/**
+	 * Processes a GET or POST request, and measures it. <BR>
+	 * Responses streamed to the user (see {@link #streamGet} and {@link #streamPost}) are written by the container thread. Others are computed by {@link #asyncExecutor} if enabled, so that container threads aren't held while waiting for the database, or directly by the container thread otherwise.
+	 */
+	private void process(HttpServletRequest request, HttpServletResponse response, boolean post) throws ServletException, IOException {
 		Map<String, String> parameters = sanitizeParameters(request);
+		RequestRecording recording = startRecording(parameters);
+		ByteCountingResponse countingResponse = new ByteCountingResponse(response);
+		boolean json = isJsonApiRequest(parameters, request);
+		countingResponse.setHeader("Vary", "Accept"); // The same URL may give HTML or json
+		long staleness = FAQStores.getInstance().getReplicaStalenessMillis();
+		if (staleness >= 0) {
+			countingResponse.setHeader(STALENESS_HEADER, String.valueOf(staleness));
+		}
+		boolean asynchronous = false;
+		try {
+			if (!post && isConditional(parameters)) {
+				CollectionVersion version = FAQStores.getInstance().getCollectionVersion(); // Read before the response is computed, so the response includes at least what it stands for
+				String variant = json ? "json" : "html";
+				if (ConditionalResponses.answerIfNotModified(request, countingResponse, version, variant)) {
+					return; // The client already has the response
+				}
+				request.setAttribute(ATTRIBUTE_VERSION, version);
+				request.setAttribute(ATTRIBUTE_VARIANT, variant);
+			}
+			if (post ? streamPost(parameters, request, countingResponse, recording) : streamGet(parameters, request, countingResponse, recording, json)) {
+				return; // Response already written
+			}
+
+			if (asyncExecutor != null && request.isAsyncSupported() && !isAnsweredImmediately(parameters, post)) {
+				processAsynchronously(parameters, request, countingResponse, recording, post, json);
+				asynchronous = true; // The recording will be ended once the response is complete
+			} else if (json) {
+				JsonBody body = getJsonResponse(parameters, recording, post);
+				addValidatorsUnlessRefused(request, countingResponse, recording);
+				body.write(request, countingResponse);
+			} else {
+				request.setAttribute(ATTRIBUTE_MESSAGE, post ? getPostMessage(parameters, recording) : getGetMessage(parameters, recording));
+				addValidatorsUnlessRefused(request, countingResponse, recording);
+
+				// Send to view
+				this.getServletContext().getRequestDispatcher(JSP_URL).forward(request, countingResponse);
+			}
+		} catch (RejectedExecutionException e) { // Too many FAQ waiting to be inserted
+			recording.fail();
+			sendUnavailable(countingResponse, "Too many FAQ are being added.");
+		} catch (ServletException | IOException | RuntimeException e) {
+			recording.fail();
+			throw e;
+		} finally {
+			if (!asynchronous) {
+				recording.end(countingResponse.getByteCount());
+			}
+		}
+	}
+
+	/**
+	 * Hands the request over to {@link #asyncExecutor}, which computes the message then dispatches the request to the view (or writes the json itself). The container thread is freed meanwhile. <BR>
+	 * If all the executor threads are busy and its queue is full, or if a read takes longer than {@link #ASYNC_TIMEOUT_SETTING}, the user immediately receives a 503 error, so that a slow database can't make requests pile up. <BR>
+	 * Writes (POST) are not timed out : the executor can't stop an insert once started, so a 503 inviting to try again would make users add the same FAQ twice. They wait for the database's own answer instead.
+	 */
+	private void processAsynchronously(Map<String, String> parameters, HttpServletRequest request, ByteCountingResponse response, RequestRecording recording, boolean post, boolean json) throws IOException {
+		AsyncContext asyncContext = request.startAsync(request, response);
+		asyncContext.setTimeout(post ? 0 : asyncTimeoutMillis); // 0 : no timeout
+		AtomicBoolean answered = new AtomicBoolean(false); // Whoever answers first between the executor and the timeout wins
+
+		asyncContext.addListener(new AsyncListener() {
+			@Override
+			public void onComplete(AsyncEvent event) {
+				recording.end(response.getByteCount());
+			}
+
+			@Override
+			public void onTimeout(AsyncEvent event) throws IOException {
+				if (answered.compareAndSet(false, true)) {
+					recording.fail();
+					sendUnavailable(response, "The request took too long.");
+					asyncContext.complete();
+				}
+			}
 
-		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE).trim().toLowerCase();
+			@Override
+			public void onError(AsyncEvent event) {
+				recording.fail();
+			}
+
+			@Override
+			public void onStartAsync(AsyncEvent event) {
+				// Nothing to do
+			}
+		});
+
+		try {
+			asyncExecutor.execute(() -> {
+				try {
+					if (json) {
+						JsonBody body = getJsonResponse(parameters, recording, post);
+						if (answered.compareAndSet(false, true)) {
+							addValidatorsUnlessRefused(request, response, recording);
+							body.write(request, response);
+							asyncContext.complete();
+						}
+					} else {
+						String message = post ? getPostMessage(parameters, recording) : getGetMessage(parameters, recording);
+						if (answered.compareAndSet(false, true)) {
+							request.setAttribute(ATTRIBUTE_MESSAGE, message);
+							addValidatorsUnlessRefused(request, response, recording);
+							asyncContext.dispatch(JSP_URL); // Send to view
+						}
+					}
+				} catch (IOException e) {
+					recording.fail(); // The user went away while the json was written
+					asyncContext.complete();
+				} catch (RejectedExecutionException e) {
+					if (answered.compareAndSet(false, true)) {
+						recording.fail();
+						try {
+							sendUnavailable(response, "Too many FAQ are being added.");
+						} catch (IOException sendException) {
+							// The user went away, nothing more to do
+						}
+						asyncContext.complete();
+					}
+				} catch (RuntimeException e) {
+					log("Could not process " + parameters.get(PARAMETER_STRING_REQUEST_TYPE) + " request", e);
+					if (answered.compareAndSet(false, true)) {
+						recording.fail();
+						try {
+							response.sendError(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+						} catch (IOException sendException) {
+							// The user went away, nothing more to do
+						}
+						asyncContext.complete();
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			answered.set(true);
+			recording.fail();
+			sendUnavailable(response, "The server is too busy.");
+			asyncContext.complete();
+		}
+	}
+
+	/** @return true for the {@link #CONDITIONAL_REQUEST_TYPES requests} answered "304 Not Modified" when the client already has the response. {@link #REQUEST_TYPE_GET_ALL_FAQ} only for admins : the others are refused, whatever the version */
+	private static boolean isConditional(Map<String, String> parameters) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		requestType = requestType == null ? null : requestType.trim().toLowerCase();
+		if (requestType == null || !CONDITIONAL_REQUEST_TYPES.contains(requestType)) {
+			return false;
+		}
+		return !requestType.equals(REQUEST_TYPE_GET_ALL_FAQ) || SecurityManager.hasAdminAccess(parameters.get(PARAMETER_STRING_USERNAME), parameters.get(PARAMETER_STRING_PASSWORD));
+	}
+
+	/**
+	 * Adds the version of the collection (ETag) to a response holding its documents, for {@link #isConditional conditional requests}. See {@link ConditionalResponses#addValidators}.
+	 */
+	private static void addValidators(HttpServletRequest request, HttpServletResponse response) {
+		CollectionVersion version = (CollectionVersion) request.getAttribute(ATTRIBUTE_VERSION);
+		if (version != null) {
+			ConditionalResponses.addValidators(response, version, (String) request.getAttribute(ATTRIBUTE_VARIANT));
+		}
+	}
+
+	/** Same as {@link #addValidators}, unless the response is a message instead of the documents asked for, see {@link RequestRecording#refuse} */
+	private static void addValidatorsUnlessRefused(HttpServletRequest request, HttpServletResponse response, RequestRecording recording) {
+		if (!recording.isRefused()) {
+			addValidators(request, response);
+		}
+	}
+
+	/**
+	 * @return true for requests answered by the container thread even when {@link #asyncExecutor} is enabled : {@link #REQUEST_TYPE_SUGGEST suggestions} are computed faster than they would be handed over
+	 */
+	private static boolean isAnsweredImmediately(Map<String, String> parameters, boolean post) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		return !post && requestType != null && requestType.trim().toLowerCase().equals(REQUEST_TYPE_SUGGEST);
+	}
+
+	/** Answers with a 503 error, asking the user to try again a bit later */
+	private static void sendUnavailable(HttpServletResponse response, String reason) throws IOException {
+		response.setHeader("Retry-After", "1");
+		response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, reason + " Please try again later.");
+	}
+
+	/**
+	 * Starts measuring a request, under its request type. Unknown types are all measured together, so that users can't create new metrics at will.
+	 */
+	private static RequestRecording startRecording(Map<String, String> parameters) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		requestType = requestType == null ? null : requestType.trim().toLowerCase();
+		return new RequestRecording(Metrics.getInstance().getRequestMetrics(REQUEST_TYPES.contains(requestType) ? requestType : "unknown"));
+	}
+
+	/**
+	 * Writes the response of the GET requests whose response is streamed ({@link #REQUEST_TYPE_GET_ALL_FAQ} for admins).
+	 * @param json true if the response must be plain json, see {@link #isJsonApiRequest}
+	 * @return true if the request was one of those, false if its message must be computed by {@link #getGetMessage}
+	 */
+	private boolean streamGet(Map<String, String> parameters, HttpServletRequest request, HttpServletResponse response, RequestRecording recording, boolean json) throws ServletException, IOException {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		requestType = requestType == null ? null : requestType.trim().toLowerCase();
+		if (!REQUEST_TYPE_GET_ALL_FAQ.equals(requestType)
+			|| !SecurityManager.hasAdminAccess(parameters.get(PARAMETER_STRING_USERNAME), parameters.get(PARAMETER_STRING_PASSWORD))) {
+			return false;
+		}
+		if (parameters.get(PARAMETER_STRING_PAGE_SIZE) != null) {
+			streamGetAllFAQPageRequest(parameters, request, response, recording, json);
+		} else if (json) {
+			streamGetAllFAQJsonRequest(request, response, recording);
+		} else {
+			streamGetAllFAQRequest(parameters.get(PARAMETER_STRING_FORMAT), request, response, recording);
+		}
+		return true;
+	}
+
+	/**
+	 * Writes the response of the POST requests whose response is streamed ({@link #REQUEST_TYPE_BULK_IMPORT} for admins).
+	 * @return true if the request was one of those, false if its message must be computed by {@link #getPostMessage}
+	 */
+	private boolean streamPost(Map<String, String> parameters, HttpServletRequest request, HttpServletResponse response, RequestRecording recording) throws ServletException, IOException {
+		if (!REQUEST_TYPE_BULK_IMPORT.equals(parameters.get(PARAMETER_STRING_REQUEST_TYPE))
+			|| !SecurityManager.hasAdminAccess(parameters.get(PARAMETER_STRING_USERNAME), parameters.get(PARAMETER_STRING_PASSWORD))) {
+			return false;
+		}
+		streamBulkImportRequest(parameters, request, response);
+		return true;
+	}
+
+	/**
+	 * @return the message to display for a GET request, once processed
+	 */
+	private String getGetMessage(Map<String, String> parameters, RequestRecording recording) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		requestType = requestType == null ? null : requestType.trim().toLowerCase();
 		String messageReturned; // Not initialized, so that IDE will show a warning if it's being used without being set
 
 		boolean adminAccess = SecurityManager.hasAdminAccess(
@@ -75,42 +473,148 @@ public class FAQServlet extends HttpServlet {
 		} else if (requestType.equals(REQUEST_TYPE_ADD_NEW_FAQ)) {
 			messageReturned = "A POST request, as well as admin access, is expected to add a new FAQ. Use POST instead of GET.";
 		} else if (requestType.equals(REQUEST_TYPE_GET_ALL_FAQ)) {
-			if (adminAccess) {
-				messageReturned = processGetAllFAQRequest(parameters.get(PARAMETER_STRING_FORMAT));
-			} else {
-				messageReturned = getAccessDeniedMessage();
-			}
+			messageReturned = getAccessDeniedMessage(); // Admins have their response streamed, see streamGet
 		} else if (requestType.equals(REQUEST_TYPE_GET_CORRESPONDING_FAQ)) {
-			messageReturned = processMatchingFAQRequest(parameters.get(PARAMETER_STRING_MATCH), parameters.get(PARAMETER_STRING_FORMAT));
+			messageReturned = processMatchingFAQRequest(parameters, recording);
+		} else if (requestType.equals(REQUEST_TYPE_SEARCH)) {
+			messageReturned = processSearchRequest(parameters, recording);
+		} else if (requestType.equals(REQUEST_TYPE_SUGGEST)) {
+			messageReturned = processSuggestRequest(parameters, recording);
+		} else if (requestType.equals(REQUEST_TYPE_GET_BY_TAGS)) {
+			messageReturned = processGetByTagsRequest(parameters, recording);
+		} else if (requestType.equals(REQUEST_TYPE_GET_TAG_COUNTS)) {
+			messageReturned = processGetTagCountsRequest(parameters.get(PARAMETER_STRING_FORMAT), recording);
+		} else if (requestType.equals(REQUEST_TYPE_GET_METRICS)) {
+			messageReturned = adminAccess ? processGetMetricsRequest(parameters.get(PARAMETER_STRING_FORMAT)) : getAccessDeniedMessage();
 		} else {
 			messageReturned = getIncorrectRequestTypeMessage();
 		}
-
-		request.setAttribute(ATTRIBUTE_MESSAGE, messageReturned);
-
-		// Send to view
-		this.getServletContext().getRequestDispatcher(JSP_URL).forward(request, response);
+		return messageReturned;
 	}
 
-	@Override
-	public void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-		Map<String, String> parameters = sanitizeParameters(request);
-
-		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE); // Redundant right now, as there is only one reason to send a POST request (the first user story), but it will be useful later when POST can mean several things
+	/**
+	 * @return the message to display for a POST request, once processed
+	 */
+	private String getPostMessage(Map<String, String> parameters, RequestRecording recording) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
 		String messageReturned; // Not initialized, so that IDE will show a warning if it's being used without being set
 
 		if (requestType == null) {
 			messageReturned = getIncorrectRequestTypeMessage();
 		} else if (requestType.equals(REQUEST_TYPE_ADD_NEW_FAQ)) {
 			messageReturned = addNewFaq(parameters);
-		}  else {
+		} else if (requestType.equals(REQUEST_TYPE_BULK_IMPORT)) {
+			messageReturned = getAccessDeniedMessage(); // Admins have their response streamed, see streamPost
+		} else {
 			messageReturned = getIncorrectRequestTypeMessage();
 		}
+		return messageReturned;
+	}
 
-		request.setAttribute(ATTRIBUTE_MESSAGE, messageReturned);
+	/**
+	 * Same as {@link #getJsonBody}, except for {@link #REQUEST_TYPE_GET_CORRESPONDING_FAQ} when the store keeps the encoded FAQ (see {@link com.netheos.db.AbstractFAQStore#PAYLOADS_OFF_HEAP_SETTING}) : they are then copied to the response as they are, without building the json array.
+	 */
+	private JsonBody getJsonResponse(Map<String, String> parameters, RequestRecording recording, boolean post) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		String match = parameters.get(PARAMETER_STRING_MATCH);
+		if (!post && requestType != null && REQUEST_TYPE_GET_CORRESPONDING_FAQ.equals(requestType.trim().toLowerCase()) && match != null && !match.isEmpty()) {
+			String tagString = parameters.get(PARAMETER_STRING_TAGS);
+			List<String> tags = tagString == null ? null : parseTags(tagString);
+			JsonPayloads payloads = null;
+			try {
+				if (tags == null || !tags.isEmpty()) { // Otherwise refused by getJsonBody
+					payloads = FAQStores.getInstance().getFAQMatchPayloads(match, tags, isAllTagsMode(parameters));
+				}
+			} catch (QueryTooExpensiveException e) {
+				return new JsonBody(refuse(recording, getQueryTooExpensiveMessage(e)), null);
+			} catch (PatternSyntaxException e) {
+				return new JsonBody(refuse(recording, getInvalidPatternMessage(e)), null);
+			}
+			if (payloads != null) {
+				recording.addDocuments(payloads.size());
+				return new JsonBody(null, payloads);
+			}
+		}
+		return new JsonBody(getJsonBody(parameters, recording, post), null);
+	}
+
+	/**
+	 * @return the json to send to API clients (see {@link #JSON_API_FORMAT}) for a GET or POST request, once processed : the FAQ (or tags, or metrics) as a json array, or an object containing the message that would have been displayed otherwise
+	 */
+	private String getJsonBody(Map<String, String> parameters, RequestRecording recording, boolean post) {
+		String requestType = parameters.get(PARAMETER_STRING_REQUEST_TYPE);
+		requestType = requestType == null || post ? null : requestType.trim().toLowerCase(); // Only GET requests return documents
+		String tagString = parameters.get(PARAMETER_STRING_TAGS);
+		List<String> tags = tagString == null ? null : parseTags(tagString);
 
-		// Send to view
-		this.getServletContext().getRequestDispatcher(JSP_URL).forward(request, response);
+		if (REQUEST_TYPE_GET_CORRESPONDING_FAQ.equals(requestType)) {
+			String match = parameters.get(PARAMETER_STRING_MATCH);
+			if (match == null || match.isEmpty()) {
+				return refuse(recording, "\"" + PARAMETER_STRING_MATCH + "\" parameter must be set.");
+			}
+			if (tags != null && tags.isEmpty()) { // Rather than matching no FAQ at all
+				return refuse(recording, NO_VALID_TAG_MESSAGE);
+			}
+			List<String> matches;
+			try {
+				matches = FAQStores.getInstance().getFAQMatches(match, JSON_FORMAT, tags, isAllTagsMode(parameters));
+			} catch (QueryTooExpensiveException e) {
+				return refuse(recording, getQueryTooExpensiveMessage(e));
+			} catch (PatternSyntaxException e) {
+				return refuse(recording, getInvalidPatternMessage(e));
+			}
+			recording.addDocuments(matches.size());
+			return toJsonArray(matches);
+		} else if (REQUEST_TYPE_SEARCH.equals(requestType)) {
+			String query = parameters.get(PARAMETER_STRING_QUERY);
+			int limit = getSearchLimit(parameters);
+			if (query == null || query.trim().isEmpty()) {
+				return refuse(recording, "\"" + PARAMETER_STRING_QUERY + "\" parameter must be set.");
+			} else if (limit < 0) {
+				return refuse(recording, getSearchLimitMessage());
+			}
+			List<String> results = FAQStores.getInstance().search(query, limit, JSON_FORMAT);
+			recording.addDocuments(results.size());
+			return toJsonArray(results);
+		} else if (REQUEST_TYPE_SUGGEST.equals(requestType)) {
+			String prefix = parameters.get(PARAMETER_STRING_PREFIX);
+			int limit = getLimit(parameters, SUGGEST_DEFAULT_LIMIT_SETTING, 5, SUGGEST_MAX_LIMIT_SETTING, 20);
+			if (prefix == null || prefix.trim().isEmpty()) {
+				return refuse(recording, "\"" + PARAMETER_STRING_PREFIX + "\" parameter must be set.");
+			} else if (limit < 0) {
+				return refuse(recording, getLimitMessage(SUGGEST_MAX_LIMIT_SETTING, 20));
+			}
+			List<String> suggestions = FAQStores.getInstance().suggest(prefix, limit, JSON_FORMAT);
+			recording.addDocuments(suggestions.size());
+			return toJsonArray(suggestions);
+		} else if (REQUEST_TYPE_GET_BY_TAGS.equals(requestType)) {
+			if (tags == null || tags.isEmpty()) {
+				return refuse(recording, NO_VALID_TAG_MESSAGE);
+			}
+			List<String> faqs;
+			try {
+				faqs = FAQStores.getInstance().getFAQByTags(tags, isAllTagsMode(parameters), JSON_FORMAT);
+			} catch (QueryTooExpensiveException e) {
+				return refuse(recording, getQueryTooExpensiveMessage(e));
+			}
+			recording.addDocuments(faqs.size());
+			return toJsonArray(faqs);
+		} else if (REQUEST_TYPE_GET_TAG_COUNTS.equals(requestType)) {
+			return toJsonArray(getTagCountsJson());
+		} else if (REQUEST_TYPE_GET_METRICS.equals(requestType)
+			&& SecurityManager.hasAdminAccess(parameters.get(PARAMETER_STRING_USERNAME), parameters.get(PARAMETER_STRING_PASSWORD))) {
+			return toJsonArray(Metrics.getInstance().toJson());
+		}
+		return toJsonMessage(post ? getPostMessage(parameters, recording) : getGetMessage(parameters, recording));
+	}
+
+	/**
+	 * Marks the request as {@link RequestRecording#refuse refused}, the response being a message instead of what was asked for.
+	 * @return the message as a json object, for API clients
+	 */
+	private static String refuse(RequestRecording recording, String message) {
+		recording.refuse();
+		return toJsonMessage(message);
 	}
 
 	/**
@@ -132,9 +636,7 @@ public class FAQServlet extends HttpServlet {
 				messageReturned = "Please set all of " + PARAMETER_STRING_QUESTION + ", " + PARAMETER_STRING_ANSWER + " and " + PARAMETER_STRING_TAGS + ". " + PARAMETER_STRING_TAGS + " is a string of concatened tags, letters only, separated by \"" + TAG_SEPARATOR + "\".";
 			}
 
-			String tagsToInsert[] = tagString.trim().toLowerCase().split(TAG_SEPARATOR);			
-
-			messageReturned = DatabaseAccessor.getInstance().insertNewFAQ(questionToInsert, answerToInsert, filterBadTags(tagsToInsert));
+			messageReturned = FAQStores.getInstance().insertNewFAQ(questionToInsert, answerToInsert, parseTags(tagString));
 		} else {
 			messageReturned = getAccessDeniedMessage();
 		}
@@ -142,25 +644,400 @@ public class FAQServlet extends HttpServlet {
 	}
 
 	/**
-	 * Calls the database to find all FAQ whose question OR answer contains the given pattern. Compacted in a single String.
+	 * Calls the database to find all FAQ whose question OR answer contains the given pattern. Compacted in a single String. <BR>
+	 * If {@link #PARAMETER_STRING_TAGS tags} are given, only FAQ having them (see {@link #PARAMETER_STRING_TAG_MODE}) are searched.
 	 */
-	private String processMatchingFAQRequest(String patternToMatch, String format) {
-		List<String> matches = DatabaseAccessor.getInstance().getFAQMatches(patternToMatch, format);
+	private String processMatchingFAQRequest(Map<String, String> parameters, RequestRecording recording) {
+		String tagString = parameters.get(PARAMETER_STRING_TAGS);
+		List<String> tags = tagString == null ? null : parseTags(tagString);
+		if (tags != null && tags.isEmpty()) { // Rather than matching no FAQ at all
+			recording.refuse();
+			return NO_VALID_TAG_MESSAGE;
+		}
+		String match = parameters.get(PARAMETER_STRING_MATCH);
+		if (match == null || match.isEmpty() || !isJsonFormat(parameters.get(PARAMETER_STRING_FORMAT))) {
+			recording.refuse(); // The store answers with a message
+		}
+		List<String> matches;
+		try {
+			matches = FAQStores.getInstance().getFAQMatches(match, parameters.get(PARAMETER_STRING_FORMAT), tags, isAllTagsMode(parameters));
+		} catch (QueryTooExpensiveException e) {
+			recording.refuse();
+			return getQueryTooExpensiveMessage(e);
+		} catch (PatternSyntaxException e) {
+			recording.refuse();
+			return getInvalidPatternMessage(e);
+		}
+		recording.addDocuments(matches.size());
 		return transformListInString(matches, "Matching documents");
 	}
 
 	/**
-	 * Calls the database and retrieves all FAQ. Compacted in a single String.
+	 * Calls the database to find the FAQ best matching the words of the query, best first. Compacted in a single String.
 	 */
-	private String processGetAllFAQRequest(String format) {
-		List<String> allFAQ = DatabaseAccessor.getInstance().getWholeCollection(format, FAQ_TABLE_NAME);
-		return transformListInString(allFAQ, "All documents");
+	private String processSearchRequest(Map<String, String> parameters, RequestRecording recording) {
+		int limit = getSearchLimit(parameters);
+		if (limit < 0) {
+			recording.refuse();
+			return getSearchLimitMessage();
+		}
+		String query = parameters.get(PARAMETER_STRING_QUERY);
+		if (query == null || query.trim().isEmpty() || !isJsonFormat(parameters.get(PARAMETER_STRING_FORMAT))) {
+			recording.refuse(); // The store answers with a message
+		}
+		List<String> results = FAQStores.getInstance().search(parameters.get(PARAMETER_STRING_QUERY), limit, parameters.get(PARAMETER_STRING_FORMAT));
+		recording.addDocuments(results.size());
+		return transformListInString(results, "Best matching documents");
+	}
+
+	/**
+	 * Calls the database to find the questions and tags completing the {@link #PARAMETER_STRING_PREFIX prefix}. Compacted in a single String.
+	 */
+	private String processSuggestRequest(Map<String, String> parameters, RequestRecording recording) {
+		int limit = getLimit(parameters, SUGGEST_DEFAULT_LIMIT_SETTING, 5, SUGGEST_MAX_LIMIT_SETTING, 20);
+		if (limit < 0) {
+			return getLimitMessage(SUGGEST_MAX_LIMIT_SETTING, 20);
+		}
+		List<String> suggestions = FAQStores.getInstance().suggest(parameters.get(PARAMETER_STRING_PREFIX), limit, parameters.get(PARAMETER_STRING_FORMAT));
+		recording.addDocuments(suggestions.size());
+		return transformListInString(suggestions, "Suggestions");
+	}
+
+	/** @return the {@link #PARAMETER_STRING_LIMIT number of FAQ} asked for by a ranked search, or -1 if invalid */
+	private static int getSearchLimit(Map<String, String> parameters) {
+		return getLimit(parameters, SEARCH_DEFAULT_LIMIT_SETTING, 10, SEARCH_MAX_LIMIT_SETTING, 100);
+	}
+
+	private static String getSearchLimitMessage() {
+		return getLimitMessage(SEARCH_MAX_LIMIT_SETTING, 100);
+	}
+
+	/** @return the {@link #PARAMETER_STRING_LIMIT limit} asked for, its configured default if not given, or -1 if invalid */
+	private static int getLimit(Map<String, String> parameters, String defaultSetting, int defaultLimit, String maxSetting, int defaultMax) {
+		String limitString = parameters.get(PARAMETER_STRING_LIMIT);
+		int limit;
+		try {
+			limit = limitString == null ? Configuration.getInt(defaultSetting, defaultLimit) : Integer.parseInt(limitString.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+		return limit < 1 || limit > Configuration.getInt(maxSetting, defaultMax) ? -1 : limit;
+	}
+
+	private static String getLimitMessage(String maxSetting, int defaultMax) {
+		return PARAMETER_STRING_LIMIT + " should be between 1 and " + Configuration.getInt(maxSetting, defaultMax) + ".";
+	}
+
+	/**
+	 * Calls the database to find all FAQ having the given tags. Compacted in a single String.
+	 */
+	private String processGetByTagsRequest(Map<String, String> parameters, RequestRecording recording) {
+		String tagString = parameters.get(PARAMETER_STRING_TAGS);
+		List<String> tags = tagString == null ? null : parseTags(tagString);
+		if (tags == null || tags.isEmpty() || !isJsonFormat(parameters.get(PARAMETER_STRING_FORMAT))) {
+			recording.refuse(); // The store answers with a message
+		}
+		List<String> faqs;
+		try {
+			faqs = FAQStores.getInstance().getFAQByTags(tags, isAllTagsMode(parameters), parameters.get(PARAMETER_STRING_FORMAT));
+		} catch (QueryTooExpensiveException e) {
+			recording.refuse();
+			return getQueryTooExpensiveMessage(e);
+		}
+		recording.addDocuments(faqs.size());
+		return transformListInString(faqs, "Documents with tags");
+	}
+
+	/**
+	 * Returns the number of FAQ of each tag, most used tags first. Compacted in a single String.
+	 */
+	private String processGetTagCountsRequest(String format, RequestRecording recording) {
+		List<String> res;
+		if (isJsonFormat(format)) {
+			res = getTagCountsJson();
+		} else {
+			recording.refuse();
+			res = Collections.singletonList("Only json is accepted as a format for now");
+		}
+		return transformListInString(res, "Tags");
+	}
+
+	/** Number of FAQ of each tag, as json, most used tags first */
+	private static List<String> getTagCountsJson() {
+		List<Map.Entry<String, Integer>> counts = new ArrayList<>(FAQStores.getInstance().getTagCounts().entrySet());
+		counts.sort(Map.Entry.<String, Integer>comparingByValue().reversed().thenComparing(Map.Entry.comparingByKey()));
+		List<String> res = new ArrayList<>(counts.size());
+		for (Map.Entry<String, Integer> count : counts) {
+			res.add("{ \"tag\" : \"" + count.getKey() + "\", \"count\" : " + count.getValue() + " }"); // Tags are letters only, nothing to escape
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the statistics of every request type and database command since startup. Compacted in a single String.
+	 */
+	private String processGetMetricsRequest(String format) {
+		List<String> res;
+		if (isJsonFormat(format)) {
+			res = Metrics.getInstance().toJson();
+		} else {
+			res = Collections.singletonList("Only json is accepted as a format for now");
+		}
+		return transformListInString(res, "Metrics");
+	}
+
+	/**
+	 * @return true if the response must be plain json rather than an HTML page : the format is {@link #JSON_API_FORMAT}, or it is {@link #JSON_FORMAT} (or unset) and the Accept header prefers json to HTML
+	 */
+	private static boolean isJsonApiRequest(Map<String, String> parameters, HttpServletRequest request) {
+		String format = parameters.get(PARAMETER_STRING_FORMAT);
+		format = format == null ? null : format.trim().toLowerCase();
+		return JSON_API_FORMAT.equals(format)
+			|| ((format == null || format.equals(JSON_FORMAT)) && JsonResponseWriter.prefersJson(request.getHeader("Accept")));
+	}
+
+	/** @return true if the format is {@link #JSON_FORMAT}, whatever the case and surrounding spaces */
+	private static boolean isJsonFormat(String format) {
+		return format != null && format.trim().toLowerCase().equals(JSON_FORMAT);
+	}
+
+	/** @return false if the user asked for FAQ having any of the tags, true (the default) if they must have all of them */
+	private static boolean isAllTagsMode(Map<String, String> parameters) {
+		String mode = parameters.get(PARAMETER_STRING_TAG_MODE);
+		return mode == null || !mode.trim().toLowerCase().equals(TAG_MODE_ANY);
+	}
+
+	/** Splits a string of tags separated by {@link #TAG_SEPARATOR} and keeps only the valid ones, lowered */
+	static List<String> parseTags(String tagString) {
+		return filterBadTags(tagString.trim().toLowerCase().split(TAG_SEPARATOR));
+	}
+
+	/**
+	 * Calls the database and writes all FAQ to the response as they are read, instead of compacting them in a single String first. <BR>
+	 * The collection may be big, this keeps memory usage bounded and lets the client receive the beginning of the page before the whole collection has been read.
+	 * The output is the same as what {@link #JSP_URL} would display with {@link #transformListInString}.
+	 */
+	private void streamGetAllFAQRequest(String format, HttpServletRequest request, HttpServletResponse response, RequestRecording recording) throws ServletException, IOException {
+		if (isJsonFormat(format)) { // Otherwise the store answers with a message
+			addValidators(request, response);
+		}
+		PrintWriter writer = beginStreamedResponse(request, response);
+		writer.print(GET_ALL_HEADER + " : <BR/>\n");
+		response.flushBuffer();
+
+		int count = FAQStores.getInstance().streamWholeCollection(format, FAQ_TABLE_NAME, document -> {
+			writer.print(document);
+			writer.print("<BR/>\n");
+		});
+		recording.addDocuments(count);
+		if (count == 0) {
+			writer.print("[none]");
+		}
+		endStreamedResponse(request, response);
+	}
+
+	/**
+	 * Same as {@link #streamGetAllFAQRequest}, but as a json array for API clients. Copied from the encoded FAQ of the store when it keeps them, see {@link FAQStore#getAllPayloads}.
+	 */
+	private void streamGetAllFAQJsonRequest(HttpServletRequest request, HttpServletResponse response, RequestRecording recording) throws IOException {
+		addValidators(request, response);
+		JsonPayloads payloads = FAQStores.getInstance().getAllPayloads();
+		if (payloads != null) {
+			recording.addDocuments(payloads.size());
+			JsonResponseWriter.write(request, response, payloads);
+			return;
+		}
+		try (Writer writer = JsonResponseWriter.beginStream(request, response)) {
+			writer.write('[');
+			int count = FAQStores.getInstance().streamWholeCollection(JSON_FORMAT, FAQ_TABLE_NAME, new FAQStore.DocumentHandler() {
+				private boolean first = true;
+
+				@Override
+				public void handle(String document) throws IOException {
+					if (!first) {
+						writer.write(',');
+					}
+					first = false;
+					writer.write(document);
+				}
+			});
+			recording.addDocuments(count);
+			writer.write(']');
+		}
+	}
+
+	/**
+	 * Writes one page of the FAQ to the response : at most {@link #PARAMETER_STRING_PAGE_SIZE} FAQ, after those of the page whose {@link #PARAMETER_STRING_AFTER continuation token} is given, with only the {@link #PARAMETER_STRING_FIELDS requested fields}. <BR>
+	 * Each page costs the same, so dashboards can go through a big FAQ page by page instead of downloading it whole. The token for the next page is written after the FAQ. <BR>
+	 * API clients receive a json object instead : { "documents" : [...], "next" : "token" }, the token being null on the last page.
+	 */
+	private void streamGetAllFAQPageRequest(Map<String, String> parameters, HttpServletRequest request, HttpServletResponse response, RequestRecording recording, boolean json) throws ServletException, IOException {
+		int maxPageSize = Configuration.getInt(GET_ALL_MAX_PAGE_SIZE_SETTING, 1000);
+		int pageSize;
+		List<String> fields = null;
+		try {
+			pageSize = Integer.parseInt(parameters.get(PARAMETER_STRING_PAGE_SIZE).trim());
+			if (pageSize < 1 || pageSize > maxPageSize) {
+				throw new IllegalArgumentException(PARAMETER_STRING_PAGE_SIZE + " should be between 1 and " + maxPageSize);
+			}
+			if (parameters.get(PARAMETER_STRING_FIELDS) != null) {
+				fields = new ArrayList<>();
+				for (String field : parameters.get(PARAMETER_STRING_FIELDS).split(FIELD_SEPARATOR)) {
+					if (!PAGE_FIELDS.contains(field.trim())) {
+						throw new IllegalArgumentException(PARAMETER_STRING_FIELDS + " should only contain " + PAGE_FIELDS);
+					}
+					fields.add(field.trim());
+				}
+			}
+		} catch (IllegalArgumentException e) { // Also catches NumberFormatException
+			refusePage(e.getMessage(), request, response, json);
+			return;
+		}
+		String after = parameters.get(PARAMETER_STRING_AFTER);
+		after = after == null || after.trim().isEmpty() ? null : after.trim();
+
+		/* Read first, so that an invalid token can still be answered with a normal message. A page is small enough to be held in memory */
+		List<String> page = new ArrayList<>(pageSize);
+		String nextToken;
+		try {
+			nextToken = FAQStores.getInstance().streamCollectionPage(json ? JSON_FORMAT : parameters.get(PARAMETER_STRING_FORMAT), FAQ_TABLE_NAME, after, pageSize, fields, page::add);
+		} catch (IllegalArgumentException | QueryTooExpensiveException e) {
+			refusePage(e.getMessage(), request, response, json);
+			return;
+		}
+
+		recording.addDocuments(page.size());
+		if (json || isJsonFormat(parameters.get(PARAMETER_STRING_FORMAT))) { // Otherwise the store answers with a message
+			addValidators(request, response);
+		}
+		if (json) {
+			JsonResponseWriter.write(request, response, "{ \"documents\" : " + toJsonArray(page) + ", \"next\" : " + (nextToken == null ? "null" : "\"" + nextToken + "\"") + " }"); // Tokens are hexadecimal, nothing to escape
+			return;
+		}
+		PrintWriter writer = beginStreamedResponse(request, response);
+		writer.print(transformListInString(page, "Page of documents"));
+		writer.print(nextToken == null ? "Last page" : "Next page : " + PARAMETER_STRING_AFTER + "=" + nextToken);
+		endStreamedResponse(request, response);
+	}
+
+	/** Answers a page request with an error message, in the requested form */
+	private void refusePage(String reason, HttpServletRequest request, HttpServletResponse response, boolean json) throws ServletException, IOException {
+		String message = "Page refused : " + reason + ".";
+		if (json) {
+			JsonResponseWriter.write(request, response, toJsonMessage(message));
+		} else {
+			request.setAttribute(ATTRIBUTE_MESSAGE, message);
+			this.getServletContext().getRequestDispatcher(JSP_URL).forward(request, response);
+		}
+	}
+
+	/**
+	 * Imports many FAQ at once, read from the body of the request as they arrive, and sent to the database in batches of {@link #PARAMETER_STRING_BATCH_SIZE} FAQ. <BR>
+	 * Only one batch is held in memory at a time, whatever the size of the upload. The result of each batch is written to the response as soon as it is known. <BR>
+	 * The body is read as is (not as form parameters), so the other parameters must be in the URL and the content type must not be application/x-www-form-urlencoded. Its format is given by {@link #PARAMETER_STRING_FORMAT} ({@link #IMPORT_FORMAT_JSON_LINES} or {@link #IMPORT_FORMAT_CSV}), see {@link FAQImportReader}.
+	 */
+	private void streamBulkImportRequest(Map<String, String> parameters, HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (request.getCharacterEncoding() == null) {
+			request.setCharacterEncoding("UTF-8"); // Same encoding as the pages, rather than the ISO-8859-1 default of HTTP
+		}
+		int maxBatchSize = Configuration.getInt(BULK_IMPORT_MAX_BATCH_SIZE_SETTING, 10_000);
+		int batchSize;
+		FAQImportReader importReader;
+		try {
+			String batchSizeString = parameters.get(PARAMETER_STRING_BATCH_SIZE);
+			batchSize = batchSizeString == null ? Configuration.getInt(BULK_IMPORT_BATCH_SIZE_SETTING, 1000) : Integer.parseInt(batchSizeString.trim());
+			if (batchSize < 1 || batchSize > maxBatchSize) {
+				throw new IllegalArgumentException(PARAMETER_STRING_BATCH_SIZE + " should be between 1 and " + maxBatchSize);
+			}
+			String format = parameters.get(PARAMETER_STRING_FORMAT);
+			importReader = new FAQImportReader(request.getReader(), format == null ? getImportFormat(request.getContentType()) : format.trim().toLowerCase());
+		} catch (IllegalArgumentException e) { // Also catches NumberFormatException
+			request.setAttribute(ATTRIBUTE_MESSAGE, "Bulk import refused : " + e.getMessage() + ".");
+			this.getServletContext().getRequestDispatcher(JSP_URL).forward(request, response);
+			return;
+		}
+
+		PrintWriter writer = beginStreamedResponse(request, response);
+		writer.print("Bulk import : <BR/>\n");
+
+		List<FAQEntry> batch = new ArrayList<>(batchSize);
+		int batchNumber = 0;
+		int totalInserted = 0;
+		int totalFailed = 0;
+		boolean finished = false;
+		while (!finished) {
+			int firstLine = importReader.getLineNumber() + 1;
+			int failed = 0;
+			String firstError = null;
+			while (batch.size() + failed < batchSize) {
+				try {
+					FAQEntry faq = importReader.next();
+					if (faq == null) {
+						finished = true;
+						break;
+					}
+					batch.add(faq);
+				} catch (IllegalArgumentException e) {
+					failed++;
+					firstError = firstError == null ? e.getMessage() : firstError;
+				}
+			}
+			if (batch.isEmpty() && failed == 0) {
+				break;
+			}
+
+			int inserted = FAQStores.getInstance().insertNewFAQs(batch);
+			failed += batch.size() - inserted;
+			batch.clear();
+			totalInserted += inserted;
+			totalFailed += failed;
+
+			writer.print("Batch " + (++batchNumber) + " (lines " + firstLine + " to " + importReader.getLineNumber() + ") : " + inserted + " inserted, " + failed + " failed"
+				+ (firstError == null ? "" : " (first error : " + firstError + ")") + "<BR/>\n");
+			response.flushBuffer(); // Lets the client follow the progress of a big import
+		}
+		writer.print("Total : " + totalInserted + " inserted, " + totalFailed + " failed");
+		endStreamedResponse(request, response);
+	}
+
+	/**
+	 * Guesses the import format from the content type of the request, for when it isn't given as a parameter.
+	 * @return the format, or null if unknown
+	 */
+	private static String getImportFormat(String contentType) {
+		if (contentType == null) {
+			return null;
+		}
+		contentType = contentType.toLowerCase();
+		if (contentType.startsWith("text/csv")) {
+			return IMPORT_FORMAT_CSV;
+		} else if (contentType.startsWith("application/x-ndjson") || contentType.startsWith("application/jsonl") || contentType.startsWith("application/json-lines")) {
+			return IMPORT_FORMAT_JSON_LINES;
+		}
+		return null;
+	}
+
+	/**
+	 * Writes the beginning of the view, for responses written directly by the servlet rather than by {@link #JSP_URL}. The message then has to be written to the returned writer, followed by {@link #endStreamedResponse}.
+	 */
+	private PrintWriter beginStreamedResponse(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.setContentType(HTML_CONTENT_TYPE);
+		this.getServletContext().getRequestDispatcher(JSP_HEADER_URL).include(request, response);
+		return response.getWriter();
+	}
+
+	/**
+	 * Writes the end of the view, see {@link #beginStreamedResponse}.
+	 */
+	private void endStreamedResponse(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		response.getWriter().println(); // As done by the JSP after the message
+		this.getServletContext().getRequestDispatcher(JSP_FOOTER_URL).include(request, response);
 	}
 
 	/**
 	 * Returns a map corresponding to the request parameters (parameter name->parameter value), but every parameter was cleaned to avoid injections.
 	 */
-	private Map<String, String> sanitizeParameters(HttpServletRequest request) {
+	static Map<String, String> sanitizeParameters(HttpServletRequest request) {
 		Map<String, String> res = new HashMap<>();
 
 		for (Enumeration<String> cursor = request.getParameterNames() ; cursor.hasMoreElements() ; ) {
@@ -174,7 +1051,7 @@ public class FAQServlet extends HttpServlet {
 	/**
 	 * Removes special characters to help avoid injection attacks. Should be made on front-end as well, just in case.
 	 */
-	private String sanitizeInput(String input) {
+	static String sanitizeInput(String input) {
 		return input.
 		    replaceAll("\"", "").
 		    replaceAll("\\\\", "").
@@ -187,7 +1064,7 @@ public class FAQServlet extends HttpServlet {
 	 * Removes tags not conforming, such as empty strings or those containing non-letter characters.
 	 * This avoids both user errors and malicious intent.
 	 */
-	private List<String> filterBadTags(String tagsToInsert[]) {
+	static List<String> filterBadTags(String tagsToInsert[]) {
 		List<String> tagsToInsertCleaned = new LinkedList<>();
 		for (int i = 0 ; i < tagsToInsert.length ; i++) {
 			if (tagsToInsert[i].matches("[a-zA-Z]{1,100}")) { // Set a limit on max string size to avoid buffer overflow shenanigans
@@ -204,26 +1081,87 @@ public class FAQServlet extends HttpServlet {
 		return "This feature is only available to admin users. Check your username and password.";
 	}
 
+	/**
+	 * Returns an error message telling the user why their query was refused or stopped, see {@link QueryTooExpensiveException}.
+	 */
+	private static String getQueryTooExpensiveMessage(QueryTooExpensiveException e) {
+		return "Query too expensive : " + e.getMessage() + ". Please make it more specific.";
+	}
+
+	/**
+	 * Returns an error message for a {@link #PARAMETER_STRING_MATCH pattern} which is not a valid regex.
+	 */
+	private static String getInvalidPatternMessage(PatternSyntaxException e) {
+		return "Invalid pattern : " + e.getDescription() + ".";
+	}
+
 	/**
 	 * Generate an error message for when the request type was not as expected.
 	 */
 	private String getIncorrectRequestTypeMessage() {
-		return "Please provide a correct request type. Expected values are " + REQUEST_TYPE_ADD_NEW_FAQ + ", " + REQUEST_TYPE_GET_ALL_FAQ + " and " + REQUEST_TYPE_GET_CORRESPONDING_FAQ + ".";
+		return "Please provide a correct request type. Expected values are " + String.join(", ", REQUEST_TYPES) + ".";
 	}
 
 
 	/**
 	 * @return the given String list as a single String, in a format expected by front-end. Here, with html line breaks (BR) between each element, with a given String at the top to explain what is displayed.
 	 */
-	private String transformListInString(List<String> list, String header) {
-		String res = header + " : <BR/>\n";
+	static String transformListInString(List<String> list, String header) {
+		StringBuilder res = new StringBuilder(header).append(" : <BR/>\n");
 		if (list.isEmpty()) {
-			res += "[none]";
+			res.append("[none]");
 		} else {
 			for (String s : list) {
-				res += s + "<BR/>\n";
+				res.append(s).append("<BR/>\n");
+			}
+		}
+		return res.toString();
+	}
+
+	/**
+	 * @return the given json documents as a single json array, for API clients
+	 */
+	static String toJsonArray(List<String> jsonDocuments) {
+		int length = 2 + jsonDocuments.size();
+		for (String document : jsonDocuments) {
+			length += document.length();
+		}
+		StringBuilder res = new StringBuilder(length).append('[');
+		for (String document : jsonDocuments) {
+			if (res.length() > 1) {
+				res.append(',');
+			}
+			res.append(document);
+		}
+		return res.append(']').toString();
+	}
+
+	/**
+	 * @return the given message as a json object, for API clients
+	 */
+	static String toJsonMessage(String message) {
+		return new Document("message", message).toJson();
+	}
+
+	/**
+	 * Response to an API client, computed by {@link #getJsonResponse} : a json string, or FAQ copied from the store.
+	 */
+	private static final class JsonBody {
+		private final String json;
+		private final JsonPayloads payloads;
+
+		private JsonBody(String json, JsonPayloads payloads) {
+			this.json = json;
+			this.payloads = payloads;
+		}
+
+		/** Sends it as the whole response, see {@link JsonResponseWriter} */
+		private void write(HttpServletRequest request, HttpServletResponse response) throws IOException {
+			if (payloads != null) {
+				JsonResponseWriter.write(request, response, payloads);
+			} else {
+				JsonResponseWriter.write(request, response, json);
 			}
 		}
-		return res;
 	}
 }
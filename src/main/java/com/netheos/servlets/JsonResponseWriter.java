@@ -0,0 +1,177 @@
+package com.netheos.servlets;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.netheos.Configuration;
+import com.netheos.db.JsonPayloads;
+
+/**
+ * Writes the json responses asked for by API clients (see {@link FAQServlet#JSON_API_FORMAT}) straight to the response, without going through the view. <BR>
+ * The body is encoded in a buffer kept by each thread, then sent at once with its length. Bodies of at least {@link #GZIP_MIN_BYTES_SETTING} bytes are compressed with gzip if the client accepts it : FAQ text compresses very well, and below that size the response fits in a single network packet anyway.
+ */
+public class JsonResponseWriter {
+	/** Content type of the json responses */
+	public static final String JSON_CONTENT_TYPE = "application/json;charset=UTF-8";
+
+	/** Setting for the size (bytes) from which a response is compressed, if the client accepts it */
+	public static final String GZIP_MIN_BYTES_SETTING = "json.gzipMinBytes";
+
+	/** Buffers bigger than this (in bytes) aren't kept for the next response, so that one huge response doesn't hold memory forever */
+	private static final int MAX_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+	private static final ThreadLocal<CharsetEncoder> ENCODERS = ThreadLocal.withInitial(() -> StandardCharsets.UTF_8.newEncoder()
+		.onMalformedInput(CodingErrorAction.REPLACE) // Unpaired surrogates, as String.getBytes would do
+		.onUnmappableCharacter(CodingErrorAction.REPLACE));
+	private static final ThreadLocal<ByteBuffer> BUFFERS = ThreadLocal.withInitial(() -> ByteBuffer.allocate(16 * 1024));
+
+	private static final int GZIP_MIN_BYTES = Configuration.getInt(GZIP_MIN_BYTES_SETTING, 1400);
+
+	/** No instance needed, everything is static */
+	private JsonResponseWriter() {
+	}
+
+	/**
+	 * Sends the given json as the whole response.
+	 */
+	public static void write(HttpServletRequest request, HttpServletResponse response, String json) throws IOException {
+		ByteBuffer bytes = encode(json);
+		try {
+			response.setContentType(JSON_CONTENT_TYPE);
+			response.addHeader("Vary", "Accept-Encoding");
+			if (bytes.remaining() >= GZIP_MIN_BYTES && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+				response.setHeader("Content-Encoding", "gzip");
+				try (GZIPOutputStream gzip = new GZIPOutputStream(response.getOutputStream(), 8192)) {
+					gzip.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				}
+			} else {
+				response.setContentLength(bytes.remaining());
+				response.getOutputStream().write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			}
+		} finally {
+			if (bytes.capacity() > MAX_POOLED_BUFFER_SIZE) {
+				BUFFERS.remove();
+			}
+		}
+	}
+
+	/**
+	 * Sends the documents as a json array, copied from where the store keeps them already encoded : nothing is encoded, and no String is built. <BR>
+	 * Their length is known beforehand, so the response is sent with it or compressed, as {@link #write(HttpServletRequest, HttpServletResponse, String)} does.
+	 */
+	public static void write(HttpServletRequest request, HttpServletResponse response, JsonPayloads payloads) throws IOException {
+		long length = payloads.getJsonArrayLength();
+		response.setContentType(JSON_CONTENT_TYPE);
+		response.addHeader("Vary", "Accept-Encoding");
+		if (length >= GZIP_MIN_BYTES && acceptsGzip(request.getHeader("Accept-Encoding"))) {
+			response.setHeader("Content-Encoding", "gzip");
+			try (GZIPOutputStream gzip = new GZIPOutputStream(response.getOutputStream(), 8192)) {
+				payloads.writeJsonArray(gzip);
+			}
+		} else {
+			response.setContentLengthLong(length);
+			payloads.writeJsonArray(response.getOutputStream());
+		}
+	}
+
+	/**
+	 * Starts a json response whose size isn't known in advance, typically a whole collection written as it is read. It is compressed whenever the client accepts it, as it is expected to be big.
+	 * @return the writer to write the json to. It must be closed at the end, to finish the compression
+	 */
+	public static Writer beginStream(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		response.setContentType(JSON_CONTENT_TYPE);
+		response.addHeader("Vary", "Accept-Encoding");
+		OutputStream output = response.getOutputStream();
+		if (acceptsGzip(request.getHeader("Accept-Encoding"))) {
+			response.setHeader("Content-Encoding", "gzip");
+			output = new GZIPOutputStream(output, 8192, true); // Sync flush, so that flushing the writer still sends what was written so far
+		}
+		return new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8), 8192);
+	}
+
+	/**
+	 * @param accept value of the Accept header of the request, may be null
+	 * @return true if the client prefers json to HTML. Wildcards are ignored : browsers always list HTML explicitly, and clients accepting anything keep receiving the HTML page as before
+	 */
+	static boolean prefersJson(String accept) {
+		if (accept == null) {
+			return false;
+		}
+		double jsonQuality = 0;
+		double htmlQuality = 0;
+		for (String mediaRange : accept.split(",")) {
+			String[] parts = mediaRange.split(";");
+			String type = parts[0].trim().toLowerCase();
+			if (type.equals("application/json")) {
+				jsonQuality = getQuality(parts);
+			} else if (type.equals("text/html")) {
+				htmlQuality = getQuality(parts);
+			}
+		}
+		return jsonQuality > 0 && jsonQuality > htmlQuality;
+	}
+
+	/**
+	 * @param acceptEncoding value of the Accept-Encoding header of the request, may be null
+	 * @return true if the client accepts gzip, i.e. lists it (or "*") without a zero quality
+	 */
+	static boolean acceptsGzip(String acceptEncoding) {
+		if (acceptEncoding == null) {
+			return false;
+		}
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.split(";");
+			String name = parts[0].trim().toLowerCase();
+			if ((name.equals("gzip") || name.equals("*")) && getQuality(parts) > 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param parts an element of an Accept or Accept-Encoding header, split on ";" : its value then its parameters
+	 * @return the quality ("q" parameter) of the element, 1 if not given
+	 */
+	static double getQuality(String[] parts) {
+		for (int i = 1 ; i < parts.length ; i++) {
+			String parameter = parts[i].trim();
+			if (parameter.startsWith("q=")) {
+				try {
+					return Double.parseDouble(parameter.substring(2).trim());
+				} catch (NumberFormatException e) {
+					return 0; // Invalid, ignored as if refused
+				}
+			}
+		}
+		return 1;
+	}
+
+	/**
+	 * Encodes the json in UTF-8, in the buffer of the current thread (grown if needed).
+	 * @return the buffer, ready to be read
+	 */
+	private static ByteBuffer encode(String json) {
+		CharsetEncoder encoder = ENCODERS.get();
+		int maxSize = (int) Math.ceil(json.length() * (double) encoder.maxBytesPerChar());
+		ByteBuffer buffer = BUFFERS.get();
+		if (buffer.capacity() < maxSize) {
+			buffer = ByteBuffer.allocate(maxSize);
+			BUFFERS.set(buffer);
+		}
+		buffer.clear();
+		encoder.reset();
+		encoder.encode(CharBuffer.wrap(json), buffer, true); // Can't overflow, the buffer is big enough for any char
+		encoder.flush(buffer);
+		buffer.flip();
+		return buffer;
+	}
+}
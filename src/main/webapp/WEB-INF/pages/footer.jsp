@@ -0,0 +1,12 @@
+<%-- End of the page, shared by index.jsp and the responses FAQServlet streams without going through it --%>
+    	</p>
+
+		<br/>
+		<br/>
+
+		<p>
+			The user interface is still under development due to the lack of front-end developpers, we apologize for the rough formatting.
+		</p>
+
+    </body>
+</html>
\ No newline at end of file
@@ -0,0 +1,14 @@
+<%-- Beginning of the page, shared by index.jsp and the responses FAQServlet streams without going through it --%>
+
+<!DOCTYPE html>
+
+<html>
+    <head>
+        <meta charset="utf-8" />
+        <title>Netheos project</title>
+    </head>
+    
+    <body>
+
+    	<p>
+    		The server responded with : 
\ No newline at end of file
@@ -0,0 +1,39 @@
+package com.netheos;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConfigurationTest {
+	private static final String SETTING = "configuration.test.setting";
+
+	@After
+	public void tearDown() {
+		System.clearProperty(SETTING);
+	}
+
+	@Test
+	public void defaultValueTest() throws Exception {
+		assertEquals(Configuration.getString(SETTING, "default"), "default");
+		assertEquals(Configuration.getInt(SETTING, 42), 42);
+		assertEquals(Configuration.getLong(SETTING, 42L), 42L);
+		assertTrue(Configuration.getBoolean(SETTING, true));
+	}
+
+	@Test
+	public void systemPropertyTest() throws Exception {
+		System.setProperty(SETTING, " 12 ");
+		assertEquals(Configuration.getString(SETTING, "default"), "12");
+		assertEquals(Configuration.getInt(SETTING, 42), 12);
+
+		System.setProperty(SETTING, "TRUE");
+		assertTrue(Configuration.getBoolean(SETTING, false));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void notANumberTest() throws Exception {
+		System.setProperty(SETTING, "twelve");
+		Configuration.getInt(SETTING, 42);
+	}
+}
@@ -31,6 +31,8 @@ public class DatabaseAccessorTest {
 		faq.insertOne(Document.parse("{question:\"I have ideas, how can I send them to you ?\", answer:\"E-mails and phone numbers can be found on our Contact page\", tags:[\"contact\"]}"));
 		faq.insertOne(Document.parse("{question:\"Is it true the developper behind this is very competent and handsome ?\", answer:\"Yes, it is.\", tags:[\"meta\", \"important\"]}"));
 		faq.insertOne(Document.parse("{question:\"How do I join the team ?\", answer:\"Send your CV and cover letter to the e-mail provided on our recruitement page. Also check https://github.com/Netheos/Challenge-developpement-backend\", tags:[\"contact\"]}"));
+
+		DatabaseAccessor.getInstance().rebuildIndex(); // Documents above were inserted behind the accessor's back
     }
  
     @After
@@ -99,6 +101,77 @@ public class DatabaseAccessorTest {
         assertTrue(matches.get(0).matches("[^{}]*" + FAQServlet.PARAMETER_STRING_MATCH + "[^{}]*")); // Error message mentions the missing parameter and isn't json
     }
 
+    @Test
+    public void getFAQByTagsTest() throws Exception {
+        List<String> faqs = DatabaseAccessor.getInstance().getFAQByTags(Arrays.asList("contact"), true, FAQServlet.JSON_FORMAT);
+        assertEquals(faqs.size(), 2);
+        assertTrue(faqs.get(0).matches(".*I have ideas.*"));
+
+        faqs = DatabaseAccessor.getInstance().getFAQByTags(Arrays.asList("contact", "meta"), true, FAQServlet.JSON_FORMAT);
+        assertEquals(faqs.size(), 0);
+
+        faqs = DatabaseAccessor.getInstance().getFAQByTags(Arrays.asList("contact", "meta"), false, FAQServlet.JSON_FORMAT);
+        assertEquals(faqs.size(), 3);
+
+        /* Combined with a text search */
+        List<String> matches = DatabaseAccessor.getInstance().getFAQMatches("it", FAQServlet.JSON_FORMAT, Arrays.asList("contact"), true);
+        assertEquals(matches.size(), 1);
+        assertTrue(matches.get(0).matches(".*github.*"));
+
+        assertEquals(DatabaseAccessor.getInstance().getTagCounts().get("contact"), Integer.valueOf(2));
+
+        /* No tags */
+        faqs = DatabaseAccessor.getInstance().getFAQByTags(new LinkedList<String>(), true, FAQServlet.JSON_FORMAT);
+        assertEquals(faqs.size(), 1);
+        assertTrue(faqs.get(0).matches("[^{}]*" + FAQServlet.PARAMETER_STRING_TAGS + "[^{}]*"));
+    }
+
+    @Test
+    public void streamCollectionPageTest() throws Exception {
+        List<String> page = new LinkedList<String>();
+        String token = DatabaseAccessor.getInstance().streamCollectionPage(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME, null, 2, null, page::add);
+        assertEquals(page.size(), 2);
+        assertTrue(page.get(0).matches(".*_id.*I have ideas.*"));
+        assertNotNull(token);
+
+        /* Last page, with projection */
+        page.clear();
+        token = DatabaseAccessor.getInstance().streamCollectionPage(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME, token, 2, Arrays.asList(DatabaseAccessor.FAQ_FIELD_QUESTION), page::add);
+        assertEquals(page.size(), 1);
+        Document document = Document.parse(page.get(0));
+        assertEquals(document.keySet(), Collections.singleton(DatabaseAccessor.FAQ_FIELD_QUESTION));
+        assertEquals(document.get(DatabaseAccessor.FAQ_FIELD_QUESTION), "How do I join the team ?");
+        assertNull(token);
+
+        /* Wrong token */
+        try {
+            DatabaseAccessor.getInstance().streamCollectionPage(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME, "not a token", 2, null, page::add);
+            fail("Invalid token should be refused");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().matches(".*not a token.*"));
+        }
+    }
+
+    @Test
+    public void collectionVersionTest() throws Exception {
+        CollectionVersion before = DatabaseAccessor.getInstance().getCollectionVersion();
+        DatabaseAccessor.getInstance().insertNewFAQ("Is the version increased ?", "Yes", Arrays.asList("meta"));
+        CollectionVersion after = DatabaseAccessor.getInstance().getCollectionVersion();
+        assertEquals(after.getEpoch(), before.getEpoch());
+        assertEquals(after.getNumber(), before.getNumber() + 1); // Its own write : advertised straight away
+
+        /* Another node writes : the version is only advertised once its FAQ is served by this node too */
+        this.database.getCollection(DatabaseAccessor.FAQ_COLLECTION_NAME).insertOne(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Written by another node ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes"));
+        CollectionVersion other = new MongoVersionCounter(this.database.getCollection(DatabaseAccessor.VERSION_COLLECTION_NAME), DatabaseAccessor.FAQ_COLLECTION_NAME).increment();
+        assertEquals(other.getNumber(), after.getNumber() + 1);
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (DatabaseAccessor.getInstance().getCollectionVersion().getNumber() < other.getNumber() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertEquals(DatabaseAccessor.getInstance().getCollectionVersion().getNumber(), other.getNumber());
+        assertEquals(DatabaseAccessor.getInstance().getFAQMatches("another node", FAQServlet.JSON_FORMAT).size(), 1);
+    }
+
     /**
      * Performs various assert on the last element of the FAQ collection, according to given parameters, to check if the last one-of insertion went as planned.
      */
@@ -0,0 +1,129 @@
+package com.netheos.db;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.*;
+
+import org.bson.Document;
+
+import com.netheos.servlets.FAQServlet;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the embedded store answers like the mongo one, and keeps the FAQ across restarts. Needs no database.
+ */
+public class EmbeddedFAQStoreTest {
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File file;
+	private EmbeddedFAQStore store;
+
+	@Before
+	public void setUp() throws Exception {
+		file = new File(folder.getRoot(), "faq.log");
+		store = new EmbeddedFAQStore(file, false);
+		store.insertNewFAQ("I have ideas, how can I send them to you ?", "E-mails and phone numbers can be found on our Contact page", Arrays.asList("contact"));
+		store.insertNewFAQ("Is it true the developper behind this is very competent and handsome ?", "Yes, it is.", Arrays.asList("meta", "important"));
+		store.insertNewFAQ("How do I join the team ?", "Send your CV and cover letter to the e-mail provided on our recruitement page.", Arrays.asList("contact"));
+	}
+
+	@After
+	public void tearDown() {
+		store.close();
+	}
+
+	@Test
+	public void readTest() throws Exception {
+		List<String> all = store.getWholeCollection(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME);
+		assertEquals(all.size(), 3);
+		assertEquals(Document.parse(all.get(2)).getString(DatabaseAccessor.FAQ_FIELD_QUESTION), "How do I join the team ?");
+		assertEquals(store.getFAQMatches("e-mail", FAQServlet.JSON_FORMAT), Arrays.asList(all.get(2)));
+		assertEquals(store.getFAQByTags(Arrays.asList("contact"), true, FAQServlet.JSON_FORMAT), Arrays.asList(all.get(0), all.get(2)));
+		assertEquals(store.search("join team", 10, FAQServlet.JSON_FORMAT), Arrays.asList(all.get(2)));
+		assertEquals(store.getTagCounts().get("contact"), Integer.valueOf(2));
+		assertEquals(store.getWholeCollection("xml", DatabaseAccessor.FAQ_COLLECTION_NAME), Arrays.asList("Only json is accepted as a format for now"));
+		assertTrue(store.getWholeCollection(FAQServlet.JSON_FORMAT, "unknown").isEmpty());
+	}
+
+	@Test
+	public void reopenTest() throws Exception {
+		List<String> before = store.getWholeCollection(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME);
+		store.close();
+		store = new EmbeddedFAQStore(file, false);
+		assertEquals(store.getWholeCollection(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME), before);
+		assertEquals(store.getFAQMatches("e-mail", FAQServlet.JSON_FORMAT).size(), 1); // Index rebuilt from the log
+
+		store.insertNewFAQs(Arrays.asList(new FAQEntry("After reopening ?", "Appended", Arrays.asList("meta"))));
+		assertEquals(store.size(), 4);
+	}
+
+	@Test
+	public void incompleteEndTest() throws Exception {
+		long size = file.length();
+		store.close();
+		// A FAQ announced as 100 bytes long, but half written
+		try (RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+			long end = 0;
+			int length;
+			while ((length = raw.readInt()) > 0) { // Skips the 3 complete FAQ
+				end += 8 + length;
+				raw.seek(end);
+			}
+			raw.seek(end);
+			raw.writeInt(100);
+			raw.writeInt(12345);
+			raw.write(new byte[50]);
+		}
+		assertEquals(file.length(), size);
+
+		store = new EmbeddedFAQStore(file, false);
+		assertEquals(store.size(), 3);
+		store.insertNewFAQ("Written over the incomplete one ?", "Yes", Arrays.asList("meta"));
+		store.close();
+		store = new EmbeddedFAQStore(file, false);
+		assertEquals(store.size(), 4);
+	}
+
+	@Test
+	public void pageTest() throws Exception {
+		for (int i = 0 ; i < 100 ; i++) {
+			store.insertNewFAQ("Generated " + i + " ?", "Yes", Arrays.asList("generated"));
+		}
+		List<String> all = store.getWholeCollection(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME);
+		List<String> paged = new ArrayList<>();
+		String token = null;
+		do {
+			token = store.streamCollectionPage(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME, token, 7, null, paged::add);
+		} while (token != null);
+		assertEquals(paged, all);
+
+		List<String> projected = new ArrayList<>();
+		store.streamCollectionPage(FAQServlet.JSON_FORMAT, DatabaseAccessor.FAQ_COLLECTION_NAME, null, 1, Arrays.asList(DatabaseAccessor.FAQ_FIELD_QUESTION), projected::add);
+		assertEquals(Document.parse(projected.get(0)).keySet(), Collections.singleton(DatabaseAccessor.FAQ_FIELD_QUESTION));
+	}
+
+	@Test
+	public void growthTest() throws Exception {
+		char[] longAnswer = new char[100_000];
+		Arrays.fill(longAnswer, 'a');
+		for (int i = 0 ; i < 30 ; i++) { // 3 MB, beyond the first mapping
+			store.insertNewFAQ("Long " + i + " ?", new String(longAnswer), Arrays.asList("long"));
+		}
+		store.close();
+		store = new EmbeddedFAQStore(file, false);
+		assertEquals(store.getFAQByTags(Arrays.asList("long"), true, FAQServlet.JSON_FORMAT).size(), 30);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void lockTest() throws Exception {
+		new EmbeddedFAQStore(file, false);
+	}
+}
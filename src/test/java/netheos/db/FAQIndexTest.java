@@ -0,0 +1,309 @@
+package com.netheos.db;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the in-memory index gives exactly the same results as running the regex on every document, as the database used to do. Needs no database.
+ */
+public class FAQIndexTest {
+	private static final int GENERATED_FAQ_COUNT = 100_000;
+
+	private static final String[] WORDS = {"how", "do", "I", "join", "the", "team", "send", "CV", "e-mail", "phone", "contact", "page", "account",
+		"password", "reset", "it", "is", "true", "developper", "billing", "invoice", "refund", "delivery", "order", "ideas", "Yes", "recruitement"};
+
+	private static List<Document> documents;
+	private static FAQIndex index;
+
+	@BeforeClass
+	public static void setUpClass() {
+		System.out.println("\n===================Generating " + GENERATED_FAQ_COUNT + " FAQ.===================");
+		Random random = new Random(42); // Fixed seed, so that a failure can be reproduced
+		documents = new ArrayList<>(GENERATED_FAQ_COUNT);
+		index = new FAQIndex();
+		for (int i = 0 ; i < GENERATED_FAQ_COUNT ; i++) {
+			Document document = new Document("_id", new ObjectId());
+			document.put(DatabaseAccessor.FAQ_FIELD_QUESTION, generateSentence(random, 4 + random.nextInt(8)) + " ?");
+			document.put(DatabaseAccessor.FAQ_FIELD_ANSWER, generateSentence(random, 5 + random.nextInt(20)) + ".");
+			document.put(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("generated"));
+			documents.add(document);
+			index.add(document);
+		}
+	}
+
+	@Test
+	public void sizeTest() throws Exception {
+		assertEquals(index.size(), GENERATED_FAQ_COUNT);
+	}
+
+	@Test
+	public void sameResultsAsRegexTest() throws Exception {
+		String[] patterns = {"it", "join the team", "password", "refund order", "pass.*reset", "CV+", "e-mail?", "^How", "team ?$", "nothing like this",
+			"a|b", "[xyz]", "ideas", "Yes, it", "x", "developper.*invoice.*page"};
+		for (String patternString : patterns) {
+			Pattern pattern = Pattern.compile("^.*" + patternString + ".*$"); // Same regex as DatabaseAccessor
+			assertEquals("Pattern " + patternString, findByScanning(pattern), index.findMatches(pattern));
+			// Once planned : literals without any regex, other patterns simplified
+			assertEquals("Planned " + patternString, findByScanning(pattern), index.findMatches(MatchQuery.plan(patternString, 0, 0), null, true, 0, 0));
+		}
+	}
+
+	@Test
+	public void addTest() throws Exception {
+		FAQIndex smallIndex = new FAQIndex();
+		Pattern pattern = Pattern.compile("^.*unique sentence.*$");
+		assertTrue(smallIndex.findMatches(pattern).isEmpty());
+
+		Document document = new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "A unique sentence ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes");
+		smallIndex.add(document);
+		assertEquals(smallIndex.findMatches(pattern), Arrays.asList(document.toJson()));
+
+		smallIndex.clear();
+		assertTrue(smallIndex.findMatches(pattern).isEmpty());
+	}
+
+	@Test
+	public void offHeapPayloadsTest() throws Exception {
+		FAQIndex offHeapIndex = new FAQIndex(true);
+		List<Document> added = new ArrayList<>(documents.subList(0, 10_000));
+		char[] longAnswer = new char[PayloadStore.CHUNK_SIZE];
+		Arrays.fill(longAnswer, '\u00e9'); // Bigger than a chunk once encoded
+		added.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Huge team answer ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, new String(longAnswer)));
+		added.addAll(documents.subList(10_000, 20_000));
+		for (Document document : added) {
+			offHeapIndex.add(document);
+		}
+		assertTrue(offHeapIndex.hasPayloads());
+		assertNull(index.getAllPayloads());
+
+		List<String> all = new ArrayList<>();
+		for (Document document : added) {
+			all.add(document.toJson());
+		}
+		assertEquals(offHeapIndex.getAll(), all);
+		assertJsonArray(offHeapIndex.getAllPayloads(), all);
+		for (String patternString : new String[] {"join the team", "pass.*reset", "team ?$", "nothing like this"}) {
+			MatchQuery query = MatchQuery.plan(patternString, 0, 0);
+			List<String> matches = offHeapIndex.findMatches(query, null, true, 0, 0);
+			assertEquals(patternString, matches, findByScanning(Pattern.compile("^.*" + patternString + ".*$"), added));
+			assertJsonArray(offHeapIndex.findMatchPayloads(query, null, true, 0, 0), matches);
+		}
+
+		long payloadBytes = 0;
+		for (String json : all) {
+			payloadBytes += json.getBytes(StandardCharsets.UTF_8).length;
+		}
+		assertEquals(offHeapIndex.getDocumentCount(), added.size());
+		assertEquals(offHeapIndex.getPayloadBytes(), payloadBytes);
+		assertTrue(offHeapIndex.getPayloadBufferBytes() >= payloadBytes);
+		assertEquals(index.getPayloadBytes(), 0);
+
+		// Payloads taken before a clear are still readable
+		JsonPayloads before = offHeapIndex.getAllPayloads();
+		offHeapIndex.clear();
+		offHeapIndex.add(documents.get(0));
+		assertJsonArray(before, all);
+		assertJsonArray(offHeapIndex.getAllPayloads(), Arrays.asList(documents.get(0).toJson()));
+	}
+
+	/** Checks the payloads are written as the json array of the documents, with the length announced */
+	private static void assertJsonArray(JsonPayloads payloads, List<String> expected) throws IOException {
+		ByteArrayOutputStream output = new ByteArrayOutputStream();
+		payloads.writeJsonArray(output);
+		assertEquals(payloads.size(), expected.size());
+		assertEquals(new String(output.toByteArray(), StandardCharsets.UTF_8), "[" + String.join(",", expected) + "]");
+		assertEquals(payloads.getJsonArrayLength(), output.size());
+	}
+
+	@Test
+	public void tagsTest() throws Exception {
+		FAQIndex smallIndex = new FAQIndex();
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "First ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("contact", "meta")));
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Second ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("contact")));
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Third ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "No").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("important")));
+
+		Map<String, Integer> expectedCounts = new HashMap<>();
+		expectedCounts.put("contact", 2);
+		expectedCounts.put("meta", 1);
+		expectedCounts.put("important", 1);
+		assertEquals(smallIndex.getTagCounts(), expectedCounts);
+
+		Pattern yes = Pattern.compile("^.*Yes.*$");
+		assertEquals(smallIndex.findMatches(yes, Arrays.asList("contact"), true).size(), 2);
+		assertEquals(smallIndex.findMatches(yes, Arrays.asList("contact", "meta"), true).size(), 1);
+		assertEquals(smallIndex.findMatches(yes, Arrays.asList("meta", "important"), false).size(), 1); // "important" FAQ answers "No"
+		assertEquals(smallIndex.findMatches(Pattern.compile("^.*\\?.*$"), Arrays.asList("meta", "important"), false).size(), 2);
+		assertTrue(smallIndex.findMatches(yes, Arrays.asList("unknown"), false).isEmpty());
+	}
+
+	@Test
+	public void requiredLiteralsTest() throws Exception {
+		assertEquals(FAQIndex.requiredLiterals("join the team"), Arrays.asList("join the team"));
+		assertEquals(FAQIndex.requiredLiterals("pass.*reset"), Arrays.asList("pass", "reset"));
+		assertEquals(FAQIndex.requiredLiterals("e-mails?"), Arrays.asList("e-mail"));
+		assertEquals(FAQIndex.requiredLiterals("CV+ here"), Arrays.asList("CV", " here"));
+		assertNull(FAQIndex.requiredLiterals("a|b"));
+		assertNull(FAQIndex.requiredLiterals("[xyz]"));
+	}
+
+	@Test
+	public void tokenizeTest() throws Exception {
+		assertEquals(TextAnalyzer.tokenize("How do I send my CV by e-mail ?"), Arrays.asList("send", "cv", "mail"));
+		assertEquals(TextAnalyzer.tokenize("Refund, REFUND and refunds"), Arrays.asList("refund", "refund", "refunds"));
+		assertTrue(TextAnalyzer.tokenize("How is it ? !").isEmpty());
+	}
+
+	@Test
+	public void searchRankingTest() throws Exception {
+		FAQIndex smallIndex = new FAQIndex();
+		List<String> jsons = new ArrayList<>();
+		String[][] faqs = {
+			{"How do I get a refund ?", "Ask billing"}, // 0 : "refund" in a short question
+			{"Where is my order ?", "Tracking is on the delivery page, a refund is possible if lost"}, // 1 : "refund" in a long answer
+			{"Can I pay by invoice ?", "Yes, billing sends an invoice"}, // 2 : "invoice" twice, "billing"
+			{"How do I get a refund ?", "Ask billing"}, // 3 : same as 0
+			{"How do I join the team ?", "Send a CV"}, // 4 : nothing in common with the queries
+		};
+		for (String[] faq : faqs) {
+			Document document = new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, faq[0]).append(DatabaseAccessor.FAQ_FIELD_ANSWER, faq[1]);
+			smallIndex.add(document);
+			jsons.add(document.toJson());
+		}
+
+		// Question counts more than answer, same scores keep insertion order
+		assertEquals(smallIndex.search("refund", 10), Arrays.asList(jsons.get(0), jsons.get(3), jsons.get(1)));
+		assertEquals(smallIndex.search("refund", 2), Arrays.asList(jsons.get(0), jsons.get(3)));
+		// "invoice" is rarer than "billing", and found in both fields
+		assertEquals(smallIndex.search("billing invoice", 10).get(0), jsons.get(2));
+		// Case, punctuation, stop-words and repetitions don't matter
+		assertEquals(smallIndex.search("How do I get a REFUND, refund ?!", 10), smallIndex.search("refund", 10));
+		assertTrue(smallIndex.search("how is the", 10).isEmpty());
+		assertTrue(smallIndex.search("unknown", 10).isEmpty());
+	}
+
+	@Test
+	public void searchTopKTest() throws Exception {
+		String[] queries = {"join team", "password reset", "refund order delivery", "billing invoice account page", "CV"};
+		for (String query : queries) {
+			List<String> all = index.search(query, GENERATED_FAQ_COUNT);
+			assertEquals(query, index.search(query, 10), all.subList(0, 10)); // The heap keeps exactly the 10 best
+			assertEquals(query, index.search(query, 10), index.search(query, 10)); // Deterministic
+		}
+	}
+
+	@Test
+	public void suggestTest() throws Exception {
+		FAQIndex smallIndex = new FAQIndex();
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "How do I join the team ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Send a CV").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("recruitement", "team")));
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "How do I joined events ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Register").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("R\u00e9union", "team")));
+		smallIndex.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Is there a refund ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("recruitement")));
+
+		assertEquals(SuggestionIndex.normalize("  R\u00e9union, l'\u00e9quipe ?"), "reunion l equipe");
+		// Most popular first, then shortest : "team" and "recruitement" are tags of 2 FAQ
+		assertEquals(suggestionTexts(smallIndex.suggest("re", 10)), Arrays.asList("recruitement", "R\u00e9union"));
+		assertEquals(suggestionTexts(smallIndex.suggest("T", 10)), Arrays.asList("team"));
+		assertEquals(suggestionTexts(smallIndex.suggest("how do i JOIN", 10)), Arrays.asList("How do I join the team ?", "How do I joined events ?"));
+		// A finished word doesn't complete longer ones
+		assertEquals(suggestionTexts(smallIndex.suggest("how do i join ", 10)), Arrays.asList("How do I join the team ?"));
+		assertEquals(suggestionTexts(smallIndex.suggest("r\u00e9", 1)), Arrays.asList("recruitement"));
+		assertEquals(smallIndex.suggest("team", 1), Arrays.asList(new Document("suggestion", "team").append("type", "tag").append("popularity", 2).toJson()));
+		assertTrue(smallIndex.suggest("?", 10).isEmpty());
+		assertTrue(smallIndex.suggest("unknown", 10).isEmpty());
+	}
+
+	@Test
+	public void suggestAcrossMergesTest() throws Exception {
+		// Enough tags to go through several merges of the recent entries, whose popularities keep changing
+		SuggestionIndex suggestions = new SuggestionIndex();
+		Map<String, Integer> expected = new HashMap<>();
+		Random random = new Random(42);
+		for (int i = 0 ; i < 20_000 ; i++) {
+			String tag = "tag" + random.nextInt(3000);
+			suggestions.add(tag, SuggestionIndex.TYPE_TAG);
+			expected.merge(tag, 1, Integer::sum);
+		}
+		for (String prefix : Arrays.asList("tag", "tag1", "tag25", "tag299", "tag2999")) {
+			List<String> best = new ArrayList<>();
+			expected.entrySet().stream().filter(entry -> entry.getKey().startsWith(prefix))
+				.sorted((first, second) -> !first.getValue().equals(second.getValue()) ? second.getValue() - first.getValue()
+					: first.getKey().length() != second.getKey().length() ? first.getKey().length() - second.getKey().length() : first.getKey().compareTo(second.getKey()))
+				.limit(10).forEach(entry -> best.add(entry.getKey() + "=" + entry.getValue()));
+			List<String> found = new ArrayList<>();
+			for (SuggestionIndex.Suggestion suggestion : suggestions.suggest(prefix, 10)) {
+				found.add(suggestion.text + "=" + suggestion.popularity);
+			}
+			assertEquals(prefix, best, found);
+		}
+	}
+
+	@Test
+	public void rebuildTest() throws Exception {
+		FAQIndex smallIndex = new FAQIndex();
+		Document former = new Document("_id", new ObjectId()).append(DatabaseAccessor.FAQ_FIELD_QUESTION, "Former question ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes");
+		Document reloaded = new Document("_id", new ObjectId()).append(DatabaseAccessor.FAQ_FIELD_QUESTION, "Reloaded question ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes");
+		Document concurrent = new Document("_id", new ObjectId()).append(DatabaseAccessor.FAQ_FIELD_QUESTION, "Concurrent question ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes");
+		smallIndex.add(former);
+
+		smallIndex.rebuild(indexer -> {
+			indexer.accept(reloaded);
+			// Not replaced yet : still answered from the former documents, whole
+			assertEquals(smallIndex.findMatches(Pattern.compile("^.*question.*$")), Arrays.asList(former.toJson()));
+			assertEquals(smallIndex.suggest("former", 5).size(), 1);
+			smallIndex.add(concurrent); // Missed by the load
+		});
+		assertEquals(smallIndex.findMatches(Pattern.compile("^.*question.*$")), Arrays.asList(reloaded.toJson(), concurrent.toJson()));
+		assertTrue(smallIndex.suggest("former", 5).isEmpty());
+		assertFalse(smallIndex.add(concurrent));
+	}
+
+	@Test
+	public void suggestManyFAQTest() throws Exception {
+		for (String prefix : Arrays.asList("h", "how do", "join the team", "password reset it")) {
+			List<String> suggestions = index.suggest(prefix, 5);
+			assertTrue(prefix, !suggestions.isEmpty() && suggestions.size() <= 5);
+		}
+	}
+
+	private static List<String> suggestionTexts(List<String> jsons) {
+		List<String> res = new ArrayList<>();
+		for (String json : jsons) {
+			res.add(Document.parse(json).getString("suggestion"));
+		}
+		return res;
+	}
+
+	/** What the database did before the index : run the regex on both fields of every document */
+	private static List<String> findByScanning(Pattern pattern) {
+		return findByScanning(pattern, documents);
+	}
+
+	private static List<String> findByScanning(Pattern pattern, List<Document> scanned) {
+		List<String> res = new ArrayList<>();
+		for (Document document : scanned) {
+			if (pattern.matcher(document.getString(DatabaseAccessor.FAQ_FIELD_QUESTION)).find()
+				|| pattern.matcher(document.getString(DatabaseAccessor.FAQ_FIELD_ANSWER)).find()) {
+				res.add(document.toJson());
+			}
+		}
+		return res;
+	}
+
+	private static String generateSentence(Random random, int wordCount) {
+		StringBuilder res = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for (int i = 1 ; i < wordCount ; i++) {
+			res.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return res.toString();
+	}
+}
@@ -0,0 +1,137 @@
+package com.netheos.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the index of a node follows the insertions of the other nodes, through {@link InProcessChangeSource}. Needs no database.
+ */
+public class FAQReplicaTest {
+	private static final long MAX_STALENESS_MILLIS = 10_000;
+
+	private final AtomicLong now = new AtomicLong(1_000_000);
+	private final AtomicInteger invalidations = new AtomicInteger();
+	private InProcessChangeSource source;
+	private FAQIndex index;
+	private FAQReplica replica;
+
+	@Before
+	public void setUp() {
+		source = new InProcessChangeSource();
+		source.insert(faq("Existing before startup ?"));
+		index = new FAQIndex();
+		replica = new FAQReplica(index, invalidations::incrementAndGet, source, source::loadAll, MAX_STALENESS_MILLIS, now::get);
+		replica.start();
+	}
+
+	@After
+	public void tearDown() {
+		replica.close();
+	}
+
+	@Test
+	public void startupTest() throws Exception {
+		assertEquals(index.size(), 1);
+		assertEquals(replica.getStalenessMillis(), 0); // Everything committed before the load started is known
+		now.addAndGet(500);
+		assertEquals(replica.getStalenessMillis(), 500);
+	}
+
+	@Test
+	public void insertTest() throws Exception {
+		invalidations.set(0);
+		source.insert(faq("Inserted by another node ?"));
+		assertEquals(index.findMatches(Pattern.compile("^.*another node.*$")).size(), 1);
+		assertEquals(replica.getAppliedInserts(), 1);
+		assertEquals(invalidations.get(), 1);
+
+		// Inserted by this node, then delivered by the source : indexed once, nothing to invalidate again
+		Document local = faq("Inserted by this node ?");
+		index.add(local);
+		source.insert(local);
+		assertEquals(index.size(), 3);
+		assertEquals(replica.getAppliedInserts(), 1);
+		assertEquals(invalidations.get(), 1);
+	}
+
+	@Test
+	public void stalenessTest() throws Exception {
+		now.addAndGet(2000);
+		source.caughtUp(now.get() - 100);
+		assertEquals(replica.getStalenessMillis(), 100);
+
+		// The source stays silent too long : the collection is read again
+		source.setPaused(true);
+		source.insert(faq("Never delivered ?"));
+		now.addAndGet(MAX_STALENESS_MILLIS);
+		replica.checkStaleness();
+		assertEquals(index.size(), 2);
+		assertEquals(replica.getStalenessMillis(), 0);
+		assertTrue(replica.getReloads() >= 2); // Startup, then this one (the replica thread may have done it too)
+	}
+
+	@Test
+	public void lossTest() throws Exception {
+		source.setPaused(true);
+		source.insert(faq("Lost ?"));
+		now.addAndGet(1000);
+		source.lose();
+		source.caughtUp(now.get()); // Ignored until reloaded, as "Lost ?" may still be missing
+		assertEquals(replica.getLosses(), 1);
+
+		long deadline = System.currentTimeMillis() + 10_000;
+		while (replica.getReloads() < 2 && System.currentTimeMillis() < deadline) { // Reloaded by the replica thread
+			Thread.sleep(10);
+		}
+		assertEquals(replica.getReloads(), 2);
+		assertEquals(index.size(), 2);
+		assertEquals(replica.getStalenessMillis(), 0);
+	}
+
+	@Test
+	public void startAgainTest() throws Exception {
+		InProcessChangeSource otherSource = new InProcessChangeSource();
+		otherSource.insert(faq("Existing before startup ?"));
+		AtomicInteger loads = new AtomicInteger();
+		FAQIndex otherIndex = new FAQIndex();
+		FAQReplica otherReplica = new FAQReplica(otherIndex, () -> { }, otherSource, consumer -> {
+			if (loads.incrementAndGet() == 1) {
+				throw new IllegalStateException("Database unreachable");
+			}
+			otherSource.loadAll(consumer);
+		}, MAX_STALENESS_MILLIS, now::get);
+		try {
+			try {
+				otherReplica.start();
+				fail();
+			} catch (IllegalStateException e) {
+				// Expected, started again below
+			}
+			otherReplica.start();
+			assertEquals(otherIndex.size(), 1);
+
+			assertEquals(otherReplica.getStalenessMillis(), 0);
+
+			otherSource.insert(faq("Inserted after the second start ?"));
+			assertEquals(otherIndex.size(), 2);
+		} finally {
+			otherReplica.close();
+		}
+	}
+
+	private static Document faq(String question) {
+		return new Document("_id", new ObjectId())
+			.append(DatabaseAccessor.FAQ_FIELD_QUESTION, question)
+			.append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes");
+	}
+}
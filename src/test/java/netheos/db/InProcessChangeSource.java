@@ -0,0 +1,62 @@
+package com.netheos.db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.bson.Document;
+
+/**
+ * Stand-in for the FAQ collection and its change stream, for tests needing neither mongo nor a replica set. <BR>
+ * Insertions are delivered straight away, on the thread inserting, unless the source is paused : they are then only stored, as if the stream were lagging or broken.
+ */
+class InProcessChangeSource implements FAQChangeSource {
+	/** The "collection" */
+	private final List<Document> documents = Collections.synchronizedList(new ArrayList<>());
+	private volatile Listener listener;
+	private volatile boolean paused = false;
+
+	@Override
+	public void start(Listener listener) {
+		this.listener = listener;
+	}
+
+	@Override
+	public void close() {
+		listener = null;
+	}
+
+	/** Inserts in the collection, and delivers the insertion unless paused */
+	void insert(Document document) {
+		documents.add(document);
+		Listener current = listener;
+		if (current != null && !paused) {
+			current.onInsert(document);
+		}
+	}
+
+	/** Says everything inserted so far was delivered */
+	void caughtUp(long timeMillis) {
+		listener.onCaughtUp(timeMillis);
+	}
+
+	void setPaused(boolean paused) {
+		this.paused = paused;
+	}
+
+	/** Resumes after losing whatever was inserted while paused */
+	void lose() {
+		paused = false;
+		listener.onLost(new IllegalStateException("Lost on purpose"));
+	}
+
+	/** Reads the collection, as {@link FAQReplica.Loader} */
+	void loadAll(Consumer<Document> consumer) {
+		List<Document> copy;
+		synchronized (documents) {
+			copy = new ArrayList<>(documents);
+		}
+		copy.forEach(consumer);
+	}
+}
@@ -0,0 +1,126 @@
+package com.netheos.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks an index read back from its snapshot answers exactly as the original, and that unusable snapshots are refused. Needs no database.
+ */
+public class IndexSnapshotTest {
+	private static final CollectionVersion VERSION = new CollectionVersion(new ObjectId().toHexString(), 12, System.currentTimeMillis());
+
+	private FAQIndex index;
+	private Path path;
+
+	@Before
+	public void setUp() throws Exception {
+		index = new FAQIndex();
+		Random random = new Random(42);
+		String[] words = {"join", "the", "team", "password", "reset", "refund", "order", "d\u00e9veloppeur", "e-mail", "CV"};
+		for (int i = 0 ; i < 2000 ; i++) {
+			StringBuilder question = new StringBuilder();
+			StringBuilder answer = new StringBuilder();
+			for (int j = 0 ; j < 5 ; j++) {
+				question.append(words[random.nextInt(words.length)]).append(' ');
+				answer.append(words[random.nextInt(words.length)]).append(' ').append(words[random.nextInt(words.length)]).append(' ');
+			}
+			Object id = i % 100 == 0 ? "custom-" + i : new ObjectId(); // Identifiers are usually ObjectId, but not always
+			index.add(new Document(DatabaseAccessor.FIELD_ID, id).append(DatabaseAccessor.FAQ_FIELD_QUESTION, question + "?")
+				.append(DatabaseAccessor.FAQ_FIELD_ANSWER, answer.toString()).append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("tag" + (i % 7), "all")));
+		}
+		index.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, "Without identifier ?").append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Yes"));
+		path = File.createTempFile("faq", ".snapshot").toPath();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		Files.deleteIfExists(path);
+	}
+
+	@Test
+	public void sameResultsTest() throws Exception {
+		IndexSnapshot.write(index, VERSION, path);
+		FAQIndex loaded = new FAQIndex();
+		CollectionVersion version = IndexSnapshot.load(path, loaded, new CollectionVersion(VERSION.getEpoch(), 15, 0));
+		assertEquals(version.getNumber(), 12);
+
+		assertEquals(loaded.size(), index.size());
+		assertEquals(loaded.getAll(), index.getAll());
+		assertEquals(loaded.getTagCounts(), index.getTagCounts());
+		assertEquals(loaded.findByTags(Arrays.asList("tag3", "all"), true), index.findByTags(Arrays.asList("tag3", "all"), true));
+		for (String patternString : new String[] {"join the team", "pass.*reset", "d\u00e9velop", "CV ?$", "nothing"}) {
+			Pattern pattern = Pattern.compile("^.*" + patternString + ".*$");
+			assertEquals(patternString, loaded.findMatches(pattern), index.findMatches(pattern));
+		}
+		assertEquals(loaded.search("refund order password", 20), index.search("refund order password", 20));
+		assertEquals(loaded.suggest("join", 5), index.suggest("join", 5));
+		assertEquals(loaded.suggest("tag", 10), index.suggest("tag", 10));
+
+		// Known identifiers are still recognized, and the index can still grow
+		Document first = Document.parse(index.getAll().get(1));
+		assertTrue(loaded.contains(first.get(DatabaseAccessor.FIELD_ID)));
+		assertTrue(loaded.contains("custom-0"));
+		assertFalse(loaded.add(first));
+		assertTrue(loaded.add(new Document(DatabaseAccessor.FIELD_ID, new ObjectId()).append(DatabaseAccessor.FAQ_FIELD_QUESTION, "New team ?").append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("all"))));
+		assertEquals(loaded.getTagCounts().get("all").intValue(), 2001);
+		assertEquals(loaded.findMatches(Pattern.compile("^.*New team.*$")).size(), 1);
+	}
+
+	@Test
+	public void offHeapPayloadsTest() throws Exception {
+		IndexSnapshot.write(index, VERSION, path);
+		FAQIndex offHeap = new FAQIndex(true);
+		IndexSnapshot.load(path, offHeap, VERSION);
+		assertEquals(offHeap.getAll(), index.getAll());
+		assertEquals(offHeap.getAllPayloads().size(), index.size());
+
+		// Same format whichever way the json is kept
+		IndexSnapshot.write(offHeap, VERSION, path);
+		FAQIndex onHeap = new FAQIndex();
+		IndexSnapshot.load(path, onHeap, VERSION);
+		assertEquals(onHeap.getAll(), index.getAll());
+		Pattern pattern = Pattern.compile("^.*d\u00e9velop.*$");
+		assertEquals(onHeap.findMatches(pattern), index.findMatches(pattern));
+	}
+
+	@Test
+	public void refusedSnapshotsTest() throws Exception {
+		FAQIndex loaded = new FAQIndex();
+		assertNull(IndexSnapshot.load(path.resolveSibling("missing.snapshot"), loaded, VERSION));
+
+		IndexSnapshot.write(index, VERSION, path);
+		assertNull(IndexSnapshot.load(path, loaded, new CollectionVersion(new ObjectId().toHexString(), 12, 0))); // Collection created again
+		assertNull(IndexSnapshot.load(path, loaded, new CollectionVersion(VERSION.getEpoch(), 11, 0))); // Newer than the collection
+		assertEquals(loaded.size(), 0);
+
+		byte[] bytes = Files.readAllBytes(path);
+		bytes[bytes.length / 2] ^= 1;
+		Files.write(path, bytes);
+		assertRefused(loaded);
+
+		Files.write(path, Arrays.copyOf(bytes, bytes.length / 3));
+		assertRefused(loaded);
+	}
+
+	private void assertRefused(FAQIndex loaded) {
+		try {
+			IndexSnapshot.load(path, loaded, VERSION);
+			fail("The snapshot should have been refused");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.netheos.db;
+
+import java.util.*;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.bson.types.ObjectId;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * The json written straight from BSON must be exactly the one of Document.toJson(), as both end up in the same responses and cache.
+ */
+public class JsonEncoderTest {
+
+	@Test
+	public void sameJsonAsDocumentTest() throws Exception {
+		Document document = new Document(DatabaseAccessor.FIELD_ID, new ObjectId())
+			.append(DatabaseAccessor.FAQ_FIELD_QUESTION, "How do I send my \"CV\" ? \u00e9\u4e2d\ud83d\ude00 \\ \n")
+			.append(DatabaseAccessor.FAQ_FIELD_ANSWER, "By e-mail")
+			.append(DatabaseAccessor.FAQ_FIELD_TAGS, Arrays.asList("contact", "team"))
+			.append("count", 3)
+			.append("big", 3_000_000_000L)
+			.append("ratio", 0.5)
+			.append("date", new Date(1_500_000_000_000L))
+			.append("nested", new Document("empty", Collections.emptyList()).append("none", null));
+		RawBsonDocument raw = new RawBsonDocument(document, new DocumentCodec());
+
+		assertEquals(JsonEncoder.toJson(raw), document.toJson());
+		assertEquals(JsonEncoder.toJson(raw), document.toJson()); // Buffer reused
+
+		String withoutId = JsonEncoder.toJsonWithout(raw, DatabaseAccessor.FIELD_ID);
+		document.remove(DatabaseAccessor.FIELD_ID);
+		assertEquals(withoutId, document.toJson());
+	}
+}
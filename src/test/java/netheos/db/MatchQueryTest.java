@@ -0,0 +1,99 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+import org.bson.Document;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks how "get_match" patterns are planned, and that a query can't run longer than its budget. Needs no database.
+ */
+public class MatchQueryTest {
+
+	@Test
+	public void literalTest() throws Exception {
+		assertTrue(MatchQuery.plan("join the team", 0, 0).isLiteral());
+		assertTrue(MatchQuery.plan(".*join the team.*", 0, 0).isLiteral()); // Simplified to "join the team"
+		assertFalse(MatchQuery.plan("pass.*reset", 0, 0).isLiteral());
+		assertFalse(MatchQuery.plan("e-mails?", 0, 0).isLiteral());
+	}
+
+	@Test
+	public void simplifyTest() throws Exception {
+		assertEquals(MatchQuery.simplify(".*.*join.*.*.*team.*"), "join.*team");
+		assertEquals(MatchQuery.simplify(".*"), "");
+		assertEquals(MatchQuery.simplify("a.*?b"), "a.*?b"); // Lazy, kept as is
+		assertEquals(MatchQuery.simplify(".*+a"), ".*+a"); // Possessive : doesn't match the same texts without it
+		assertEquals(MatchQuery.simplify("a\\..*.*"), "a\\..*.*"); // Escapes : kept as is
+	}
+
+	@Test
+	public void sameResultsAsRegexTest() throws Exception {
+		String[] texts = {"How do I join the team ?", "join the team", "Line 1\njoin the team", "join the team\n", "join the team\nLine 2", "Join The Team", ""};
+		String[] patterns = {"join the team", "the", ".*team", "join.*.*team", "^join", "team$", "(join|Join)"};
+		for (String patternString : patterns) {
+			Pattern pattern = Pattern.compile("^.*" + patternString + ".*$");
+			MatchQuery query = MatchQuery.plan(patternString, 0, 0);
+			for (String text : texts) {
+				assertEquals(patternString + " on " + text, pattern.matcher(text).find(), query.matches(text, Long.MAX_VALUE));
+			}
+		}
+	}
+
+	@Test
+	public void refusedPatternsTest() throws Exception {
+		String[] refused = {"(a+)+b", "(a|ab)*c", "((a*)b)+", "(.*a)*", "a.*b.*c.*d.*e"};
+		for (String patternString : refused) {
+			try {
+				MatchQuery.plan(patternString, 200, 3);
+				fail(patternString + " should be refused");
+			} catch (QueryTooExpensiveException e) {
+				// Expected
+			}
+		}
+		try {
+			MatchQuery.plan(String.join("", Collections.nCopies(30, "abcdefgh")), 200, 3);
+			fail("A too long pattern should be refused");
+		} catch (QueryTooExpensiveException e) {
+			// Expected
+		}
+
+		String[] accepted = {"(ab)+", "(a|b)c", "[(a+)]+", "a.*b.*c", ".*a.*b.*c.*d.*", "a*?b+", "(?:ab)?"};
+		for (String patternString : accepted) {
+			MatchQuery.plan(patternString, 200, 3);
+		}
+	}
+
+	@Test
+	public void budgetTest() throws Exception {
+		FAQIndex index = new FAQIndex();
+		String aaa = String.join("", Collections.nCopies(2000, "a"));
+		for (int i = 0 ; i < 20 ; i++) {
+			index.add(new Document(DatabaseAccessor.FAQ_FIELD_QUESTION, aaa + " " + i).append(DatabaseAccessor.FAQ_FIELD_ANSWER, "Answer"));
+		}
+
+		// Accepted by the planner, but tried in n^5 ways on these texts : stopped once past its time
+		MatchQuery polynomial = MatchQuery.plan("a.*a.*a.*b", 200, 3);
+		long start = System.nanoTime();
+		try {
+			index.findMatches(polynomial, null, true, 100, 0);
+			fail("The query should have been stopped");
+		} catch (QueryTooExpensiveException e) {
+			long millis = (System.nanoTime() - start) / 1_000_000;
+			assertTrue("Stopped after " + millis + " ms", millis < 1000);
+		}
+
+		MatchQuery answer = MatchQuery.plan("Answer", 0, 0);
+		assertEquals(index.findMatches(answer, null, true, 0, 20).size(), 20);
+		try {
+			index.findMatches(answer, null, true, 0, 19);
+			fail("The query should have been refused");
+		} catch (QueryTooExpensiveException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,74 @@
+package com.netheos.db;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+
+	@Test
+	public void hitAndMissTest() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 0);
+		assertEquals(cache.get("key", () -> Arrays.asList("loaded")), Arrays.asList("loaded"));
+		assertEquals(cache.get("key", () -> Arrays.asList("loaded again")), Arrays.asList("loaded")); // Loader not called
+		assertEquals(cache.getMisses(), 1);
+		assertEquals(cache.getHits(), 1);
+	}
+
+	@Test
+	public void evictionTest() throws Exception {
+		ResponseCache cache = new ResponseCache(2, 0);
+		cache.get("a", () -> Arrays.asList("a"));
+		cache.get("b", () -> Arrays.asList("b"));
+		cache.get("a", () -> Arrays.asList("a")); // "b" is now the least recently used
+		cache.get("c", () -> Arrays.asList("c"));
+
+		assertEquals(cache.getSize(), 2);
+		assertEquals(cache.getEvictions(), 1);
+		assertNotNull(cache.getIfPresent("a"));
+		assertNull(cache.getIfPresent("b"));
+	}
+
+	@Test
+	public void invalidationTest() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 0);
+		cache.get("key", () -> Arrays.asList("before"));
+		cache.invalidate();
+		assertEquals(cache.get("key", () -> Arrays.asList("after")), Arrays.asList("after"));
+
+		/* A response computed before a write must not be cached after it */
+		long generation = cache.getGeneration();
+		cache.invalidate();
+		cache.put("stale", Arrays.asList("stale"), generation);
+		assertNull(cache.getIfPresent("stale"));
+		assertEquals(cache.getInvalidations(), 2);
+	}
+
+	@Test
+	public void expirationTest() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 1);
+		cache.get("key", () -> Arrays.asList("value"));
+		Thread.sleep(10);
+		assertNull(cache.getIfPresent("key"));
+	}
+
+	@Test
+	public void tooLargeTest() throws Exception {
+		ResponseCache cache = new ResponseCache(10, 0, 2);
+		assertEquals(cache.get("broad", () -> Arrays.asList("a", "b", "c")), Arrays.asList("a", "b", "c"));
+		assertNull(cache.getIfPresent("broad"));
+		assertEquals(cache.getTooLargeResponses(), 1);
+		cache.get("narrow", () -> Arrays.asList("a", "b"));
+		assertNotNull(cache.getIfPresent("narrow"));
+	}
+
+	@Test
+	public void disabledTest() throws Exception {
+		ResponseCache cache = new ResponseCache(0, 0);
+		cache.get("key", () -> Arrays.asList("value"));
+		assertNull(cache.getIfPresent("key"));
+		assertEquals(cache.getSize(), 0);
+	}
+}
@@ -0,0 +1,116 @@
+package com.netheos.db;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that a node only advertises the versions of writes it serves, with 2 nodes sharing a counter in memory. Needs no database.
+ */
+public class VersionTrackerTest {
+	/** Refreshes are called by the tests, never by the tracker's thread */
+	private static final long NEVER = 3_600_000;
+
+	@Test
+	public void ownAndOtherWritesTest() throws Exception {
+		InMemoryCounter counter = new InMemoryCounter();
+		AtomicBoolean firstCaughtUp = new AtomicBoolean(false);
+		VersionTracker first = new VersionTracker(counter, timeMillis -> firstCaughtUp.get(), NEVER, System::currentTimeMillis);
+		VersionTracker second = new VersionTracker(counter, timeMillis -> true, NEVER, System::currentTimeMillis);
+		first.start(initial -> {});
+		second.start(initial -> {});
+		assertEquals(first.get().getNumber(), 0);
+
+		first.written(); // 1
+		assertEquals(first.get().getNumber(), 1); // Its own write, right after the version it had
+
+		second.written(); // 2 : the second node still misses 1
+		assertEquals(second.get().getNumber(), 0);
+		first.written(); // 3 : the first node misses 2
+		assertEquals(first.get().getNumber(), 1);
+
+		first.refresh(); // Not caught up yet
+		assertEquals(first.get().getNumber(), 1);
+		firstCaughtUp.set(true);
+		first.refresh();
+		assertEquals(first.get().getNumber(), 3);
+
+		second.refresh();
+		assertEquals(second.get().getNumber(), 3);
+		assertEquals(second.getCatchUps(), 1);
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void unreachableCounterTest() throws Exception {
+		InMemoryCounter counter = new InMemoryCounter();
+		VersionTracker tracker = new VersionTracker(counter, timeMillis -> true, NEVER, System::currentTimeMillis);
+		tracker.start(initial -> {});
+
+		counter.reachable = false;
+		tracker.written();
+		tracker.written();
+		assertEquals(tracker.get().getNumber(), 0);
+		assertEquals(tracker.getPendingIncrements(), 2);
+		tracker.refresh(); // Still unreachable : nothing changes
+		assertEquals(tracker.get().getNumber(), 0);
+
+		counter.reachable = true;
+		tracker.refresh(); // Increased once for both writes
+		assertEquals(tracker.get().getNumber(), 1);
+		assertEquals(tracker.getPendingIncrements(), 0);
+		tracker.close();
+	}
+
+	@Test
+	public void newEpochTest() throws Exception {
+		InMemoryCounter counter = new InMemoryCounter();
+		VersionTracker tracker = new VersionTracker(counter, timeMillis -> true, NEVER, System::currentTimeMillis);
+		tracker.start(initial -> {});
+		tracker.written();
+		tracker.written();
+		String firstEpoch = tracker.get().getEpoch();
+
+		counter.recreate(); // Numbers start over, but the versions differ
+		tracker.refresh();
+		assertNotEquals(tracker.get().getEpoch(), firstEpoch);
+		assertEquals(tracker.get().getNumber(), 0);
+		tracker.written();
+		assertEquals(tracker.get().getNumber(), 1);
+		tracker.close();
+	}
+
+	/** Stand-in for the counter kept in the database */
+	private static class InMemoryCounter implements VersionTracker.Counter {
+		private final AtomicLong number = new AtomicLong();
+		private volatile String epoch = "epoch1";
+		private volatile boolean reachable = true;
+
+		@Override
+		public CollectionVersion read() {
+			check();
+			return new CollectionVersion(epoch, number.get(), System.currentTimeMillis());
+		}
+
+		@Override
+		public CollectionVersion increment() {
+			check();
+			return new CollectionVersion(epoch, number.incrementAndGet(), System.currentTimeMillis());
+		}
+
+		private void recreate() {
+			epoch = "epoch2";
+			number.set(0);
+		}
+
+		private void check() {
+			if (!reachable) {
+				throw new IllegalStateException("Unreachable");
+			}
+		}
+	}
+}
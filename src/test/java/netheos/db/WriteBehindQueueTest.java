@@ -0,0 +1,161 @@
+package com.netheos.db;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bson.Document;
+
+import com.mongodb.MongoException;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the batching, durability and backpressure of the write-behind queue, with a fake database. Needs no database.
+ */
+public class WriteBehindQueueTest {
+	/** Batches "written", in order */
+	private final List<List<Document>> batches = new CopyOnWriteArrayList<>();
+	private final AtomicInteger flushes = new AtomicInteger();
+
+	@Test
+	public void batchTest() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(this::record, flushes::incrementAndGet, WriteBehindQueue.Durability.ENQUEUE, 100, 10, 200, 1000, 5000);
+		for (int i = 0 ; i < 25 ; i++) {
+			queue.add(new Document("i", i));
+		}
+		queue.close(5000); // Drains what is queued
+		int total = 0;
+		for (List<Document> batch : batches) {
+			assertTrue(batch.size() <= 10);
+			total += batch.size();
+		}
+		assertEquals(total, 25);
+		assertEquals(batches.get(0).get(0).getInteger("i"), Integer.valueOf(0)); // In order
+		assertTrue(batches.size() <= 4); // Grouped : 25 FAQ added faster than the delay give 3 batches, maybe 4
+		assertEquals(flushes.get(), batches.size());
+		assertEquals(queue.getFlushedDocuments(), 25);
+	}
+
+	@Test
+	public void flushDurabilityTest() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(batch -> {
+			record(batch);
+			return batch.get(0).containsKey("invalid") ? Collections.singleton(0) : Collections.emptySet();
+		}, flushes::incrementAndGet, WriteBehindQueue.Durability.FLUSH, 100, 10, 5, 1000, 5000);
+
+		queue.add(new Document("i", 0));
+		assertEquals(batches.size(), 1); // Already written when add returns
+		try {
+			queue.add(new Document("invalid", true));
+			fail("A refused FAQ must be reported");
+		} catch (MongoException e) {
+			// Expected
+		}
+		assertEquals(queue.getFailedDocuments(), 1);
+		queue.close(5000);
+	}
+
+	@Test
+	public void retryTest() throws Exception {
+		AtomicInteger attempts = new AtomicInteger();
+		WriteBehindQueue queue = new WriteBehindQueue(batch -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new MongoException("Unreachable");
+			}
+			return record(batch);
+		}, flushes::incrementAndGet, WriteBehindQueue.Durability.FLUSH, 100, 10, 5, 1000, 5000);
+		queue.add(new Document("i", 0));
+		assertEquals(attempts.get(), 2);
+		assertEquals(batches.size(), 1);
+		queue.close(5000);
+	}
+
+	@Test
+	public void backpressureTest() throws Exception {
+		CountDownLatch databaseBlocked = new CountDownLatch(1);
+		WriteBehindQueue queue = new WriteBehindQueue(batch -> {
+			try {
+				databaseBlocked.await();
+			} catch (InterruptedException e) {
+				throw new MongoException("Interrupted");
+			}
+			return record(batch);
+		}, flushes::incrementAndGet, WriteBehindQueue.Durability.ENQUEUE, 2, 1, 0, 50, 5000);
+
+		queue.add(new Document("i", 0)); // Taken by the flusher, which then blocks
+		Thread.sleep(200);
+		queue.add(new Document("i", 1));
+		queue.add(new Document("i", 2)); // Queue full
+		try {
+			queue.add(new Document("i", 3));
+			fail("A full queue must refuse new FAQ");
+		} catch (RejectedExecutionException e) {
+			// Expected
+		}
+		assertEquals(queue.getRejections(), 1);
+		assertTrue(queue.hasUnwritten()); // Queued, or being written
+
+		databaseBlocked.countDown();
+		queue.close(5000);
+		assertEquals(queue.getFlushedDocuments(), 3);
+		assertEquals(queue.getQueued(), 0);
+		assertFalse(queue.hasUnwritten());
+	}
+
+	@Test
+	public void flushTimeoutTest() throws Exception {
+		CountDownLatch databaseBlocked = new CountDownLatch(1);
+		WriteBehindQueue queue = new WriteBehindQueue(batch -> {
+			try {
+				databaseBlocked.await();
+			} catch (InterruptedException e) {
+				throw new MongoException("Interrupted");
+			}
+			return record(batch);
+		}, flushes::incrementAndGet, WriteBehindQueue.Durability.FLUSH, 100, 10, 0, 1000, 200);
+		long start = System.nanoTime();
+		try {
+			queue.add(new Document("i", 0));
+			fail("An admin must not wait longer than the flush timeout");
+		} catch (MongoException e) {
+			// Expected
+		}
+		assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+		databaseBlocked.countDown();
+		queue.close(5000);
+	}
+
+	@Test
+	public void closeFailsPendingTest() throws Exception {
+		WriteBehindQueue queue = new WriteBehindQueue(batch -> {
+			throw new MongoException("Unreachable"); // Retried after a sleep, interrupted by close
+		}, flushes::incrementAndGet, WriteBehindQueue.Durability.FLUSH, 100, 10, 0, 1000, 60_000);
+		ExecutorService admin = Executors.newSingleThreadExecutor();
+		Future<?> adding = admin.submit(() -> queue.add(new Document("i", 0)));
+		admin.shutdown();
+		Thread.sleep(100);
+		queue.close(10);
+		try {
+			adding.get(5, TimeUnit.SECONDS);
+			fail("The FAQ was never written");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof MongoException);
+		}
+		assertEquals(queue.getFailedDocuments(), 1);
+		assertFalse(queue.hasUnwritten());
+		try {
+			queue.add(new Document("i", 1));
+			fail("A closed queue must refuse new FAQ");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	private Set<Integer> record(List<Document> batch) {
+		batches.add(new ArrayList<>(batch));
+		return Collections.emptySet();
+	}
+}
@@ -0,0 +1,52 @@
+package com.netheos.monitoring;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void emptyTest() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(histogram.getCount(), 0);
+		assertEquals(histogram.getPercentile(99), 0);
+		assertEquals(histogram.getMean(), 0, 0);
+	}
+
+	@Test
+	public void percentilesTest() throws Exception {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1 ; i <= 10_000 ; i++) {
+			histogram.record(i);
+		}
+		assertEquals(histogram.getCount(), 10_000);
+		assertEquals(histogram.getMax(), 10_000);
+		assertEquals(histogram.getMean(), 5000.5, 0.001);
+		assertWithinPrecision(histogram.getPercentile(50), 5000);
+		assertWithinPrecision(histogram.getPercentile(90), 9000);
+		assertWithinPrecision(histogram.getPercentile(99), 9900);
+		assertEquals(histogram.getPercentile(100), 10_000);
+	}
+
+	@Test
+	public void bucketsTest() throws Exception {
+		/* Every value is in a bucket whose highest value is at most about 6% above it, and buckets follow each other */
+		long previousHighest = -1;
+		for (int bucket = 0 ; bucket < 500 ; bucket++) {
+			long highest = LatencyHistogram.getBucketHighestValue(bucket);
+			assertEquals(LatencyHistogram.getBucket(highest), bucket);
+			assertEquals(LatencyHistogram.getBucket(previousHighest + 1), bucket);
+			assertTrue(highest <= (previousHighest + 1) * 1.07 + 1);
+			previousHighest = highest;
+		}
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(Long.MAX_VALUE); // Way above the highest bucket, must not fail
+		histogram.record(-5);
+		assertEquals(histogram.getCount(), 2);
+	}
+
+	private static void assertWithinPrecision(long actual, long expected) {
+		assertTrue("Expected about " + expected + ", found " + actual, Math.abs(actual - expected) <= expected * 0.07);
+	}
+}
@@ -0,0 +1,22 @@
+package com.netheos.servlets;
+
+import org.junit.Test;
+
+import com.netheos.db.CollectionVersion;
+
+import static org.junit.Assert.*;
+
+public class ConditionalResponsesTest {
+
+	@Test
+	public void matchesETagTest() throws Exception {
+		String eTag = new CollectionVersion("5f1e", 42, 0).toETag("json");
+		assertEquals(eTag, "W/\"5f1e-42-json\"");
+		assertTrue(ConditionalResponses.matchesETag(eTag, eTag));
+		assertTrue(ConditionalResponses.matchesETag("\"5f1e-42-json\"", eTag)); // Weak comparison
+		assertTrue(ConditionalResponses.matchesETag("W/\"other\", W/\"5f1e-42-json\"", eTag));
+		assertTrue(ConditionalResponses.matchesETag("*", eTag));
+		assertFalse(ConditionalResponses.matchesETag("W/\"5f1e-41-json\"", eTag));
+		assertFalse(ConditionalResponses.matchesETag("W/\"5f1e-42-html\"", eTag));
+	}
+}
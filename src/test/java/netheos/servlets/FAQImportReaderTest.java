@@ -0,0 +1,69 @@
+package com.netheos.servlets;
+
+import java.io.StringReader;
+import java.util.*;
+
+import com.netheos.db.FAQEntry;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FAQImportReaderTest {
+
+	@Test
+	public void jsonLinesTest() throws Exception {
+		FAQImportReader reader = new FAQImportReader(new StringReader(
+			"{\"question\": \"How do I join ?\", \"answer\": \"Send a CV\", \"tags\": [\"Contact\", \"bad tag\"]}\n"
+			+ "\n"
+			+ "not json\n"
+			+ "{\"question\": \"No tags ?\", \"answer\": \"{$where: 1}\"}\n"), FAQServlet.IMPORT_FORMAT_JSON_LINES);
+
+		FAQEntry faq = reader.next();
+		assertEquals(faq.getQuestion(), "How do I join ?");
+		assertEquals(faq.getAnswer(), "Send a CV");
+		assertEquals(faq.getTags(), Arrays.asList("contact")); // Lowered, and bad tag filtered out
+
+		try {
+			reader.next();
+			fail("Invalid line should be reported");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage().matches(".*Line 3.*"));
+		}
+
+		faq = reader.next();
+		assertEquals(faq.getAnswer(), "where: 1"); // Sanitized like a single insertion
+		assertTrue(faq.getTags().isEmpty());
+		assertNull(reader.next());
+	}
+
+	@Test
+	public void csvTest() throws Exception {
+		FAQImportReader reader = new FAQImportReader(new StringReader(
+			"question,answer,tags\n"
+			+ "\"Where, exactly ?\",\"On the \"\"Contact\"\" page\",contact;meta\n"
+			+ "Only a question\n"
+			+ "Question,Answer\n"), FAQServlet.IMPORT_FORMAT_CSV);
+
+		FAQEntry faq = reader.next();
+		assertEquals(faq.getQuestion(), "Where, exactly ?");
+		assertEquals(faq.getAnswer(), "On the Contact page"); // Double quotes are removed by sanitization
+		assertEquals(faq.getTags(), Arrays.asList("contact", "meta"));
+
+		try {
+			reader.next();
+			fail("Line without answer should be reported");
+		} catch (IllegalArgumentException e) {
+			assertEquals(reader.getLineNumber(), 3);
+		}
+
+		faq = reader.next();
+		assertEquals(faq.getQuestion(), "Question");
+		assertNull(reader.next());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownFormatTest() throws Exception {
+		new FAQImportReader(new StringReader(""), "xml");
+	}
+}
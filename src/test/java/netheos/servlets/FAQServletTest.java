@@ -0,0 +1,216 @@
+package com.netheos.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.netheos.db.AbstractFAQStore;
+import com.netheos.db.FAQStores;
+
+import static org.junit.Assert.*;
+
+/**
+ * Requests played against the servlet itself, on an {@link FAQStores#STORE_TYPE_EMBEDDED embedded store} : no container, no database. <BR>
+ * Requests and responses are proxies only knowing what the servlet uses, to avoid depending on a mock library.
+ */
+public class FAQServletTest {
+	private static File storeFile;
+
+	@BeforeClass
+	public static void createStore() throws Exception {
+		storeFile = File.createTempFile("faq-servlet-test", ".log");
+		System.setProperty(FAQStores.STORE_TYPE_SETTING, FAQStores.STORE_TYPE_EMBEDDED);
+		System.setProperty(FAQStores.EMBEDDED_PATH_SETTING, storeFile.getPath());
+		String aaa = String.join("", Collections.nCopies(2000, "a"));
+		for (int i = 0 ; i < 20 ; i++) {
+			FAQStores.getInstance().insertNewFAQ(aaa + " " + i, "Answer", Collections.singletonList("servlet"));
+		}
+	}
+
+	@AfterClass
+	public static void deleteStore() {
+		System.clearProperty(FAQStores.STORE_TYPE_SETTING);
+		System.clearProperty(FAQStores.EMBEDDED_PATH_SETTING);
+		storeFile.delete();
+	}
+
+	@Test
+	public void timedOutMatchHasNoETagTest() throws Exception {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(FAQServlet.PARAMETER_STRING_REQUEST_TYPE, FAQServlet.REQUEST_TYPE_GET_CORRESPONDING_FAQ);
+		parameters.put(FAQServlet.PARAMETER_STRING_FORMAT, FAQServlet.JSON_API_FORMAT);
+
+		// Accepted by the planner, but tried in n^5 ways on these FAQ : stopped once past its time, see MatchQueryTest
+		parameters.put(FAQServlet.PARAMETER_STRING_MATCH, "a.*a.*a.*b");
+		FakeResponse timedOut = new FakeResponse();
+		System.setProperty(AbstractFAQStore.QUERY_MAX_TIME_SETTING, "10");
+		try {
+			new FAQServlet().doGet(fakeRequest(parameters, Collections.emptyMap()), timedOut.proxy);
+		} finally {
+			System.clearProperty(AbstractFAQStore.QUERY_MAX_TIME_SETTING);
+		}
+		assertTrue(timedOut.getBody(), timedOut.getBody().contains("Query too expensive"));
+		assertNull(timedOut.headers.get("ETag"));
+		assertNull(timedOut.headers.get("Last-Modified"));
+
+		parameters.put(FAQServlet.PARAMETER_STRING_MATCH, "Answer");
+		FakeResponse answered = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.emptyMap()), answered.proxy);
+		assertTrue(answered.getBody(), answered.getBody().startsWith("["));
+		assertNotNull(answered.headers.get("ETag"));
+	}
+
+	@Test
+	public void onlyETagIsComparedTest() throws Exception {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(FAQServlet.PARAMETER_STRING_REQUEST_TYPE, FAQServlet.REQUEST_TYPE_GET_BY_TAGS);
+		parameters.put(FAQServlet.PARAMETER_STRING_TAGS, "servlet");
+		parameters.put(FAQServlet.PARAMETER_STRING_FORMAT, FAQServlet.JSON_API_FORMAT);
+		FakeResponse first = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.emptyMap()), first.proxy);
+		String eTag = first.headers.get("ETag");
+		assertNotNull(eTag);
+		assertNull(first.headers.get("Last-Modified"));
+
+		FakeResponse revalidated = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.singletonMap("If-None-Match", eTag)), revalidated.proxy);
+		assertEquals(revalidated.status, HttpServletResponse.SC_NOT_MODIFIED);
+
+		// A date can't tell two writes of the same second apart, nor follow the writes of other nodes : never answered with a 304
+		FakeResponse dated = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.singletonMap("If-Modified-Since", "Thu, 01 Jan 2099 00:00:00 GMT")), dated.proxy);
+		assertEquals(dated.status, HttpServletResponse.SC_OK);
+		assertTrue(dated.getBody().startsWith("["));
+	}
+
+	@Test
+	public void matchWithoutValidTagIsRefusedTest() throws Exception {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(FAQServlet.PARAMETER_STRING_REQUEST_TYPE, FAQServlet.REQUEST_TYPE_GET_CORRESPONDING_FAQ);
+		parameters.put(FAQServlet.PARAMETER_STRING_FORMAT, FAQServlet.JSON_API_FORMAT);
+		parameters.put(FAQServlet.PARAMETER_STRING_MATCH, "Answer");
+		for (String tags : new String[] {"", "123"}) { // Would otherwise match no FAQ at all, silently
+			parameters.put(FAQServlet.PARAMETER_STRING_TAGS, tags);
+			FakeResponse response = new FakeResponse();
+			new FAQServlet().doGet(fakeRequest(parameters, Collections.emptyMap()), response.proxy);
+			assertTrue(response.getBody(), response.getBody().contains("at least one tag"));
+		}
+
+		parameters.put(FAQServlet.PARAMETER_STRING_TAGS, "servlet");
+		FakeResponse tagged = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.emptyMap()), tagged.proxy);
+		assertTrue(tagged.getBody(), tagged.getBody().startsWith("["));
+	}
+
+	@Test
+	public void refusedGetAllIsNotModifiedTest() throws Exception {
+		Map<String, String> parameters = new HashMap<>();
+		parameters.put(FAQServlet.PARAMETER_STRING_REQUEST_TYPE, FAQServlet.REQUEST_TYPE_GET_ALL_FAQ);
+		parameters.put(FAQServlet.PARAMETER_STRING_FORMAT, FAQServlet.JSON_API_FORMAT);
+		FakeResponse response = new FakeResponse();
+		new FAQServlet().doGet(fakeRequest(parameters, Collections.singletonMap("If-None-Match", "*")), response.proxy);
+		assertNotEquals(HttpServletResponse.SC_NOT_MODIFIED, response.status);
+		assertNull(response.headers.get("ETag"));
+	}
+
+	/** Request giving its parameters and headers, without any attribute set before the servlet */
+	private static HttpServletRequest fakeRequest(Map<String, String> parameters, Map<String, String> headers) {
+		Map<String, Object> attributes = new HashMap<>();
+		return (HttpServletRequest) Proxy.newProxyInstance(FAQServletTest.class.getClassLoader(), new Class<?>[] {HttpServletRequest.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "getParameterNames":
+					return Collections.enumeration(parameters.keySet());
+				case "getParameter":
+					return parameters.get(args[0]);
+				case "getHeader":
+					return headers.get(args[0]);
+				case "getDateHeader":
+					return headers.containsKey(args[0]) ? Long.MAX_VALUE : -1L; // Any date given is later than every write
+				case "getAttribute":
+					return attributes.get(args[0]);
+				case "setAttribute":
+					attributes.put((String) args[0], args[1]);
+					return null;
+				case "removeAttribute":
+					attributes.remove(args[0]);
+					return null;
+				case "isAsyncSupported":
+					return false;
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+	}
+
+	/** Response keeping its status, headers (a null value removes one) and body */
+	private static class FakeResponse {
+		final Map<String, String> headers = new HashMap<>();
+		final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		int status = HttpServletResponse.SC_OK;
+		final HttpServletResponse proxy = (HttpServletResponse) Proxy.newProxyInstance(FAQServletTest.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class}, (proxy, method, args) -> {
+			switch (method.getName()) {
+				case "setHeader":
+				case "addHeader":
+					if (args[1] == null) {
+						headers.remove(args[0]);
+					} else {
+						headers.put((String) args[0], (String) args[1]);
+					}
+					return null;
+				case "setDateHeader":
+					headers.put((String) args[0], String.valueOf(args[1]));
+					return null;
+				case "getHeader":
+					return headers.get(args[0]);
+				case "setStatus":
+					status = (Integer) args[0];
+					return null;
+				case "getStatus":
+					return status;
+				case "setContentType":
+				case "setCharacterEncoding":
+				case "setContentLength":
+				case "setContentLengthLong":
+					return null;
+				case "isCommitted":
+					return false;
+				case "getOutputStream":
+					return new ServletOutputStream() {
+						@Override
+						public void write(int b) {
+							body.write(b);
+						}
+
+						@Override
+						public boolean isReady() {
+							return true;
+						}
+
+						@Override
+						public void setWriteListener(WriteListener listener) {
+							throw new UnsupportedOperationException();
+						}
+					};
+				default:
+					throw new UnsupportedOperationException(method.getName());
+			}
+		});
+
+		String getBody() {
+			return new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -0,0 +1,38 @@
+package com.netheos.servlets;
+
+import java.util.*;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonResponseWriterTest {
+
+	@Test
+	public void prefersJsonTest() throws Exception {
+		assertTrue(JsonResponseWriter.prefersJson("application/json"));
+		assertTrue(JsonResponseWriter.prefersJson("text/html;q=0.5, application/json"));
+		assertFalse(JsonResponseWriter.prefersJson(null));
+		assertFalse(JsonResponseWriter.prefersJson("*/*")); // curl and most tools, they keep the HTML page
+		assertFalse(JsonResponseWriter.prefersJson("text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")); // A browser
+		assertFalse(JsonResponseWriter.prefersJson("application/json, text/html"));
+		assertFalse(JsonResponseWriter.prefersJson("application/json;q=0"));
+	}
+
+	@Test
+	public void acceptsGzipTest() throws Exception {
+		assertTrue(JsonResponseWriter.acceptsGzip("gzip, deflate, br"));
+		assertTrue(JsonResponseWriter.acceptsGzip("br;q=1.0, GZIP;q=0.8"));
+		assertTrue(JsonResponseWriter.acceptsGzip("*"));
+		assertFalse(JsonResponseWriter.acceptsGzip(null));
+		assertFalse(JsonResponseWriter.acceptsGzip("identity"));
+		assertFalse(JsonResponseWriter.acceptsGzip("gzip;q=0"));
+	}
+
+	@Test
+	public void toJsonTest() throws Exception {
+		assertEquals(FAQServlet.toJsonArray(Collections.<String>emptyList()), "[]");
+		assertEquals(FAQServlet.toJsonArray(Arrays.asList("{ \"a\" : 1 }", "{ \"b\" : 2 }")), "[{ \"a\" : 1 },{ \"b\" : 2 }]");
+		assertEquals(FAQServlet.toJsonMessage("Say \"hi\""), "{ \"message\" : \"Say \\\"hi\\\"\" }");
+	}
+}